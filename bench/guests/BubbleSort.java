@@ -0,0 +1,16 @@
+class BubbleSort {
+    public static int main(int rounds, int arr[]) {
+        int swaps = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i + 1 < arr.length; i++) {
+                if (arr[i] > arr[i + 1]) {
+                    int tmp = arr[i];
+                    arr[i] = arr[i + 1];
+                    arr[i + 1] = tmp;
+                    swaps++;
+                }
+            }
+        }
+        return swaps;
+    }
+}
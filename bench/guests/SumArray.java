@@ -0,0 +1,9 @@
+class SumArray {
+    public static int main(int start, int arr[]) {
+        int sum = start;
+        for (int i = 0; i < arr.length; i++) {
+            sum = sum + arr[i];
+        }
+        return sum;
+    }
+}
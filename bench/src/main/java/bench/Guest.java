@@ -0,0 +1,89 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Random;
+import javax.tools.ToolProvider;
+
+// The guest classes the benchmarks run on. Their sources are bundled as
+// resources and compiled with the system compiler, the same way the
+// Makefile compiles binsearch.java.
+public enum Guest {
+    BinarySearch("binsearch.java"),
+    SumArray("SumArray.java"),
+    Collatz("Collatz.java"),
+    BubbleSort("BubbleSort.java"),
+    Fibonacci("Fibonacci.java");
+
+    final String source;
+
+    Guest(String source) {
+        this.source = source;
+    }
+
+    byte[] classBytes() {
+        try {
+            var dir = Files.createTempDirectory("guest");
+            var file = dir.resolve(source);
+            try (var in = Guest.class.getResourceAsStream("/" + source)) {
+                Files.write(file, in.readAllBytes());
+            }
+            int status = ToolProvider.getSystemJavaCompiler()
+                .run(null, null, null, "-d", dir.toString(), file.toString());
+            if (status != 0)
+                throw new IllegalStateException("could not compile " + source);
+            return Files.readAllBytes(dir.resolve(name() + ".class"));
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    // Arguments for main, the same ones on every call.
+    Object[] args() {
+        switch (this) {
+            case BinarySearch:
+                return new Object[]{3, new int[]{1, 3, 4, 5, 7, 8, 20, 21, 25}};
+            case SumArray:
+                return new Object[]{0, random(256)};
+            case Collatz:
+                return new Object[]{27};
+            case BubbleSort:
+                // Sorting the same array over and over: only the first call
+                // actually swaps, all later ones just compare.
+                return new Object[]{4, random(64)};
+            case Fibonacci:
+                return new Object[]{40};
+            default:
+                throw new AssertionError(this);
+        }
+    }
+
+    // Argument vectors for a batch, the first argument differs from lane
+    // to lane, like the items looked up in one array by bulk queries.
+    Object[][] batch(int lanes) {
+        var rnd = new Random(42);
+        var res = new Object[lanes][];
+        for (int l = 0; l < lanes; l++) {
+            var args = args();
+            switch (this) {
+                case BinarySearch: args[0] = 1 + rnd.nextInt(25); break;
+                case SumArray: args[0] = rnd.nextInt(1000); break;
+                case Collatz: args[0] = 1 + rnd.nextInt(1000); break;
+                case BubbleSort: args[0] = 1 + rnd.nextInt(4); break;
+                case Fibonacci: args[0] = rnd.nextInt(41); break;
+                default: throw new AssertionError(this);
+            }
+            res[l] = args;
+        }
+        return res;
+    }
+
+    private static int[] random(int length) {
+        var rnd = new Random(42);
+        var arr = new int[length];
+        for (int i = 0; i < length; i++)
+            arr[i] = rnd.nextInt(1000);
+        return arr;
+    }
+}
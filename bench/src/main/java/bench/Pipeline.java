@@ -0,0 +1,111 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.AccessibleObject;
+import java.util.Map;
+
+// JMH refuses benchmarks in the default package, and everything in
+// Program.java lives there, so the stages are reached through method
+// handles. They are constants, so the JIT inlines them like direct calls.
+final class Pipeline {
+    private static final MethodHandle CLASS_FILE = constructor("ClassFile", DataInputStream.class);
+    private static final MethodHandle METHODS = getter("ClassFile", "methods");
+    private static final MethodHandle PARSE_METHOD = method("Program", "parseMethod", "ClassFile", "Method");
+    private static final MethodHandle STACKIFY = method("Program", "stackify", "ParsedMethod");
+    private static final MethodHandle OPTIMIZE = method("Program", "optimize", "MethodGraph");
+    private static final MethodHandle EXECUTOR = constructor("Executor");
+    private static final MethodHandle RUN = method("Executor", "run", "MethodGraph", Object[].class);
+    private static final MethodHandle BATCH_EXECUTOR = constructor("BatchExecutor");
+    private static final MethodHandle RUN_BATCH = method("BatchExecutor", "run", "MethodGraph", Object[][].class);
+
+    private Pipeline() { }
+
+    static Object classFile(byte[] bytes) throws Throwable {
+        return (Object) CLASS_FILE.invokeExact((Object) new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    static Object method(Object class_file, String name) throws Throwable {
+        var methods = (Map<?, ?>) (Object) METHODS.invokeExact(class_file);
+        return methods.get(name);
+    }
+
+    static Object parseMethod(Object class_file, Object method) throws Throwable {
+        return (Object) PARSE_METHOD.invokeExact(class_file, method);
+    }
+
+    static Object stackify(Object parsed) throws Throwable {
+        return (Object) STACKIFY.invokeExact(parsed);
+    }
+
+    static void optimize(Object graph) throws Throwable {
+        OPTIMIZE.invokeExact(graph);
+    }
+
+    static Object executor() throws Throwable {
+        return (Object) EXECUTOR.invokeExact();
+    }
+
+    static Object run(Object executor, Object graph, Object[] args) throws Throwable {
+        return (Object) RUN.invokeExact(executor, graph, (Object) args);
+    }
+
+    static Object batchExecutor() throws Throwable {
+        return (Object) BATCH_EXECUTOR.invokeExact();
+    }
+
+    static Object[] runBatch(Object executor, Object graph, Object[][] args) throws Throwable {
+        return (Object[]) (Object) RUN_BATCH.invokeExact(executor, graph, (Object) args);
+    }
+
+    // Parameter types are either classes or names of classes in the
+    // default package.
+    private static MethodHandle method(String owner, String name, Object... params) {
+        try {
+            var m = find(owner).getDeclaredMethod(name, types(params));
+            return erase(MethodHandles.lookup().unreflect(open(m)));
+        } catch (ReflectiveOperationException x) {
+            throw new LinkageError("no " + owner + "." + name, x);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, Object... params) {
+        try {
+            var c = find(owner).getDeclaredConstructor(types(params));
+            return erase(MethodHandles.lookup().unreflectConstructor(open(c)));
+        } catch (ReflectiveOperationException x) {
+            throw new LinkageError("no constructor of " + owner, x);
+        }
+    }
+
+    private static MethodHandle getter(String owner, String name) {
+        try {
+            var f = find(owner).getDeclaredField(name);
+            return erase(MethodHandles.lookup().unreflectGetter(open(f)));
+        } catch (ReflectiveOperationException x) {
+            throw new LinkageError("no " + owner + "." + name, x);
+        }
+    }
+
+    private static <T extends AccessibleObject> T open(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+
+    private static MethodHandle erase(MethodHandle h) {
+        return h.asType(h.type().erase());
+    }
+
+    private static Class<?>[] types(Object[] params) throws ClassNotFoundException {
+        var types = new Class<?>[params.length];
+        for (int i = 0; i < params.length; i++)
+            types[i] = params[i] instanceof String s ? find(s) : (Class<?>) params[i];
+        return types;
+    }
+
+    private static Class<?> find(String name) throws ClassNotFoundException {
+        return Class.forName(name, false, Pipeline.class.getClassLoader());
+    }
+}
@@ -0,0 +1,154 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// One benchmark per pipeline stage. Allocation rates come from the GC
+// profiler, which `make bench` turns on with -prof gc.
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// The BatchExecutor needs the incubating vector API.
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class PipelineBenchmark {
+
+    @State(Scope.Thread)
+    public static class Input {
+        @Param
+        Guest guest;
+
+        byte[] class_bytes;
+        Object class_file;
+        Object method;
+        Object graph;
+        Object executor;
+        Object[] args;
+
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            class_bytes = guest.classBytes();
+            class_file = Pipeline.classFile(class_bytes);
+            method = Pipeline.method(class_file, "main");
+            graph = Pipeline.stackify(Pipeline.parseMethod(class_file, method));
+            Pipeline.optimize(graph);
+            executor = Pipeline.executor();
+            args = guest.args();
+        }
+    }
+
+    // stackify and optimize change their input in place, so they need a
+    // fresh one for every call.
+    @State(Scope.Thread)
+    public static class Parsed {
+        Object parsed;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws Throwable {
+            parsed = Pipeline.parseMethod(in.class_file, in.method);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Stackified {
+        Object graph;
+
+        @Setup(Level.Invocation)
+        public void setup(Input in) throws Throwable {
+            graph = Pipeline.stackify(Pipeline.parseMethod(in.class_file, in.method));
+        }
+    }
+
+    // One graph for all benchmark threads, like a service sharing its
+    // compiled methods between request threads.
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param
+        Guest guest;
+
+        Object graph;
+        Object executor;
+
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            var class_file = Pipeline.classFile(guest.classBytes());
+            var method = Pipeline.method(class_file, "main");
+            graph = Pipeline.stackify(Pipeline.parseMethod(class_file, method));
+            Pipeline.optimize(graph);
+            executor = Pipeline.executor();
+        }
+    }
+
+    // The same lanes once through the BatchExecutor and once one after the
+    // other through the Executor.
+    @State(Scope.Thread)
+    public static class Batch {
+        @Param({"1024"})
+        int lanes;
+
+        Object batch_executor;
+        Object[][] args;
+
+        @Setup(Level.Trial)
+        public void setup(Input in) throws Throwable {
+            batch_executor = Pipeline.batchExecutor();
+            args = in.guest.batch(lanes);
+        }
+    }
+
+    @Benchmark
+    public Object classFile(Input in) throws Throwable {
+        return Pipeline.classFile(in.class_bytes);
+    }
+
+    @Benchmark
+    public Object parseCode(Input in) throws Throwable {
+        return Pipeline.parseMethod(in.class_file, in.method);
+    }
+
+    @Benchmark
+    public Object stackify(Parsed p) throws Throwable {
+        return Pipeline.stackify(p.parsed);
+    }
+
+    @Benchmark
+    public Object optimize(Stackified s) throws Throwable {
+        Pipeline.optimize(s.graph);
+        return s.graph;
+    }
+
+    @Benchmark
+    public Object run(Input in) throws Throwable {
+        return Pipeline.run(in.executor, in.graph, in.args);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object runShared(Shared shared, Input in) throws Throwable {
+        return Pipeline.run(shared.executor, shared.graph, in.args);
+    }
+
+    @Benchmark
+    public Object runBatch(Input in, Batch batch) throws Throwable {
+        return Pipeline.runBatch(batch.batch_executor, in.graph, batch.args);
+    }
+
+    @Benchmark
+    public void runEach(Input in, Batch batch, Blackhole bh) throws Throwable {
+        for (var args : batch.args)
+            bh.consume(Pipeline.run(in.executor, in.graph, args));
+    }
+}
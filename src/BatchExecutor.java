@@ -0,0 +1,464 @@
+import java.util.*;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Kept apart from Program.java, the vector API is still incubating and
+// needs --add-modules jdk.incubator.vector to compile and to run, see the
+// Makefile.
+
+// Runs a method for many arguments at once. Every argument vector gets a
+// lane, and all lanes waiting at the same block go through it together,
+// so each instruction is dispatched once for the whole batch and the int
+// arithmetic and comparisons are done with the vector API. Where lanes
+// branch differently they are split up by masks, and they meet again at
+// the block where the paths join, because the block that comes first in
+// reverse postorder is always run first.
+class BatchExecutor {
+    static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    // At most this many lanes are run together, and fewer for big methods,
+    // so that the values of a chunk stay below CHUNK_VALUES.
+    static final int CHUNK = 1024;
+    static final int CHUNK_VALUES = 1 << 20;
+
+    BatchExecutor() {
+    }
+
+    Object[] run(MethodGraph graph, Object[][] args) {
+        if (!graph.sealed)
+            throw new Error("Graph has not been optimized yet!");
+        var results = new Object[args.length];
+        // Lanes cannot take different paths at an exception or a failed
+        // guard, one by one it is.
+        if (graph.has_handlers || graph.speculation != null) {
+            var executor = new Executor();
+            for (int i = 0; i < args.length; i++)
+                results[i] = executor.run(graph, args[i]);
+            return results;
+        }
+        var order = graph.reversePostorder();
+        int width = Math.min(CHUNK, CHUNK_VALUES / Math.max(1, graph.inst_count));
+        width = Math.max(SPECIES.length(), SPECIES.loopBound(width));
+
+        try {
+            for (int from = 0; from < args.length; from += width)
+                new Lanes(graph, order, args, from, Math.min(args.length, from + width)).run(results);
+        } catch (GuestException x) {
+            throw Executor.unwrap(x);
+        }
+        return results;
+    }
+}
+
+// One chunk of a BatchExecutor run. Values of int instructions are kept
+// unboxed, every instruction has an array with an entry per lane.
+class Lanes {
+    static final VectorSpecies<Integer> SPECIES = BatchExecutor.SPECIES;
+
+    MethodGraph graph;
+    BasicBlock[] order;
+    HashMap<BasicBlock, Integer> position;
+    Object[][] args;
+    int from;
+    int count;
+    // count rounded up to whole vectors, the lanes after count are never
+    // active.
+    int width;
+
+    boolean[] is_int;
+    int[][] ints;
+    Object[][] objs;
+    // Lanes waiting at each block of order, and which phi operand each
+    // lane takes there.
+    boolean[][] waiting;
+    int[] waiting_count;
+    int[] incoming;
+
+    int[] lhs_scratch;
+    int[] rhs_scratch;
+    // What the phis of a block read, by position in the block, until all
+    // of them have read, see phis.
+    int[][] phi_ints;
+    Object[][] phi_objs;
+    // For the instructions that are run one lane at a time by Executor.
+    Object[] frame;
+    long[] counts;
+    int edges;
+
+    Lanes(MethodGraph g, BasicBlock[] o, Object[][] a, int f, int t) {
+        graph = g;
+        order = o;
+        args = a;
+        from = f;
+        count = t - f;
+        width = SPECIES.loopBound(count + SPECIES.length() - 1);
+
+        position = new HashMap<BasicBlock, Integer>();
+        for (int b = 0; b < order.length; b++)
+            position.put(order[b], b);
+        waiting = new boolean[order.length][width];
+        waiting_count = new int[order.length];
+        incoming = new int[width];
+        lhs_scratch = new int[width];
+        rhs_scratch = new int[width];
+        frame = new Object[g.slot_count];
+        counts = g.counters.local();
+        edges = g.inst_count;
+
+        is_int = intKinds();
+        ints = new int[g.inst_count][];
+        objs = new Object[g.inst_count][];
+        int phis = 0;
+        for (var blk : order) {
+            phis = Math.max(phis, phiCount(blk));
+            for (var inst : blk.insts) {
+                if (inst.result_count == 0)
+                    continue;
+                if (is_int[inst.id])
+                    ints[inst.id] = new int[width];
+                else
+                    objs[inst.id] = new Object[width];
+            }
+        }
+        phi_ints = new int[phis][width];
+        phi_objs = new Object[phis][width];
+    }
+
+    static int phiCount(BasicBlock blk) {
+        int n = 0;
+        while (n < blk.insts.size() && blk.insts.get(n) instanceof Phi)
+            n++;
+        return n;
+    }
+
+    // Which instructions always produce an int. Phis are assumed to until
+    // one of their operands does not.
+    boolean[] intKinds() {
+        var res = new boolean[graph.inst_count];
+        for (var blk : order) {
+            for (var inst : blk.insts) {
+                switch (inst) {
+                    case Constant c: res[inst.id] = c.val instanceof Integer; break;
+                    case GetArg a: {
+                        boolean all = true;
+                        for (int l = 0; l < count; l++)
+                            all &= args[from + l][a.index] instanceof Integer;
+                        res[inst.id] = all;
+                    } break;
+                    case Phi p: res[inst.id] = true; break;
+                    case AddInteger i: res[inst.id] = true; break;
+                    case SubInteger i: res[inst.id] = true; break;
+                    case MulInteger i: res[inst.id] = true; break;
+                    case DivInteger i: res[inst.id] = true; break;
+                    case RemInteger i: res[inst.id] = true; break;
+                    case ShlInteger i: res[inst.id] = true; break;
+                    case ShrInteger i: res[inst.id] = true; break;
+                    case UShrInteger i: res[inst.id] = true; break;
+                    case AndInteger i: res[inst.id] = true; break;
+                    case OrInteger i: res[inst.id] = true; break;
+                    case XOrInteger i: res[inst.id] = true; break;
+                    case NegInteger i: res[inst.id] = true; break;
+                    case AddConstant i: res[inst.id] = true; break;
+                    case ArrayLength i: res[inst.id] = true; break;
+                    case LoadArray i: {
+                        var k = i.kind;
+                        res[inst.id] = k == ElementKind.Int || k == ElementKind.Byte || k == ElementKind.Char || k == ElementKind.Short;
+                    } break;
+                    case ConvertIntegerByte i: res[inst.id] = true; break;
+                    case ConvertIntegerCharacter i: res[inst.id] = true; break;
+                    case ConvertIntegerShort i: res[inst.id] = true; break;
+                    case ConvertLongInteger i: res[inst.id] = true; break;
+                    case ConvertFloatInteger i: res[inst.id] = true; break;
+                    case ConvertDoubleInteger i: res[inst.id] = true; break;
+                    default: break;
+                }
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (var blk : order) {
+                for (var inst : blk.insts) {
+                    if (!(inst instanceof Phi p) || !res[p.id])
+                        continue;
+                    for (var op : p.ops) {
+                        if (!res[op.id]) {
+                            res[p.id] = false;
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    void run(Object[] results) {
+        Arrays.fill(waiting[0], 0, count, true);
+        waiting_count[0] = count;
+        var spare = new boolean[width];
+
+        while (true) {
+            int b = 0;
+            while (b < order.length && waiting_count[b] == 0)
+                b++;
+            if (b == order.length)
+                return;
+
+            // Lanes that come back to this block wait in the spare array.
+            var active = waiting[b];
+            int n = waiting_count[b];
+            waiting[b] = spare;
+            waiting_count[b] = 0;
+
+            execute(order[b], active, n, results);
+
+            Arrays.fill(active, false);
+            spare = active;
+        }
+    }
+
+    void execute(BasicBlock blk, boolean[] active, int n, Object[] results) {
+        int phis = phiCount(blk);
+        phis(blk, phis, active);
+        for (var inst : blk.insts.subList(phis, blk.insts.size())) {
+            switch (inst) {
+                case Constant c: {
+                    if (is_int[c.id])
+                        Arrays.fill(ints[c.id], (Integer) c.val);
+                    else
+                        Arrays.fill(objs[c.id], c.val);
+                } break;
+                case GetArg a: {
+                    for (int l = 0; l < count; l++) {
+                        if (active[l])
+                            set(a, l, args[from + l][a.index]);
+                    }
+                } break;
+                case RemInteger i: binary(i, null, active); break;
+                case BinaryOperation i when operator(i) != null: binary(i, operator(i), active); break;
+                case NegInteger i: {
+                    var src = operand(i.src(), lhs_scratch);
+                    for (int l = 0; l < width; l += SPECIES.length()) {
+                        var m = VectorMask.fromArray(SPECIES, active, l);
+                        if (m.anyTrue())
+                            IntVector.fromArray(SPECIES, src, l).neg().intoArray(ints[i.id], l, m);
+                    }
+                } break;
+                case AddConstant i: {
+                    var src = operand(i.src(), lhs_scratch);
+                    for (int l = 0; l < width; l += SPECIES.length()) {
+                        var m = VectorMask.fromArray(SPECIES, active, l);
+                        if (m.anyTrue())
+                            IntVector.fromArray(SPECIES, src, l).add(i.constant).intoArray(ints[i.id], l, m);
+                    }
+                } break;
+                case Terminator t: {
+                    counts[t.id] += (long) Executor.cost(t) * n;
+                    branch(t, active, results);
+                } return;
+                default: {
+                    for (int l = 0; l < count; l++) {
+                        if (active[l])
+                            set(inst, l, Executor.evaluate(inst, frame(inst, l), 0));
+                    }
+                }
+            }
+            counts[inst.id] += (long) Executor.cost(inst) * n;
+        }
+        throw new Error("This block did not have a terminator.");
+    }
+
+    static VectorOperators.Binary operator(BinaryOperation inst) {
+        switch (inst) {
+            case AddInteger i: return VectorOperators.ADD;
+            case SubInteger i: return VectorOperators.SUB;
+            case MulInteger i: return VectorOperators.MUL;
+            case DivInteger i: return VectorOperators.DIV;
+            case ShlInteger i: return VectorOperators.LSHL;
+            case ShrInteger i: return VectorOperators.ASHR;
+            case UShrInteger i: return VectorOperators.LSHR;
+            case AndInteger i: return VectorOperators.AND;
+            case OrInteger i: return VectorOperators.OR;
+            case XOrInteger i: return VectorOperators.XOR;
+            default: return null;
+        }
+    }
+
+    static VectorOperators.Comparison comparison(Compare c) {
+        switch (c) {
+            case Compare.Lt: return VectorOperators.LT;
+            case Compare.Ge: return VectorOperators.GE;
+            case Compare.Gt: return VectorOperators.GT;
+            case Compare.Le: return VectorOperators.LE;
+            case Compare.Eq: return VectorOperators.EQ;
+            case Compare.Ne: return VectorOperators.NE;
+        }
+        throw new Error("unreachable");
+    }
+
+    // A null operator means remainder, which the vector API does not have.
+    void binary(BinaryOperation inst, VectorOperators.Binary op, boolean[] active) {
+        var lhs = operand(inst.lhs(), lhs_scratch);
+        var rhs = operand(inst.rhs(), rhs_scratch);
+        var dst = ints[inst.id];
+        boolean divides = op == null || op == VectorOperators.DIV;
+        for (int l = 0; l < width; l += SPECIES.length()) {
+            var m = VectorMask.fromArray(SPECIES, active, l);
+            if (!m.anyTrue())
+                continue;
+            var a = IntVector.fromArray(SPECIES, lhs, l);
+            var b = IntVector.fromArray(SPECIES, rhs, l);
+            IntVector res;
+            if (divides) {
+                // Lanes that are not active may well divide by zero.
+                b = b.blend(1, m.not());
+                var quotient = a.div(b);
+                res = op == null ? a.sub(quotient.mul(b)) : quotient;
+            } else {
+                res = a.lanewise(op, b);
+            }
+            res.intoArray(dst, l, m);
+        }
+    }
+
+    // The first n instructions of blk. All of them read before any of
+    // them writes, one may read what another overwrites, as in a swap.
+    void phis(BasicBlock blk, int n, boolean[] active) {
+        for (int j = 0; j < n; j++) {
+            var p = (Phi) blk.insts.get(j);
+            if (!is_int[p.id]) {
+                for (int l = 0; l < count; l++) {
+                    if (active[l])
+                        phi_objs[j][l] = value(p.ops[incoming[l]], l);
+                }
+                continue;
+            }
+            for (int k = 0; k < p.ops.length; k++) {
+                var src = operand(p.ops[k], lhs_scratch);
+                for (int l = 0; l < width; l += SPECIES.length()) {
+                    var m = VectorMask.fromArray(SPECIES, active, l)
+                        .and(IntVector.fromArray(SPECIES, incoming, l).eq(k));
+                    if (m.anyTrue())
+                        IntVector.fromArray(SPECIES, src, l).intoArray(phi_ints[j], l, m);
+                }
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            var p = blk.insts.get(j);
+            if (!is_int[p.id]) {
+                for (int l = 0; l < count; l++) {
+                    if (active[l])
+                        objs[p.id][l] = phi_objs[j][l];
+                }
+                continue;
+            }
+            for (int l = 0; l < width; l += SPECIES.length()) {
+                var m = VectorMask.fromArray(SPECIES, active, l);
+                IntVector.fromArray(SPECIES, phi_ints[j], l).intoArray(ints[p.id], l, m);
+            }
+        }
+    }
+
+    void branch(Terminator t, boolean[] active, Object[] results) {
+        switch (t) {
+            case Goto g: {
+                for (int l = 0; l < width; l += SPECIES.length())
+                    arrive(t, 0, VectorMask.fromArray(SPECIES, active, l), l);
+            } break;
+            case If i: split(i, i.comparison, operand(i.condition(), lhs_scratch), null, active); break;
+            case IfCmp i: split(i, i.comparison, operand(i.lhs(), lhs_scratch), operand(i.rhs(), rhs_scratch), active); break;
+            // The loads are done lane by lane, the compares together.
+            case IfCmpArray i: {
+                for (int l = 0; l < count; l++) {
+                    if (active[l])
+                        lhs_scratch[l] = (Integer) Executor.loadArray(i.kind, value(i.array(), l), (Integer) value(i.index(), l));
+                }
+                split(i, i.comparison, lhs_scratch, operand(i.rhs(), rhs_scratch), active);
+            } break;
+            case IfCmpLength i: {
+                for (int l = 0; l < count; l++) {
+                    if (active[l])
+                        rhs_scratch[l] = Executor.arrayLength(value(i.array(), l));
+                }
+                split(i, i.comparison, operand(i.lhs(), lhs_scratch), rhs_scratch, active);
+            } break;
+            default: {
+                for (int l = 0; l < count; l++) {
+                    if (!active[l])
+                        continue;
+                    int dir = Executor.direction(t, frame(t, l), 0);
+                    if (dir < 0) {
+                        results[from + l] = t.ops.length == 0 ? null : value(t.ops[0], l);
+                        continue;
+                    }
+                    int b = position.get(t.destinations[dir]);
+                    waiting[b][l] = true;
+                    waiting_count[b]++;
+                    incoming[l] = t.in_index[dir];
+                    counts[edges + t.edges + dir]++;
+                }
+            }
+        }
+    }
+
+    // Compares against zero when there is no rhs.
+    void split(Branch t, Compare c, int[] lhs, int[] rhs, boolean[] active) {
+        var cmp = comparison(c);
+        for (int l = 0; l < width; l += SPECIES.length()) {
+            var m = VectorMask.fromArray(SPECIES, active, l);
+            if (!m.anyTrue())
+                continue;
+            var a = IntVector.fromArray(SPECIES, lhs, l);
+            var taken = rhs == null ? a.compare(cmp, 0, m) : a.compare(cmp, IntVector.fromArray(SPECIES, rhs, l), m);
+            arrive(t, 0, taken, l);
+            arrive(t, 1, m.andNot(taken), l);
+        }
+    }
+
+    void arrive(Terminator t, int dir, VectorMask<Integer> m, int l) {
+        int n = m.trueCount();
+        if (n == 0)
+            return;
+        int b = position.get(t.destinations[dir]);
+        VectorMask.fromArray(SPECIES, waiting[b], l).or(m).intoArray(waiting[b], l);
+        IntVector.broadcast(SPECIES, t.in_index[dir]).intoArray(incoming, l, m);
+        waiting_count[b] += n;
+        counts[edges + t.edges + dir] += n;
+    }
+
+    // The values of an int operand for all lanes, unboxed into scratch if
+    // the operand is not kept as ints.
+    int[] operand(Instruction op, int[] scratch) {
+        if (is_int[op.id])
+            return ints[op.id];
+        var src = objs[op.id];
+        for (int l = 0; l < count; l++)
+            scratch[l] = src[l] instanceof Integer v ? v : 0;
+        return scratch;
+    }
+
+    Object value(Instruction op, int lane) {
+        if (is_int[op.id])
+            return ints[op.id][lane];
+        return objs[op.id][lane];
+    }
+
+    void set(Instruction inst, int lane, Object val) {
+        if (inst.result_count == 0)
+            return;
+        if (is_int[inst.id])
+            ints[inst.id][lane] = (Integer) val;
+        else
+            objs[inst.id][lane] = val;
+    }
+
+    Object[] frame(Instruction inst, int lane) {
+        for (var op : inst.ops)
+            frame[op.slot] = value(op, lane);
+        return frame;
+    }
+}
@@ -1,26 +1,114 @@
 import java.nio.charset.Charset;
 import java.util.*;
+import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.InputStreamReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.UncheckedIOException;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.lang.Runtime;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 
 public class Program {
     private static Charset UTF8_CHARSET = Charset.forName("UTF-8");
+    // Blocks executed less than once per this many executions of the
+    // hottest block are cold.
+    static final int COLD_RATIO = 1000;
+    // switchify turns chains of at least this many compares into a switch.
+    static final int SWITCH_CHAIN = 3;
+    // speculate counts on a branch going one way once it went that way
+    // this often and never the other.
+    static final int SPECULATE_MIN = 1000;
+    // A speculating graph is compiled again without the guards that
+    // failed after this many failures.
+    static final int DEOPT_LIMIT = 100;
+    // An invocation of a graph built without a profile moves on to one
+    // built with the counts so far once it went around a loop this often.
+    static final int OSR_THRESHOLD = 10000;
+    // unroll copies a loop this many times, and a loop with a constant
+    // trip count once per iteration if it goes around at most UNROLL_FULL
+    // times, as long as that adds at most UNROLL_SIZE instructions.
+    static final int UNROLL_FACTOR = 4;
+    static final int UNROLL_FULL = 16;
+    static final int UNROLL_SIZE = 256;
+    // A Specializer keeps the graphs of this many argument values.
+    static final int SPECIALIZE_CACHE = 16;
+    // specialize folds the elements of primitive arrays up to this long,
+    // of longer ones only the length. Specializer runs the generic graph
+    // for longer ones, so that telling whether a call passes the same
+    // contents again stays cheap.
+    static final int SPECIALIZE_ELEMENTS = 256;
+    // A virtual call site remembers the methods of this many receiver
+    // classes, see InlineCache.
+    static final int POLYMORPHIC_LIMIT = 4;
+    // The values the frames of one thread may take together before the
+    // guest gets a StackOverflowError.
+    static final int FRAMES_LIMIT = 1 << 24;
 
     public static void main(String[] args) throws IOException {
         if (args.length < 1) {
             System.err.print("Needs one argument!");
             return;
         }
+        if (args[0].equals("--generate")) {
+            MethodGenerator.main(args);
+            return;
+        }
+        if (args[0].equals("--scaling")) {
+            ScalingSuite.main(args);
+            return;
+        }
+        if (args[0].equals("--costs")) {
+            CostEstimate.main(args);
+            return;
+        }
+        if (args[0].equals("--watch")) {
+            Watcher.main(args);
+            return;
+        }
+        if (args[0].equals("--daemon")) {
+            Daemon.main(args);
+            return;
+        }
+        // Where the edge counts of this and earlier runs are collected, see
+        // Profile. Without it every run starts without a profile.
+        Path profile_path = null;
+        while (args[0].equals("--metrics") || args[0].equals("--profile")) {
+            if (args.length < 3) {
+                System.err.print("usage: Program [--metrics <out.json>] [--profile <code.profile>] <Name.class>");
+                return;
+            }
+            if (args[0].equals("--metrics"))
+                Metrics.report = Paths.get(args[1]);
+            else
+                profile_path = Paths.get(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
         ClassFile cf;
+        var phase = Metrics.start("ClassFile", args[0]);
         try (var in = Files.newInputStream(Paths.get(args[0]));
             var reader = new DataInputStream(in)) {
             cf = new ClassFile(reader);
@@ -28,35 +116,43 @@ public class Program {
             System.err.println(x);
             return;
         }
+        // The classes it uses are next to it.
+        new Classes(Paths.get(args[0]).toAbsolutePath().getParent()).add(cf);
+        Metrics.end(phase, List.of());
 
         var main_method = cf.methods.get("main");
         if (main_method == null)
             throw new Error("does not contain method main!");
 
-        var code = main_method.attributes.get("Code");
-        if (code == null)
-            throw new Error("method does not contain code!");
-
-        var parsed = parseCode(new DataInputStream(new ByteArrayInputStream(code)), cf);
-
-        parsed.param_count = 2; // FIXME FIND THIS FROM THE TYPE OR SOMETHING
+        var parsed = parseMethod(cf, main_method);
         var graph = stackify(parsed);
 
+        var key = cf.name + "." + main_method.name + main_method.descriptor;
+        var profile = profile_path == null ? null : Profile.load(profile_path);
+        if (profile != null)
+            profile.apply(key, graph);
+
         optimize(graph);
 
         var executor = new Executor();
-        var run_args = new Object[2];
-        run_args[0] = 3;
-        run_args[1] = new Object[]{1, 3, 4, 5, 7, 8, 20, 21, 25};
-
-        int res = (Integer) executor.run(graph, run_args);
+        phase = Metrics.start("Executor.run", key);
+        int res = (Integer) executor.invoke(graph, 3, new int[]{1, 3, 4, 5, 7, 8, 20, 21, 25});
+        Metrics.end(phase, graph);
         System.err.println(res);
 
+        if (profile != null) {
+            profile.record(key, graph);
+            profile.save(profile_path);
+        }
+
+        phase = Metrics.start("MethodGraph.print", key);
         try (var out = new PrintWriter("graph.dot")) {
             out.print("digraph {\n  compound=true\n  node [shape=rect]\n");
             graph.print(out);
             out.print("}\n");
         }
+        Metrics.end(phase, graph);
+        Metrics.save();
         Runtime r = Runtime.getRuntime();
         r.exec("dot -Tpdf graph.dot -o ./graph.pdf");
     }
@@ -71,1407 +167,6896 @@ public class Program {
 
 
     static void optimize(MethodGraph g) {
+        optimize(g, null);
+    }
+
+    // Prints the estimated costs after every pass to costs, if given.
+    static void optimize(MethodGraph g, PrintStream costs) {
         var blocks = g.blocks;
+        report(costs, "stackify", g);
+        pass(costs, "applyProfile", g, Program::applyProfile);
+        pass(costs, "speculate", g, Program::speculate);
+        pass(costs, "switchify", g, Program::switchify);
+        pass(costs, "scalarReplace", g, Program::scalarReplace);
+        pass(costs, "unroll", g, Program::unroll);
+        pass(costs, "forwardArrays", g, Program::forwardArrays);
+        pass(costs, "fuse", g, Program::fuse);
+
         // =============================
         // =============================
         // HIER KÖNNTE DEIN CODE STEHEN!
         // =============================
         // =============================
+
+        var phase = Metrics.start("optimize.seal", g.name);
+        g.seal();
+        Metrics.end(phase, g);
     }
 
+    static void pass(PrintStream costs, String name, MethodGraph g, Consumer<MethodGraph> pass) {
+        var phase = Metrics.start("optimize." + name, g.name);
+        pass.accept(g);
+        Metrics.end(phase, g);
+        report(costs, name, g);
+    }
 
+    static void report(PrintStream out, String pass, MethodGraph g) {
+        if (out != null)
+            out.printf("%-14s %s\n", pass, new CostEstimate(g).summary());
+    }
 
+    // Uses the edge counts of earlier runs to mark rarely executed blocks
+    // as cold, to put the hot predecessors of every block first (inputIndex
+    // searches through them on every block transition) and to lay out the
+    // blocks so that each one is followed by its hot successor.
+    static void applyProfile(MethodGraph g) {
+        var freq = blockFrequencies(g);
+        long max = 0;
+        for (var f : freq.values())
+            max = Math.max(max, f);
+        if (max == 0)
+            return;
+        g.has_profile = true;
 
+        for (var blk : g.blocks) {
+            blk.cold = freq.get(blk) * COLD_RATIO < max;
+            sortIncoming(blk);
+        }
+        layoutBlocks(g, freq);
+    }
 
+    // Replaces the branches that the profile says always go the same way
+    // by a Guard with only that destination. The blocks that only the
+    // other way led to go away, and the phis lose the values that came
+    // from there. If a guard fails, the Executor continues in a graph
+    // without speculation, entered at the pc of the other destination.
+    static void speculate(MethodGraph g) {
+        if (g.cf == null)
+            return;
+        var spec = g.speculation != null ? g.speculation : new Speculation(g.cf, g.method);
+        g.speculation = null;
+        for (var blk : g.blocks) {
+            if (blk.pc >= 0 && blk.profiled != null)
+                spec.profiled.put(blk.pc, blk.profiled.clone());
+        }
 
+        boolean guarded = false;
+        for (var blk : g.blocks) {
+            if (!(blk.terminator instanceof Branch br) || blk.profiled == null || spec.failed.contains(blk.pc))
+                continue;
+            int hot = blk.profiled[0] >= SPECULATE_MIN && blk.profiled[1] == 0 ? 0
+                    : blk.profiled[1] >= SPECULATE_MIN && blk.profiled[0] == 0 ? 1 : -1;
+            if (hot < 0)
+                continue;
+            var other = br.destinations[1 - hot];
+            if (other == br.destinations[hot] || other.pc < 0 || other.state == null
+                || other.insts.get(0) instanceof CatchException)
+                continue;
 
+            // What the other block would have started with coming from here.
+            int k = other.inputIndex(blk);
+            var values = new ArrayList<Instruction>();
+            var where = new ArrayList<Integer>();
+            for (int i = 0; i < other.state.length; i++) {
+                var v = other.state[i];
+                if (v instanceof Phi p && other.insts.contains(p))
+                    v = p.ops[k];
+                if (v != null) {
+                    values.add(v);
+                    where.add(i);
+                }
+            }
+            var guard = new Guard(br, hot, other.pc, other.state.length, values, where);
+            guard.destinations[0] = br.destinations[hot];
+            blk.insts.set(blk.insts.size() - 1, guard);
+            blk.terminator = guard;
+            blk.profiled = new long[]{blk.profiled[hot]};
+            removeIncoming(other, k);
+            guarded = true;
+        }
+        if (guarded) {
+            removeUnreachable(g.entry, g.blocks);
+            g.speculation = spec;
+        }
+    }
 
+    // Turns chains of compares of one value against constants, like
+    // `if (x == 1) .. else if (x == 2) ..`, into a single switch, so that
+    // dispatching no longer goes through every compare.
+    static void switchify(MethodGraph g) {
+        var users = users(g);
+        var absorbed = new HashSet<BasicBlock>();
+        for (var head : g.blocks) {
+            if (absorbed.contains(head))
+                continue;
+            var first = caseTest(head.terminator);
+            if (first == null)
+                continue;
 
+            var chain = new ArrayList<BasicBlock>();
+            var tests = new ArrayList<CaseTest>();
+            var keys = new HashSet<Integer>();
+            chain.add(head);
+            tests.add(first);
+            keys.add(first.key);
+            while (true) {
+                var last = tests.get(tests.size() - 1);
+                var next = last.other;
+                if (next.incoming.size() != 1 || chain.contains(next) || !onlyTest(next, users)
+                    || !next.handlers.isEmpty())
+                    break;
+                var test = caseTest(next.terminator);
+                if (test == null || test.value != first.value || !keys.add(test.key))
+                    break;
+                chain.add(next);
+                tests.add(test);
+            }
+            if (chain.size() < SWITCH_CHAIN)
+                continue;
 
-    static MethodGraph stackify(ParsedMethod parsed) {
-        var insts = parsed.insts;
-        var max_locals = parsed.max_locals;
-        var param_count = parsed.param_count;
-        var blocks = new BasicBlock[insts.length];
-        var current_block = new BasicBlock();
-        blocks[0] = current_block;
+            var sw = buildSwitch(first.value, tests);
+            if (!mergeEdges(chain, sw))
+                continue;
+            var old = head.terminator;
+            head.insts.set(head.insts.size() - 1, sw);
+            head.terminator = sw;
+            head.profiled = null;
+            // The constant of the first compare, the others go with their
+            // blocks. Equal constants are not the same one.
+            for (var op : old.ops) {
+                if (op instanceof Constant && users.get(op).size() == 1)
+                    head.insts.removeIf(i -> i == op);
+            }
+            absorbed.addAll(chain.subList(1, chain.size()));
+        }
+        g.blocks.removeIf(absorbed::contains);
+    }
 
-        var incoming_branches = new int[insts.length];
-        incoming_branches[0] = 1;
+    // For an If or IfCmp that tests a value for being equal to an int
+    // constant or not.
+    static CaseTest caseTest(Terminator t) {
+        var test = new CaseTest();
+        Compare c;
+        switch (t) {
+            case If i: {
+                c = i.comparison;
+                test.value = i.condition();
+                test.key = 0;
+            } break;
+            case IfCmp i: {
+                c = i.comparison;
+                if (i.rhs() instanceof Constant k && k.val instanceof Integer v) {
+                    test.value = i.lhs();
+                    test.key = v;
+                } else if (i.lhs() instanceof Constant k && k.val instanceof Integer v) {
+                    test.value = i.rhs();
+                    test.key = v;
+                } else {
+                    return null;
+                }
+            } break;
+            default:
+                return null;
+        }
+        if (c != Compare.Eq && c != Compare.Ne)
+            return null;
+        var br = (Branch) t;
+        test.match = c == Compare.Eq ? br.on_true() : br.on_false();
+        test.other = c == Compare.Eq ? br.on_false() : br.on_true();
+        if (test.match == test.other)
+            return null;
+        return test;
+    }
 
-        var block_list = new ArrayList<BasicBlock>();
-        block_list.add(current_block);
+    // Whether the block does nothing but the compare, with constants that
+    // nothing else uses.
+    static boolean onlyTest(BasicBlock blk, HashMap<Instruction, ArrayList<Instruction>> users) {
+        for (var inst : blk.insts) {
+            if (inst == blk.terminator)
+                continue;
+            if (!(inst instanceof Constant) || users.get(inst).size() != 1
+                || users.get(inst).get(0) != blk.terminator)
+                return false;
+        }
+        return true;
+    }
 
-        for (int i = 0; i < insts.length; i++) {
-            var inst = insts[i];
-            if (inst == null) continue;
+    // A table if at least half of the cases between the smallest and the
+    // largest key are there, otherwise a sorted lookup.
+    static Switch buildSwitch(Instruction value, ArrayList<CaseTest> tests) {
+        var sorted = new ArrayList<CaseTest>(tests);
+        sorted.sort((a, b) -> Integer.compare(a.key, b.key));
+        int n = sorted.size();
+        long low = sorted.get(0).key;
+        long range = sorted.get(n - 1).key - low + 1;
+
+        Switch sw;
+        if (range <= 2L * n) {
+            sw = new TableSwitch((int) low, (int) range);
+            for (int k = 0; k < range; k++)
+                sw.destinations[1 + k] = tests.get(tests.size() - 1).other;
+            for (var t : sorted)
+                sw.destinations[1 + (int) (t.key - low)] = t.match;
+        } else {
+            var keys = new int[n];
+            for (int k = 0; k < n; k++)
+                keys[k] = sorted.get(k).key;
+            sw = new LookupSwitch(keys);
+            for (int k = 0; k < n; k++)
+                sw.destinations[1 + k] = sorted.get(k).match;
+        }
+        sw.destinations[0] = tests.get(tests.size() - 1).other;
+        sw.ops[0] = value;
+        return sw;
+    }
 
-            switch (inst) {
-                case Return r: break;
-                case Goto g: {
-                    int dest = i + g.offset;
-                    if (blocks[dest] == null) {
-                        blocks[dest] = new BasicBlock();
-                        block_list.add(blocks[dest]);
-                    }
-                    g.destinations[0] = blocks[dest];
-
-                    dest = i + 1;
-                    while (insts[dest] == null)
-                        dest++;
-                    if (blocks[dest] == null) {
-                        blocks[dest] = new BasicBlock();
-                        block_list.add(blocks[dest]);
-                    }
-                } break;
-                case Branch br: {
-                    int dest = i + br.offset;
-                    if (blocks[dest] == null) {
-                        blocks[dest] = new BasicBlock();
-                        block_list.add(blocks[dest]);
+    // Every target of the switch came from one or more blocks of the
+    // chain, those edges become a single one from the head. Gives up if
+    // the phis of a target do not take the same values along all of them.
+    static boolean mergeEdges(ArrayList<BasicBlock> chain, Switch sw) {
+        var targets = new LinkedHashSet<BasicBlock>(Arrays.asList(sw.destinations));
+        for (var t : targets) {
+            var from = chainEdges(chain, t);
+            for (var inst : t.insts) {
+                if (inst instanceof Phi p) {
+                    for (int k : from) {
+                        if (p.ops[k] != p.ops[from.get(0)])
+                            return false;
                     }
-                    br.destinations[0] = blocks[dest];
-
-                    dest = i + 1;
-                    while (insts[dest] == null)
-                        dest++;
-                    if (blocks[dest] == null) {
-                        blocks[dest] = new BasicBlock();
-                        block_list.add(blocks[dest]);
-                    }
-                    br.destinations[1] = blocks[dest];
-                } break;
-                default:
-                    break;
+                }
             }
         }
-        for (int i = 0; i < insts.length; i++) {
-            var inst = insts[i];
-            if (inst == null) {
-                assert blocks[i] == null;
-                continue;
-            }
-
+        for (var t : targets) {
+            var from = chainEdges(chain, t);
+            t.incoming.set(from.get(0), chain.get(0));
+            for (int j = from.size(); j-- > 1;)
+                removeIncoming(t, from.get(j));
+        }
+        return true;
+    }
 
-            if (i > 0 && blocks[i] != null) {
-                if (current_block.terminator == null) {
-                    var end = new Goto(0);
-                    end.destinations[0] = blocks[i];
-                    blocks[i].incoming.add(current_block);
-                    current_block.insts.add(end);
-                    current_block.terminator = end;
-                }
-                current_block = blocks[i];
-            }
+    static ArrayList<Integer> chainEdges(ArrayList<BasicBlock> chain, BasicBlock target) {
+        var res = new ArrayList<Integer>();
+        for (int k = 0; k < target.incoming.size(); k++) {
+            if (chain.contains(target.incoming.get(k)))
+                res.add(k);
+        }
+        return res;
+    }
 
-            current_block.insts.add(inst);
-            if (inst instanceof Terminator t) {
-                for (var dest : t.destinations)
-                    dest.incoming.add(current_block);
-                current_block.terminator = t;
+    // Replaces objects that never leave the method by their fields: every
+    // GetField becomes the value the last PutField stored, or the default
+    // value, with phis where paths with different values meet, and the
+    // New goes away. Anything else done with an object, including passing
+    // it through a phi or to a constructor that does more than nothing,
+    // lets it escape.
+    static void scalarReplace(MethodGraph g) {
+        cleanPhis(g);
+        var users = users(g);
+        // A handler only gets the fields a block started with, so stores
+        // in blocks with handlers are kept.
+        var covered = new HashSet<Instruction>();
+        for (var blk : g.blocks) {
+            if (!blk.handlers.isEmpty())
+                covered.addAll(blk.insts);
+        }
+        var candidates = new ArrayList<New>();
+        for (var blk : g.blocks) {
+            for (var inst : blk.insts) {
+                if (inst instanceof New n && !escapes(n, users.get(n), covered))
+                    candidates.add(n);
             }
         }
+        if (candidates.isEmpty())
+            return;
+        for (var n : candidates)
+            replaceFields(g, n, users.get(n));
+        cleanPhis(g);
+    }
 
-        Instruction last = current_block.insts.get(current_block.insts.size()-1);
-        if (last instanceof Terminator t) {
-            current_block.terminator = t;
-        } else {
-            throw new Error("WTF? " + last.getClass().getName());
+    static boolean escapes(New obj, ArrayList<Instruction> users, HashSet<Instruction> covered) {
+        if (users == null)
+            return false;
+        for (var u : users) {
+            switch (u) {
+                case GetField f: break;
+                case PutField p: if (p.ops[1] == obj || covered.contains(p)) return true; break;
+                case InvokeSpecial i: if (!i.trivial) return true; break;
+                default: return true;
+            }
         }
+        return false;
+    }
 
-
-        resolveStack(blocks[0]);
-        var method = new MethodGraph(block_list, max_locals);
-
-        // Init locals lists
-        for (var blk : block_list) {
-                blk.inputs = new Instruction[max_locals];
-            if (blk == blocks[0]) {
-                for (int i = 0; i < param_count; i++) {
-                    blk.inputs[i] = new GetArg(i);
-                    blk.insts.add(i, blk.inputs[i]);
+    // Resolves the fields of obj to SSA values the way stackify does it
+    // for the locals.
+    static void replaceFields(MethodGraph g, New obj, ArrayList<Instruction> users) {
+        var index = new HashMap<String, Integer>();
+        var defaults = new ArrayList<Instruction>();
+        if (users != null) {
+            for (var u : users) {
+                FieldReference ref = u instanceof GetField f ? f.ref : u instanceof PutField p ? p.ref : null;
+                if (ref != null && !index.containsKey(ref.name)) {
+                    index.put(ref.name, defaults.size());
+                    var c = new Constant<Object>(defaultValue(ref.descriptor));
+                    defaults.add(c);
+                    g.entry.insts.add(0, c);
                 }
-            } else {
-                for (int i = 0; i < blk.inputs.length; i++) {
-                    blk.inputs[i] = new Phi(blk.incoming.size());
-                    blk.insts.add(i, blk.inputs[i]);
+            }
+        }
+        int count = defaults.size();
+
+        var inputs = new HashMap<BasicBlock, Instruction[]>();
+        for (var blk : g.blocks) {
+            var in = new Instruction[count];
+            for (int f = 0; f < count; f++) {
+                if (blk == g.entry) {
+                    in[f] = defaults.get(f);
+                } else {
+                    in[f] = new Phi(blk.incoming.size());
+                    blk.insertBefore(0, in[f]);
                 }
             }
+            blk.apply();
+            inputs.put(blk, in);
         }
 
-        // SSAify locals.
-        for (var blk : block_list) {
-            var locals = blk.inputs.clone();
+        for (var blk : g.blocks) {
+            var fields = inputs.get(blk).clone();
             for (int i = 0; i < blk.insts.size(); i++) {
                 var inst = blk.insts.get(i);
-                if (inst instanceof LoadLocal l) {
-                    assert locals[l.index] != null : "Loading undefined local!";
-                    method.replaceAllUsage(inst, locals[l.index]);
-                    blk.insts.remove(i);
-                    i--;
-                } else if (inst instanceof StoreLocal l) {
-                    locals[l.index] = l.ops[0];
-                    blk.insts.remove(i);
-                    i--;
-                } else if (inst instanceof IInc l) {
-                    var delta = new Constant<Integer>(l.constant);
-                    blk.insts.set(i, delta);
-                    var add = new AddInteger();
-                    add.ops[0] = locals[l.index];
-                    add.ops[1] = delta;
-                    locals[l.index] = add;
-                    blk.insts.add(i+1, add);
+                if (inst == obj) {
+                    fields = defaults.toArray(new Instruction[0]);
+                } else if (inst instanceof PutField p && p.ops[0] == obj) {
+                    fields[index.get(p.ref.name)] = p.ops[1];
+                } else if (inst instanceof GetField f && f.ops[0] == obj) {
+                    g.replaceAllUsage(f, fields[index.get(f.ref.name)]);
+                } else if (!(inst instanceof InvokeSpecial s && s.ops[0] == obj)) {
+                    continue;
                 }
+                blk.unlink(i);
             }
+            blk.apply();
             for (var dest : blk.terminator.destinations) {
                 int incoming_direction = dest.inputIndex(blk);
-                for (int i = 0; i < dest.inputs.length; i++) {
-                    ((Phi) dest.inputs[i]).ops[incoming_direction] = locals[i];
-                }
+                var in = inputs.get(dest);
+                for (int f = 0; f < count; f++)
+                    ((Phi) in[f]).ops[incoming_direction] = fields[f];
+            }
+            for (var h : blk.handlers) {
+                int incoming_direction = h.target.inputIndex(blk);
+                var in = inputs.get(h.target);
+                for (int f = 0; f < count; f++)
+                    ((Phi) in[f]).ops[incoming_direction] = inputs.get(blk)[f];
             }
         }
+    }
 
-        for (var blk : block_list)
-            blk.inputs = null;
-
+    static Object defaultValue(String descriptor) {
+        switch (descriptor.charAt(0)) {
+            case 'J': return 0L;
+            case 'F': return 0.0f;
+            case 'D': return 0.0;
+            case 'L', '[': return null;
+            default: return 0;
+        }
+    }
 
-        // Clean up unnecessary phi nodes.
-        // Needs to be iterated because this is not really all that
-        // correct, but works for now.
-        for (int iter = 0; iter < 5; iter++) {
-            for (var blk : block_list) {
-                for (int i = 0; i < blk.insts.size(); i++) {
-                    var inst = blk.insts.get(i);
-                    if (inst instanceof Phi p) {
-                        var same = p.allTheSame();
-                        if (same != null) {
-                            method.replaceAllUsage(p, same);
-                            blk.insts.remove(i);
-                            i--;
+    // Forwards stores into array elements to the loads after them, loads
+    // to later loads of the same element, and removes stores that are
+    // overwritten before anything could see them. What is known about the
+    // arrays is passed on in reverse postorder to successors that have no
+    // other predecessor, at merges it starts over.
+    static void forwardArrays(MethodGraph g) {
+        var replaced = new HashMap<Instruction, Instruction>();
+        var inherited = new HashMap<BasicBlock, ArrayList<ArrayElement>>();
+        for (var blk : g.reversePostorder()) {
+            var known = inherited.getOrDefault(blk, new ArrayList<ArrayElement>());
+            for (int i = 0; i < blk.insts.size(); i++) {
+                var inst = blk.insts.get(i);
+                for (int j = 0; j < inst.ops.length; j++)
+                    inst.ops[j] = replaced.getOrDefault(inst.ops[j], inst.ops[j]);
+                switch (inst) {
+                    case LoadArray l: {
+                        var e = new ArrayElement(l.array(), l.index(), l.kind);
+                        var same = e.find(known);
+                        if (same != null && same.value != null) {
+                            // Cannot throw, the same element was accessed before.
+                            replaced.put(l, same.value);
+                            blk.unlink(i);
+                            continue;
+                        }
+                        known.remove(same);
+                        for (var f : known)
+                            f.pending = null;
+                        e.value = l;
+                        known.add(e);
+                    } break;
+                    case StoreArray st: {
+                        var e = new ArrayElement(st.array(), st.index(), st.kind);
+                        var same = e.find(known);
+                        if (same != null && same.pending != null)
+                            blk.unlink(same.pending_at);
+                        known.removeIf(f -> f.mayAlias(e));
+                        if (same == null || st.kind == ElementKind.Reference) {
+                            for (var f : known)
+                                f.pending = null;
+                        }
+                        // The narrow kinds are cut down on the way into the
+                        // array, the value stored is not what a load gets.
+                        boolean narrow = st.kind == ElementKind.Byte || st.kind == ElementKind.Char
+                                         || st.kind == ElementKind.Short;
+                        e.value = narrow ? null : st.val();
+                        // A reference store can throw even after one to the
+                        // same element went through.
+                        e.pending = st.kind == ElementKind.Reference ? null : st;
+                        e.pending_at = i;
+                        known.add(e);
+                    } break;
+                    case Invoke x: known.clear(); break;
+                    case MonitorEnter x: known.clear(); break;
+                    case MonitorExit x: known.clear(); break;
+                    default:
+                        if (mayThrow(inst)) {
+                            for (var f : known)
+                                f.pending = null;
                         }
-                    }
                 }
             }
+            blk.apply();
+            for (var d : blk.terminator.destinations) {
+                if (d.incoming.size() != 1 || d == blk)
+                    continue;
+                var copy = new ArrayList<ArrayElement>();
+                for (var f : known)
+                    copy.add(f.copy());
+                inherited.put(d, copy);
+            }
         }
 
-        return method;
+        for (var blk : g.blocks) {
+            for (var inst : blk.insts) {
+                for (int j = 0; j < inst.ops.length; j++)
+                    inst.ops[j] = replaced.getOrDefault(inst.ops[j], inst.ops[j]);
+            }
+            if (blk.state != null) {
+                for (int j = 0; j < blk.state.length; j++)
+                    blk.state[j] = replaced.getOrDefault(blk.state[j], blk.state[j]);
+            }
+        }
     }
 
-    static void resolveStack(BasicBlock b) {
-        var stack = new ArrayList<Instruction>();
+    // Whether an exception can leave the instruction, after which whatever
+    // it was stored into arrays so far may be seen.
+    static boolean mayThrow(Instruction inst) {
+        switch (inst) {
+            case Constant i: return false;
+            case Phi i: return false;
+            case GetArg i: return false;
+            case CatchException i: return false;
+            case AddConstant i: return false;
+            case Add i: return false;
+            case Sub i: return false;
+            case Mul i: return false;
+            case Shl i: return false;
+            case Shr i: return false;
+            case UShr i: return false;
+            case And i: return false;
+            case Or i: return false;
+            case XOr i: return false;
+            case Neg i: return false;
+            case Convert i: return false;
+            case LCmp i: return false;
+            case FCmp i: return false;
+            case DCmp i: return false;
+            default: return true;
+        }
+    }
 
-        for (Instruction inst : b.insts) {
-            int end = inst instanceof Phi ? 0 : inst.ops.length;
-            for (int i = end; i-- > 0;) {
-                int back = stack.size() - 1;
-                inst.ops[i] = stack.get(back);
-                stack.remove(back);
+    // Copies the bodies of loops, so that the Executor goes around them
+    // fewer times. A loop whose test only depends on constants gets a copy
+    // for every iteration instead. The first iteration is copied in front
+    // of a loop when a branch in it only depends on constants then. And a
+    // counted loop that goes around often gets a loop in front that does
+    // UNROLL_FACTOR iterations at a time without the test in between,
+    // leaving the iterations that remain to the original. Inner loops go
+    // first, and every loop is only done once.
+    static void unroll(MethodGraph g) {
+        var done = new HashSet<BasicBlock>();
+        boolean changed = false;
+        while (true) {
+            // Loops around one that changed are found again next time.
+            var touched = new HashSet<BasicBlock>();
+            boolean again = false;
+            for (var loop : findLoops(g)) {
+                if (done.contains(loop.header) || !Collections.disjoint(touched, loop.blocks))
+                    continue;
+                done.add(loop.header);
+                var pre = loop.pre;
+                if (unrollLoop(g, loop, done)) {
+                    touched.addAll(loop.blocks);
+                    touched.add(pre);
+                    touched.add(loop.exit);
+                    again = true;
+                }
             }
+            if (!again)
+                break;
+            foldConstants(g);
+            changed = true;
+        }
+        if (changed) {
+            removeUnused(g);
+            mergeBlocks(g);
+        }
+    }
 
-            for (int j = 0; j < inst.result_count; j++) {
-                stack.add(inst);
+    static boolean unrollLoop(MethodGraph g, NaturalLoop loop, HashSet<BasicBlock> done) {
+        // Copies of a loop the profile found cold only take up room.
+        if (loop.header.cold)
+            return false;
+        boolean counted = countedLoop(loop);
+        if (counted) {
+            int trips = tripCount(loop);
+            if (trips >= 0 && (trips + 1) * loop.size <= UNROLL_SIZE && peel(g, loop, done)) {
+                for (int k = 0; k < trips; k++)
+                    peel(g, loop, done);
+                return true;
             }
         }
+        // Before peeling, which leaves the copy with the counts of the loop.
+        boolean repeat = counted && unrollable(loop) && iterates(g, loop)
+                         && UNROLL_FACTOR * loop.size <= UNROLL_SIZE;
+        boolean peeled = loop.size <= UNROLL_SIZE && foldsWhenPeeled(loop) && peel(g, loop, done);
+        if (repeat)
+            unrollCounted(g, loop, done);
+        return peeled || repeat;
+    }
+
+    // The loops of g, smaller ones first. Loops that are entered or left
+    // in more than one place, that have more than one back edge or that
+    // have handlers are left out.
+    static ArrayList<NaturalLoop> findLoops(MethodGraph g) {
+        var position = new HashMap<BasicBlock, Integer>();
+        var order = g.reversePostorder();
+        for (var blk : order)
+            position.put(blk, position.size());
+
+        var loops = new ArrayList<NaturalLoop>();
+        for (var head : order) {
+            if (head == g.entry || head.incoming.size() != 2)
+                continue;
+            var loop = new NaturalLoop();
+            loop.header = head;
+            for (var inc : head.incoming) {
+                if (position.containsKey(inc) && position.get(inc) >= position.get(head))
+                    loop.latch = inc;
+                else
+                    loop.pre = inc;
+            }
+            if (loop.latch == null || loop.pre == null
+                || !Arrays.asList(loop.latch.terminator.destinations).contains(head))
+                continue;
 
-        for (var dest : b.terminator.destinations) {
-            if (dest.inputs == null) {
-                dest.inputs = new Phi[stack.size()];
+            // The blocks that reach the latch without going through the
+            // header. Reaching the entry means the header does not come
+            // first.
+            var body = new HashSet<BasicBlock>();
+            var work = new ArrayList<BasicBlock>();
+            body.add(head);
+            if (body.add(loop.latch))
+                work.add(loop.latch);
+            boolean entered = false;
+            while (!work.isEmpty() && !entered) {
+                var blk = work.remove(work.size() - 1);
+                entered = blk == g.entry;
+                for (var inc : blk.incoming) {
+                    if (body.add(inc))
+                        work.add(inc);
+                }
+            }
+            if (entered)
+                continue;
 
-                for (int i = 0; i < stack.size(); i++) {
-                    dest.inputs[i] = new Phi(dest.incoming.size());
-                    dest.insts.add(i, dest.inputs[i]);
+            boolean ok = true;
+            int exits = 0;
+            for (var blk : g.blocks) {
+                if (!body.contains(blk))
+                    continue;
+                loop.blocks.add(blk);
+                loop.insts.addAll(blk.insts);
+                loop.size += blk.insts.size();
+                ok &= blk.handlers.isEmpty() && !(blk.insts.get(0) instanceof CatchException);
+                if (blk != head)
+                    ok &= body.containsAll(blk.incoming);
+                for (var d : blk.terminator.destinations) {
+                    if (!body.contains(d)) {
+                        loop.exiting = blk;
+                        loop.exit = d;
+                        exits++;
+                    }
                 }
-                resolveStack(dest);
+            }
+            if (ok && exits == 1)
+                loops.add(loop);
+        }
+        loops.sort((a, b) -> Integer.compare(a.size, b.size));
+        return loops;
+    }
+
+    // Whether the loop is left by comparing a phi of the header that goes
+    // up by a constant every iteration, or a constant away from it, with
+    // something that is the same in every iteration.
+    static boolean countedLoop(NaturalLoop loop) {
+        var h = loop.header;
+        int k_pre = h.incoming.indexOf(loop.pre);
+        var br = loop.exiting.terminator;
+        Instruction lhs, rhs;
+        Compare c;
+        switch (br) {
+            case If i: lhs = i.condition(); rhs = null; c = i.comparison; break;
+            case IfCmp i: lhs = i.lhs(); rhs = i.rhs(); c = i.comparison; break;
+            default: return false;
+        }
+        if (!loop.blocks.contains(br.destinations[0]))
+            c = negate(c);
+
+        for (var inst : h.insts) {
+            if (!(inst instanceof Phi p))
+                continue;
+            var step = offsetOf(p.ops[1 - k_pre], p);
+            if (step == null || step == 0)
+                continue;
+            var chain = new LinkedHashSet<Instruction>();
+            Integer offset;
+            if ((offset = offsetOf(lhs, p)) != null && invariant(loop, rhs, chain)) {
+                loop.bound = rhs;
+                loop.comparison = c;
+            } else if (rhs != null && (offset = offsetOf(rhs, p)) != null && invariant(loop, lhs, chain)) {
+                loop.bound = lhs;
+                loop.comparison = flip(c);
             } else {
-                assert dest.inputs.length == stack.size() : "Unbalanced stack!";
+                continue;
             }
-            int in_idx = dest.inputIndex(b);
+            loop.iv = p;
+            loop.step = step;
+            loop.offset = offset;
+            loop.chain = chain;
+            return true;
+        }
+        return false;
+    }
+
+    // d if v is base + d, null if it is not.
+    static Integer offsetOf(Instruction v, Instruction base) {
+        if (v == base)
+            return 0;
+        if (v instanceof AddInteger add && add.lhs() == base && add.rhs() instanceof Constant c && c.val instanceof Integer d)
+            return d;
+        if (v instanceof AddInteger add && add.rhs() == base && add.lhs() instanceof Constant c && c.val instanceof Integer d)
+            return d;
+        if (v instanceof SubInteger sub && sub.lhs() == base && sub.rhs() instanceof Constant c && c.val instanceof Integer d)
+            return -d;
+        return null;
+    }
 
-            for (int i = 0; i < stack.size(); i++) {
-                ((Phi) dest.inputs[i]).ops[in_idx] = stack.get(i);
+    // Whether v is the same in every iteration of the loop. What of the
+    // loop it is computed by goes to chain, in order, so that it can be
+    // computed in front of the loop instead. The length of an array can
+    // only be if it is taken before anything in the header that could
+    // throw, so that it throws at the same time in front of the loop.
+    static boolean invariant(NaturalLoop loop, Instruction v, LinkedHashSet<Instruction> chain) {
+        if (v == null || !loop.insts.contains(v) || chain.contains(v))
+            return true;
+        boolean pure;
+        if (v instanceof ArrayLength) {
+            pure = false;
+            for (var inst : loop.header.insts) {
+                if (inst == v)
+                    pure = true;
+                if (inst == v || mayThrow(inst))
+                    break;
             }
+        } else {
+            pure = !(v instanceof Phi) && !(v instanceof GetArg) && !(v instanceof CatchException) && !mayThrow(v);
+        }
+        if (!pure)
+            return false;
+        for (var op : v.ops) {
+            if (!invariant(loop, op, chain))
+                return false;
         }
+        chain.add(v);
+        return true;
     }
 
-    static ParsedMethod parseCode(DataInputStream is, ClassFile cf) throws IOException {
-        var parsed = new ParsedMethod();
-        parsed.max_stack = is.readShort();
-        parsed.max_locals = is.readShort();
+    // How often a counted loop goes around when the test only depends on
+    // constants, -1 if not or more than UNROLL_FULL times.
+    static int tripCount(NaturalLoop loop) {
+        var init = loop.iv.ops[loop.header.incoming.indexOf(loop.pre)];
+        Integer bound = loop.bound == null ? Integer.valueOf(0)
+                      : loop.bound instanceof Constant b && b.val instanceof Integer v ? v : null;
+        if (!(init instanceof Constant c && c.val instanceof Integer start) || bound == null)
+            return -1;
+        int x = start + loop.offset;
+        for (int k = 0; k <= UNROLL_FULL; k++) {
+            if (!Executor.compare(loop.comparison, x, bound))
+                return k;
+            x += loop.step;
+        }
+        return -1;
+    }
 
-        var code = new byte[is.readInt()];
-        is.read(code);
+    // Whether the test stays in the loop for UNROLL_FACTOR iterations if it
+    // does for the last of them. That is if the compared value moves
+    // towards the bound from the induction variable on, and by little
+    // enough that the difference to the bound can be computed as an int.
+    static boolean unrollable(NaturalLoop loop) {
+        int most = 1 << 16;
+        if (loop.step < -most || loop.step > most || loop.offset < -most || loop.offset > most)
+            return false;
+        if (loop.step > 0)
+            return loop.offset >= 0 && (loop.comparison == Compare.Lt || loop.comparison == Compare.Le);
+        return loop.offset <= 0 && (loop.comparison == Compare.Gt || loop.comparison == Compare.Ge);
+    }
 
-        var a = parsed.insts = new Instruction[code.length];
-        ConstObject[] const_pool = cf.constants;
+    // Whether the loop goes around UNROLL_FACTOR times per entry, according
+    // to the profile. Graphs built without one move on to one built with
+    // one at their loop headers, which would not be found in the copies,
+    // so generated graphs are the only ones unrolled without.
+    static boolean iterates(MethodGraph g, NaturalLoop loop) {
+        if (!g.has_profile)
+            return g.cf == null;
+        return edgeCount(loop.latch, loop.header) >= UNROLL_FACTOR * Math.max(1, edgeCount(loop.pre, loop.header));
+    }
 
-        int idx;
-        ConstObject obj;
+    // Whether a branch of the loop, other than the test that leaves it,
+    // only depends on constants in the first iteration.
+    static boolean foldsWhenPeeled(NaturalLoop loop) {
+        int k_pre = loop.header.incoming.indexOf(loop.pre);
+        var first = new HashMap<Instruction, Integer>();
+        for (var inst : loop.header.insts) {
+            if (inst instanceof Phi p && p.ops[k_pre] instanceof Constant c && c.val instanceof Integer v)
+                first.put(p, v);
+        }
+        if (first.isEmpty())
+            return false;
+        for (var blk : loop.blocks) {
+            var t = blk.terminator;
+            if (blk == loop.exiting || !(t instanceof If || t instanceof IfCmp))
+                continue;
+            boolean known = true;
+            for (var op : t.ops)
+                known &= firstValue(loop, op, first) != null;
+            if (known)
+                return true;
+        }
+        return false;
+    }
 
-        for (int i = 0; i < code.length; i++) {
-            int opcode = ((int)code[i]) & 0xff;
-            int begin = i;
-            switch (opcode) {
-                case 0x00: a[begin] = (new Nop()); break;
-                case 0x01: a[begin] = (new Constant<Object>(null)); break;
-                case 0x02: a[begin] = (new Constant<Integer>(-1)); break;
-                case 0x03: a[begin] = (new Constant<Integer>(0)); break;
-                case 0x04: a[begin] = (new Constant<Integer>(1)); break;
-                case 0x05: a[begin] = (new Constant<Integer>(2)); break;
-                case 0x06: a[begin] = (new Constant<Integer>(3)); break;
-                case 0x07: a[begin] = (new Constant<Integer>(4)); break;
-                case 0x08: a[begin] = (new Constant<Integer>(5)); break;
-                case 0x09: a[begin] = (new Constant<Long>((long)0)); break;
-                case 0x0a: a[begin] = (new Constant<Long>((long)1)); break;
-                case 0x0b: a[begin] = (new Constant<Float>(0f)); break;
-                case 0x0c: a[begin] = (new Constant<Float>(1f)); break;
-                case 0x0d: a[begin] = (new Constant<Float>(2f)); break;
-                case 0x0e: a[begin] = (new Constant<Double>(0.0)); break;
-                case 0x0f: a[begin] = (new Constant<Double>(1.0)); break;
-                case 0x10: a[begin] = (new Constant<Integer>((int)code[++i])); break;
-                case 0x11: a[begin] = (new Constant<Short>((short)(code[++i] << 8 | code[++i]))); break;
-                case 0x12: a[begin] = (new Constant((ConstantEntry) const_pool[code[++i]])); break;
-                case 0x13:
-                case 0x14:
-                    obj = const_pool[code[++i] << 8 | code[++i]];
-                    a[begin] = (new Constant((ConstantEntry) obj));
-                    break;
-                case 0x15: a[begin] = (new LoadLocal<Integer>(code[++i])); break;
-                case 0x16: a[begin] = (new LoadLocal<Long>(code[++i])); break;
-                case 0x17: a[begin] = (new LoadLocal<Float>(code[++i])); break;
-                case 0x18: a[begin] = (new LoadLocal<Double>(code[++i])); break;
-                case 0x19: a[begin] = (new LoadLocal<Object>(code[++i])); break;
-                case 0x1a: a[begin] = (new LoadLocal<Integer>(0)); break;
-                case 0x1b: a[begin] = (new LoadLocal<Integer>(1)); break;
-                case 0x1c: a[begin] = (new LoadLocal<Integer>(2)); break;
-                case 0x1d: a[begin] = (new LoadLocal<Integer>(3)); break;
-                case 0x1e: a[begin] = (new LoadLocal<Long>(0)); break;
-                case 0x1f: a[begin] = (new LoadLocal<Long>(1)); break;
-                case 0x20: a[begin] = (new LoadLocal<Long>(2)); break;
-                case 0x21: a[begin] = (new LoadLocal<Long>(3)); break;
-                case 0x22: a[begin] = (new LoadLocal<Float>(0)); break;
-                case 0x23: a[begin] = (new LoadLocal<Float>(1)); break;
-                case 0x24: a[begin] = (new LoadLocal<Float>(2)); break;
-                case 0x25: a[begin] = (new LoadLocal<Float>(3)); break;
-                case 0x26: a[begin] = (new LoadLocal<Double>(0)); break;
-                case 0x27: a[begin] = (new LoadLocal<Double>(1)); break;
-                case 0x28: a[begin] = (new LoadLocal<Double>(2)); break;
-                case 0x29: a[begin] = (new LoadLocal<Double>(3)); break;
-                case 0x2a: a[begin] = (new LoadLocal<Object>(0)); break;
-                case 0x2b: a[begin] = (new LoadLocal<Object>(1)); break;
-                case 0x2c: a[begin] = (new LoadLocal<Object>(2)); break;
-                case 0x2d: a[begin] = (new LoadLocal<Object>(3)); break;
-                case 0x2e: a[begin] = (new LoadArray<Integer>()); break;
-                case 0x2f: a[begin] = (new LoadArray<Long>()); break;
-                case 0x30: a[begin] = (new LoadArray<Float>()); break;
-                case 0x31: a[begin] = (new LoadArray<Double>()); break;
-                case 0x32: a[begin] = (new LoadArray<Object>()); break;
-                case 0x33: a[begin] = (new LoadArray<Byte>()); break;
-                case 0x34: a[begin] = (new LoadArray<Character>()); break;
-                case 0x35: a[begin] = (new LoadArray<Short>()); break;
-                case 0x36: a[begin] = (new StoreLocal<Integer>(code[++i])); break;
-                case 0x37: a[begin] = (new StoreLocal<Long>(code[++i])); break;
-                case 0x38: a[begin] = (new StoreLocal<Float>(code[++i])); break;
-                case 0x39: a[begin] = (new StoreLocal<Double>(code[++i])); break;
-                case 0x3a: a[begin] = (new StoreLocal<Object>(code[++i])); break;
-                case 0x3b: a[begin] = (new StoreLocal<Integer>(0)); break;
-                case 0x3c: a[begin] = (new StoreLocal<Integer>(1)); break;
-                case 0x3d: a[begin] = (new StoreLocal<Integer>(2)); break;
-                case 0x3e: a[begin] = (new StoreLocal<Integer>(3)); break;
-                case 0x3f: a[begin] = (new StoreLocal<Long>(0)); break;
-                case 0x40: a[begin] = (new StoreLocal<Long>(1)); break;
-                case 0x41: a[begin] = (new StoreLocal<Long>(2)); break;
-                case 0x42: a[begin] = (new StoreLocal<Long>(3)); break;
-                case 0x43: a[begin] = (new StoreLocal<Float>(0)); break;
-                case 0x44: a[begin] = (new StoreLocal<Float>(1)); break;
-                case 0x45: a[begin] = (new StoreLocal<Float>(2)); break;
-                case 0x46: a[begin] = (new StoreLocal<Float>(3)); break;
-                case 0x47: a[begin] = (new StoreLocal<Double>(0)); break;
-                case 0x48: a[begin] = (new StoreLocal<Double>(1)); break;
-                case 0x49: a[begin] = (new StoreLocal<Double>(2)); break;
-                case 0x4a: a[begin] = (new StoreLocal<Double>(3)); break;
-                case 0x4b: a[begin] = (new StoreLocal<Object>(0)); break;
-                case 0x4c: a[begin] = (new StoreLocal<Object>(1)); break;
-                case 0x4d: a[begin] = (new StoreLocal<Object>(2)); break;
-                case 0x4e: a[begin] = (new StoreLocal<Object>(3)); break;
-                case 0x4f: a[begin] = (new StoreArray<Integer>()); break;
-                case 0x50: a[begin] = (new StoreArray<Long>()); break;
-                case 0x51: a[begin] = (new StoreArray<Float>()); break;
-                case 0x52: a[begin] = (new StoreArray<Double>()); break;
-                case 0x53: a[begin] = (new StoreArray<Object>()); break;
-                case 0x54: a[begin] = (new StoreArray<Byte>()); break;
-                case 0x55: a[begin] = (new StoreArray<Character>()); break;
-                case 0x56: a[begin] = (new StoreArray<Short>()); break;
-                case 0x57:
-                case 0x58:
-                case 0x59:
-                case 0x5a:
-                case 0x5b:
-                case 0x5c:
-                case 0x5d:
-                case 0x5e:
-                case 0x5f: // swap
-                case 0x60: a[begin] = (new AddInteger()); break;
-                case 0x61: a[begin] = (new AddLong()); break;
-                case 0x62: a[begin] = (new AddFloat()); break;
-                case 0x63: a[begin] = (new AddDouble()); break;
-                case 0x64: a[begin] = (new SubInteger()); break;
-                case 0x65: a[begin] = (new SubLong()); break;
-                case 0x66: a[begin] = (new SubFloat()); break;
-                case 0x67: a[begin] = (new SubDouble()); break;
-                case 0x68: a[begin] = (new MulInteger()); break;
-                case 0x69: a[begin] = (new MulLong()); break;
-                case 0x6a: a[begin] = (new MulFloat()); break;
-                case 0x6b: a[begin] = (new MulDouble()); break;
-                case 0x6c: a[begin] = (new DivInteger()); break;
-                case 0x6d: a[begin] = (new DivLong()); break;
-                case 0x6e: a[begin] = (new DivFloat()); break;
-                case 0x6f: a[begin] = (new DivDouble()); break;
-                case 0x70: a[begin] = (new RemInteger()); break;
-                case 0x71: a[begin] = (new RemLong()); break;
-                case 0x72: a[begin] = (new RemFloat()); break;
-                case 0x73: a[begin] = (new RemDouble()); break;
-                case 0x74: a[begin] = (new NegInteger()); break;
-                case 0x75: a[begin] = (new NegLong()); break;
-                case 0x76: a[begin] = (new NegFloat()); break;
-                case 0x77: a[begin] = (new NegDouble()); break;
-                case 0x78: a[begin] = (new ShlInteger()); break;
-                case 0x79: a[begin] = (new ShlLong()); break;
-                case 0x7a: a[begin] = (new ShrInteger()); break;
-                case 0x7b: a[begin] = (new ShrLong()); break;
-                case 0x7c: a[begin] = (new UShrInteger()); break;
-                case 0x7d: a[begin] = (new UShrLong()); break;
-                case 0x7e: a[begin] = (new AndInteger()); break;
-                case 0x7f: a[begin] = (new AndLong()); break;
-                case 0x80: a[begin] = (new OrInteger()); break;
-                case 0x81: a[begin] = (new OrLong()); break;
-                case 0x82: a[begin] = (new XOrInteger()); break;
-                case 0x83: a[begin] = (new XOrLong()); break;
-                case 0x84: a[begin] = (new IInc(code[++i], code[++i])); break;
-                case 0x85: a[begin] = (new ConvertIntegerLong()); break;
-                case 0x86: a[begin] = (new ConvertIntegerFloat()); break;
-                case 0x87: a[begin] = (new ConvertIntegerDouble()); break;
-                case 0x88: a[begin] = (new ConvertLongInteger()); break;
-                case 0x89: a[begin] = (new ConvertLongFloat()); break;
-                case 0x8a: a[begin] = (new ConvertLongDouble()); break;
-                case 0x8b: a[begin] = (new ConvertFloatInteger()); break;
-                case 0x8c: a[begin] = (new ConvertFloatLong()); break;
-                case 0x8d: a[begin] = (new ConvertFloatDouble()); break;
-                case 0x8e: a[begin] = (new ConvertDoubleInteger()); break;
-                case 0x8f: a[begin] = (new ConvertDoubleLong()); break;
-                case 0x90: a[begin] = (new ConvertDoubleFloat()); break;
-                case 0x91: a[begin] = (new ConvertIntegerByte()); break;
-                case 0x92: a[begin] = (new ConvertIntegerCharacter()); break;
-                case 0x93: a[begin] = (new ConvertIntegerShort()); break;
-                case 0x94: a[begin] = (new LCmp()); break;
-                case 0x95: a[begin] = (new FCmp(false)); break;
-                case 0x96: a[begin] = (new FCmp(true)); break;
-                case 0x97: a[begin] = (new DCmp(false)); break;
-                case 0x98: a[begin] = (new DCmp(true)); break;
-                case 0x99: a[begin] = (new If(Compare.Eq, code[++i] << 8 | code[++i])); break;
-                case 0x9a: a[begin] = (new If(Compare.Ne, code[++i] << 8 | code[++i])); break;
-                case 0x9b: a[begin] = (new If(Compare.Lt, code[++i] << 8 | code[++i])); break;
-                case 0x9c: a[begin] = (new If(Compare.Ge, code[++i] << 8 | code[++i])); break;
-                case 0x9d: a[begin] = (new If(Compare.Gt, code[++i] << 8 | code[++i])); break;
-                case 0x9e: a[begin] = (new If(Compare.Le, code[++i] << 8 | code[++i])); break;
-                case 0x9f: a[begin] = (new IfCmp(Compare.Eq, code[++i] << 8 | code[++i])); break;
-                case 0xa0: a[begin] = (new IfCmp(Compare.Ne, code[++i] << 8 | code[++i])); break;
-                case 0xa1: a[begin] = (new IfCmp(Compare.Lt, code[++i] << 8 | code[++i])); break;
-                case 0xa2: a[begin] = (new IfCmp(Compare.Ge, code[++i] << 8 | code[++i])); break;
-                case 0xa3: a[begin] = (new IfCmp(Compare.Gt, code[++i] << 8 | code[++i])); break;
-                case 0xa4: a[begin] = (new IfCmp(Compare.Le, code[++i] << 8 | code[++i])); break;
-                case 0xa5: a[begin] = (new IfACmp(true, code[++i] << 8 | code[++i])); break;
-                case 0xa6: a[begin] = (new IfACmp(false, code[++i] << 8 | code[++i])); break;
-                case 0xa7:
-                    idx = code[++i] << 8 | code[++i];
-                    a[begin] = (new Goto((short) idx));
-                    break;
-                case 0xa8: // JSR, deprecated
-                case 0xa9: // RET, deprecated
-                    break;
-                case 0xaa:
-//                     int default_ = code[++i] << 24 | code[++i] << 16 | code[++i] << 8 | code[++i];
-//                     int low = code[++i] << 24 | code[++i] << 16 | code[++i] << 8 | code[++i];
-//                     int high = code[++i] << 24 | code[++i] << 16 | code[++i] << 8 | code[++i];
-//                     // jump offsets ???
-//                     a[begin] = (new TableSwitch(default_, low, high));
-                    break;
-                case 0xab:
-//                     int default_ = code[++i] << 24 | code[++i] << 16 | code[++i] << 8 | code[++i];
-//                     int npairs = code[++i] << 24 | code[++i] << 16 | code[++i] << 8 | code[++i];
-//                     // pairs ???
-//                     a[begin] = (new LookupSwitch(default_, npairs));
-                    break;
-                case 0xac: a[begin] = (new Return<Integer>()); break;
-                case 0xad: a[begin] = (new Return<Long>()); break;
-                case 0xae: a[begin] = (new Return<Float>()); break;
-                case 0xaf: a[begin] = (new Return<Double>()); break;
-                case 0xb0: a[begin] = (new Return<Object>()); break;
-                case 0xb1: a[begin] = (new Return<Void>()); break;
-                case 0xb2:
-//                     obj = const_pool[code[++i] << 8 | code[++i]];
-//                     a[begin] = (new GetStatic((FieldReference) obj));
-                    break;
-                case 0xb3:
-//                     obj = const_pool[code[++i] << 8 | code[++i]];
-//                     a[begin] = (new PutStatic((FieldReference) obj));
-                    break;
-                case 0xb4:
-                    obj = const_pool[code[++i] << 8 | code[++i]];
-                    a[begin] = (new GetField((FieldReference) obj));
-                    break;
-                case 0xb5:
-                    obj = const_pool[code[++i] << 8 | code[++i]];
-                    a[begin] = (new PutField((FieldReference) obj));
-                    break;
-                case 0xb6:
-//                     obj = const_pool[code[++i] << 8 | code[++i]];
-//                     a[begin] = (new InvokeVirtual((MethodReference) obj));
-//                     break;
-//                 case 0xb7:
-//                     obj = const_pool[code[++i] << 8 | code[++i]];
-//                     a[begin] = (new InvokeSpecial((MethodReference) obj));
-//                     break;
-//                 case 0xb8:
-//                     obj = const_pool[code[++i] << 8 | code[++i]];
-//                     a[begin] = (new InvokeStatic((MethodReference) obj));
-//                     break;
-//                 case 0xb9:
-//                     obj = const_pool[code[++i] << 8 | code[++i]];
-//                     idx = code[++i];
-//                     ++i;
-//                     a[begin] = (new InvokeInterface((MethodReference) obj, idx));
-//                     break;
-//                 case 0xba:
-//                     obj = const_pool[code[++i] << 8 | code[++i]];
-//                     i++;
-//                     i++;
-//                     a[begin] = (new InvokeDynamic((MethodReference) obj));
-//                     break;
-                case 0xbb:
-                    obj = const_pool[code[++i] << 8 | code[++i]];
-                    a[begin] = (new New((ClassReference) obj));
-                    break;
-                case 0xbc: a[begin] = (new NewArray(code[++i])); break;
-                case 0xbd:
-                    obj = const_pool[code[++i] << 8 | code[++i]];
-                    a[begin] = (new NewObjArray((ClassReference) obj));
-                    break;
-                case 0xbe: a[begin] = (new ArrayLength()); break;
-                case 0xbf: a[begin] = (new Throw()); break;
-                case 0xc0:
-                    obj = const_pool[code[++i] << 8 | code[++i]];
-                    a[begin] = (new CheckCast((ClassReference) obj));
-                    break;
-                case 0xc1:
-                    obj = const_pool[code[++i] << 8 | code[++i]];
-                    a[begin] = (new InstanceOf((ClassReference) obj));
-                    break;
-                case 0xc2: a[begin] = (new MonitorEnter()); break;
-                case 0xc3: a[begin] = (new MonitorExit()); break;
-                case 0xc4: // wide ???
-                case 0xc5:
-                    obj = const_pool[code[++i] << 8 | code[++i]];
-                    idx = code[++i]; // dimensions
-                    a[begin] = (new MultiNewArray((ClassReference) obj, idx));
-                    break;
-                case 0xc6: a[begin] = (new IfCheckNull(true, code[++i] << 8 | code[++i])); break;
-                case 0xc7: a[begin] = (new IfCheckNull(false, code[++i] << 8 | code[++i])); break;
-                case 0xc8: a[begin] = (new Goto(code[++i] << 24 | code[++i] << 16 | code[++i] << 8 | code[++i])); break;
-                case 0xc9: // JSR, deprecated
+    static Integer firstValue(NaturalLoop loop, Instruction v, HashMap<Instruction, Integer> first) {
+        if (v instanceof Constant c && c.val instanceof Integer k)
+            return k;
+        if (first.containsKey(v))
+            return first.get(v);
+        if (!(v instanceof BinaryOperation) || !loop.insts.contains(v))
+            return null;
+        var lhs = firstValue(loop, v.ops[0], first);
+        var rhs = firstValue(loop, v.ops[1], first);
+        return lhs == null || rhs == null ? null : foldInt(v, lhs, rhs);
+    }
+
+    // Copies the first iteration of the loop in front of it. Where the
+    // copy leaves the loop too, the values of the loop used after it get
+    // a phi. Gives up if they are used after a block that other blocks go
+    // to as well.
+    static boolean peel(MethodGraph g, NaturalLoop loop, HashSet<BasicBlock> done) {
+        var exit = loop.exit;
+        var used = new HashMap<Instruction, Phi>();
+        for (var blk : g.blocks) {
+            if (loop.blocks.contains(blk))
+                continue;
+            for (var inst : blk.insts) {
+                if (blk == exit && inst instanceof Phi)
+                    continue;
+                for (var op : inst.ops) {
+                    if (loop.insts.contains(op))
+                        used.put(op, null);
+                }
+            }
+            if (blk.state != null) {
+                for (var v : blk.state) {
+                    if (loop.insts.contains(v))
+                        used.put(v, null);
+                }
+            }
+        }
+        if (!used.isEmpty() && exit.incoming.size() != 1)
+            return false;
+
+        var h = loop.header;
+        int k_pre = h.incoming.indexOf(loop.pre);
+        var map = new HashMap<Instruction, Instruction>();
+        var copies = cloneBlocks(loop.blocks, map, done);
+        var first = copies.get(h);
+        var last = copies.get(loop.latch);
+        removeIncoming(first, 1 - k_pre);
+        redirect(loop.pre, h, first);
+        redirect(last, first, h);
+        h.incoming.set(k_pre, last);
+        for (var inst : h.insts) {
+            if (inst instanceof Phi p)
+                p.ops[k_pre] = map.getOrDefault(p.ops[1 - k_pre], p.ops[1 - k_pre]);
+        }
+
+        if (!used.isEmpty()) {
+            for (var v : used.keySet()) {
+                var p = new Phi(1);
+                p.ops[0] = v;
+                exit.insts.add(0, p);
+                used.put(v, p);
+            }
+            for (var blk : g.blocks) {
+                if (loop.blocks.contains(blk))
+                    continue;
+                for (var inst : blk.insts) {
+                    if (blk == exit && inst instanceof Phi)
+                        continue;
+                    for (int j = 0; j < inst.ops.length; j++) {
+                        if (used.get(inst.ops[j]) != null)
+                            inst.ops[j] = used.get(inst.ops[j]);
+                    }
+                }
+                if (blk.state != null) {
+                    for (int j = 0; j < blk.state.length; j++) {
+                        if (used.get(blk.state[j]) != null)
+                            blk.state[j] = used.get(blk.state[j]);
+                    }
+                }
+            }
+        }
+        int k = exit.inputIndex(loop.exiting);
+        exit.incoming.add(copies.get(loop.exiting));
+        for (var inst : exit.insts) {
+            if (inst instanceof Phi p) {
+                var ops = Arrays.copyOf(p.ops, p.ops.length + 1);
+                ops[p.ops.length] = map.getOrDefault(p.ops[k], p.ops[k]);
+                p.ops = ops;
+            }
+        }
+
+        g.blocks.addAll(g.blocks.indexOf(h), copies.values());
+        loop.pre = last;
+        return true;
+    }
+
+    // Puts a loop in front of a counted one that does UNROLL_FACTOR
+    // iterations at a time without testing, for as long as the test would
+    // stay in the loop for all of them: while iv comparison limit, with
+    // limit = bound - (offset + (UNROLL_FACTOR - 1) * step) computed once
+    // in front. If computing the limit overflows, the loop is left as it
+    // is. What remains is done by the original loop.
+    static void unrollCounted(MethodGraph g, NaturalLoop loop, HashSet<BasicBlock> done) {
+        var h = loop.header;
+        int k_pre = h.incoming.indexOf(loop.pre);
+        int k_latch = 1 - k_pre;
+        int k_stay = loop.blocks.contains(loop.exiting.terminator.destinations[0]) ? 0 : 1;
+
+        var check = new BasicBlock();
+        var hoisted = new HashMap<Instruction, Instruction>();
+        for (var inst : loop.chain) {
+            var c = inst.copy();
+            for (int j = 0; j < c.ops.length; j++)
+                c.ops[j] = hoisted.getOrDefault(c.ops[j], c.ops[j]);
+            hoisted.put(inst, c);
+            check.insts.add(c);
+        }
+        var bound = loop.bound == null ? new Constant<Integer>(0) : hoisted.getOrDefault(loop.bound, loop.bound);
+        if (loop.bound == null)
+            check.insts.add(bound);
+        var distance = new Constant<Integer>(loop.offset + (UNROLL_FACTOR - 1) * loop.step);
+        var limit = new SubInteger();
+        limit.ops[0] = bound;
+        limit.ops[1] = distance;
+        var fits = new IfCmp(loop.step > 0 ? Compare.Lt : Compare.Gt, 0);
+        fits.ops[0] = limit;
+        fits.ops[1] = bound;
+        check.insts.add(distance);
+        check.insts.add(limit);
+        check.insts.add(fits);
+        check.terminator = fits;
+        check.incoming.add(loop.pre);
+
+        var head = new BasicBlock();
+        var start = new HashMap<Instruction, Instruction>();
+        for (var inst : h.insts) {
+            if (inst instanceof Phi p) {
+                var q = new Phi(2);
+                q.ops[0] = p.ops[k_pre];
+                head.insts.add(q);
+                start.put(p, q);
+            }
+        }
+        var stay = new IfCmp(loop.comparison, 0);
+        stay.ops[0] = start.get(loop.iv);
+        stay.ops[1] = limit;
+        head.insts.add(stay);
+        head.terminator = stay;
+        head.incoming.add(check);
+
+        var added = new ArrayList<BasicBlock>(List.of(check, head));
+        var values = start;
+        BasicBlock from = head;
+        BasicBlock previous = null;
+        for (int n = 0; n < UNROLL_FACTOR; n++) {
+            var map = new HashMap<Instruction, Instruction>();
+            var copies = cloneBlocks(loop.blocks, map, done);
+            var first = copies.get(h);
+            first.incoming.clear();
+            first.incoming.add(from);
+            for (var inst : h.insts) {
+                if (inst instanceof Phi p)
+                    map.get(p).ops = new Instruction[]{values.get(p)};
+            }
+            if (previous == null)
+                stay.destinations[0] = first;
+            else
+                redirect(from, previous, first);
+
+            // The test would stay, and what the bound is computed by is
+            // already there.
+            var exiting = copies.get(loop.exiting);
+            var go = new Goto(0);
+            go.destinations[0] = exiting.terminator.destinations[k_stay];
+            exiting.insts.set(exiting.insts.size() - 1, go);
+            exiting.terminator = go;
+            if (exiting.profiled != null)
+                exiting.profiled = new long[]{exiting.profiled[k_stay]};
+            var replaced = new HashMap<Instruction, Instruction>();
+            for (var inst : loop.chain)
+                replaced.put(map.get(inst), hoisted.get(inst));
+            for (var blk : copies.values()) {
+                blk.insts.removeIf(replaced::containsKey);
+                for (var inst : blk.insts) {
+                    for (int j = 0; j < inst.ops.length; j++)
+                        inst.ops[j] = replaced.getOrDefault(inst.ops[j], inst.ops[j]);
+                }
+                if (blk.state != null) {
+                    for (int j = 0; j < blk.state.length; j++)
+                        blk.state[j] = replaced.getOrDefault(blk.state[j], blk.state[j]);
+                }
+            }
+            added.addAll(copies.values());
+
+            var next = new HashMap<Instruction, Instruction>();
+            for (var inst : h.insts) {
+                if (inst instanceof Phi p) {
+                    var v = map.getOrDefault(p.ops[k_latch], p.ops[k_latch]);
+                    next.put(p, replaced.getOrDefault(v, v));
+                }
+            }
+            values = next;
+            from = copies.get(loop.latch);
+            previous = first;
+        }
+        redirect(from, previous, head);
+        head.incoming.add(from);
+        for (var inst : h.insts) {
+            if (inst instanceof Phi p)
+                start.get(p).ops[1] = values.get(p);
+        }
+        stay.destinations[1] = h;
+        fits.destinations[0] = head;
+        fits.destinations[1] = h;
+
+        redirect(loop.pre, h, check);
+        h.incoming.set(k_pre, check);
+        h.incoming.add(head);
+        for (var inst : h.insts) {
+            if (inst instanceof Phi p) {
+                var ops = Arrays.copyOf(p.ops, p.ops.length + 1);
+                ops[p.ops.length] = start.get(p);
+                p.ops = ops;
+            }
+        }
+        g.blocks.addAll(g.blocks.indexOf(h), added);
+        done.add(head);
+    }
+
+    // Copies blocks along with their instructions. Operands, destinations,
+    // predecessors and states within the blocks are those of the copies,
+    // the copies of instructions go to map. Copies of loop headers that
+    // were done are done as well.
+    static LinkedHashMap<BasicBlock, BasicBlock> cloneBlocks(Collection<BasicBlock> blocks, HashMap<Instruction, Instruction> map,
+                                                             HashSet<BasicBlock> done) {
+        var copies = new LinkedHashMap<BasicBlock, BasicBlock>();
+        for (var blk : blocks) {
+            var c = new BasicBlock();
+            c.pc = blk.pc;
+            c.merged = blk.merged;
+            c.cold = blk.cold;
+            c.profiled = blk.profiled == null ? null : blk.profiled.clone();
+            for (var inst : blk.insts) {
+                var i = inst.copy();
+                map.put(inst, i);
+                c.insts.add(i);
+            }
+            c.terminator = (Terminator) map.get(blk.terminator);
+            copies.put(blk, c);
+            if (done.contains(blk))
+                done.add(c);
+        }
+        for (var blk : blocks) {
+            var c = copies.get(blk);
+            for (var inc : blk.incoming)
+                c.incoming.add(copies.getOrDefault(inc, inc));
+            for (var inst : c.insts) {
+                for (int j = 0; j < inst.ops.length; j++)
+                    inst.ops[j] = map.getOrDefault(inst.ops[j], inst.ops[j]);
+            }
+            var dests = c.terminator.destinations;
+            for (int k = 0; k < dests.length; k++)
+                dests[k] = copies.getOrDefault(dests[k], dests[k]);
+            if (blk.state != null) {
+                c.state = blk.state.clone();
+                for (int j = 0; j < c.state.length; j++)
+                    c.state[j] = map.getOrDefault(c.state[j], c.state[j]);
+            }
+        }
+        return copies;
+    }
+
+    static void redirect(BasicBlock from, BasicBlock old, BasicBlock now) {
+        var dests = from.terminator.destinations;
+        for (int k = 0; k < dests.length; k++) {
+            if (dests[k] == old)
+                dests[k] = now;
+        }
+    }
+
+    // Computes int operations, lengths and elements of constant arrays and
+    // branches on constants, and drops what
+    // can no longer be reached and the phis left with a single value,
+    // until nothing changes.
+    static void foldConstants(MethodGraph g) {
+        while (true) {
+            cleanPhis(g);
+            var replaced = new HashMap<Instruction, Instruction>();
+            boolean folded = false;
+            for (var blk : g.blocks) {
+                for (int i = 0; i < blk.insts.size(); i++) {
+                    var inst = blk.insts.get(i);
+                    for (int j = 0; j < inst.ops.length; j++)
+                        inst.ops[j] = replaced.getOrDefault(inst.ops[j], inst.ops[j]);
+                    Object v = null;
+                    if (inst instanceof BinaryOperation && inst.ops[0] instanceof Constant a && a.val instanceof Integer x
+                        && inst.ops[1] instanceof Constant b && b.val instanceof Integer y)
+                        v = foldInt(inst, x, y);
+                    // The length of an array never changes, the elements
+                    // of constant_arrays do not either.
+                    if (inst instanceof ArrayLength && inst.ops[0] instanceof Constant a && a.val != null
+                        && a.val.getClass().isArray())
+                        v = Executor.arrayLength(a.val);
+                    if (inst instanceof LoadArray l && l.array() instanceof Constant a && g.constant_arrays.contains(a.val)
+                        && l.index() instanceof Constant b && b.val instanceof Integer x
+                        && x >= 0 && x < Executor.arrayLength(a.val))
+                        v = Executor.loadArray(l.kind, a.val, x);
+                    if (v != null) {
+                        var c = new Constant<Object>(v);
+                        blk.insts.set(i, c);
+                        replaced.put(inst, c);
+                        folded = true;
+                    }
+                }
+                var t = blk.terminator;
+                int dir = constantDirection(t);
+                if (dir >= 0 && t.destinations[0] != t.destinations[1]) {
+                    var other = t.destinations[1 - dir];
+                    removeIncoming(other, other.inputIndex(blk));
+                    var go = new Goto(0);
+                    go.destinations[0] = t.destinations[dir];
+                    blk.insts.set(blk.insts.size() - 1, go);
+                    blk.terminator = go;
+                    if (blk.profiled != null)
+                        blk.profiled = new long[]{blk.profiled[dir]};
+                    folded = true;
+                }
+            }
+            if (!folded)
+                return;
+            for (var blk : g.blocks) {
+                for (var inst : blk.insts) {
+                    for (int j = 0; j < inst.ops.length; j++)
+                        inst.ops[j] = replaced.getOrDefault(inst.ops[j], inst.ops[j]);
+                }
+                if (blk.state != null) {
+                    for (int j = 0; j < blk.state.length; j++)
+                        blk.state[j] = replaced.getOrDefault(blk.state[j], blk.state[j]);
+                }
+            }
+            removeUnreachable(g.entry, g.blocks);
+        }
+    }
+
+    // The result of an int operation on constants, null for the ones that
+    // are not folded.
+    static Integer foldInt(Instruction inst, int a, int b) {
+        switch (inst) {
+            case AddInteger i: return a + b;
+            case SubInteger i: return a - b;
+            case MulInteger i: return a * b;
+            case AndInteger i: return a & b;
+            case OrInteger i: return a | b;
+            case XOrInteger i: return a ^ b;
+            case ShlInteger i: return a << b;
+            case ShrInteger i: return a >> b;
+            case UShrInteger i: return a >>> b;
+            default: return null;
+        }
+    }
+
+    // Which way a branch on constants goes, -1 if it is not one.
+    static int constantDirection(Terminator t) {
+        switch (t) {
+            case If i when i.condition() instanceof Constant c && c.val instanceof Integer v:
+                return Executor.compare(i.comparison, v, 0) ? 0 : 1;
+            case IfCmp i when i.lhs() instanceof Constant a && a.val instanceof Integer x
+                              && i.rhs() instanceof Constant b && b.val instanceof Integer y:
+                return Executor.compare(i.comparison, x, y) ? 0 : 1;
+            case IfCheckNull i when i.condition() instanceof Constant c:
+                return (c.val == null) == i.is_null ? 0 : 1;
+            default:
+                return -1;
+        }
+    }
+
+    // Removes instructions that only compute a value nothing uses, like
+    // what is left of the tests unroll took out of the copies.
+    static void removeUnused(MethodGraph g) {
+        var users = users(g);
+        var where = new HashMap<Instruction, BasicBlock>();
+        var work = new ArrayList<Instruction>();
+        for (var blk : g.blocks) {
+            for (var inst : blk.insts) {
+                where.put(inst, blk);
+                if (!users.containsKey(inst))
+                    work.add(inst);
+            }
+        }
+        while (!work.isEmpty()) {
+            var inst = work.remove(work.size() - 1);
+            if (inst instanceof Terminator || inst instanceof GetArg || inst instanceof CatchException || mayThrow(inst))
+                continue;
+            var blk = where.remove(inst);
+            if (blk == null)
+                continue;
+            blk.insts.removeIf(i -> i == inst);
+            for (var op : inst.ops) {
+                var list = op == null ? null : users.get(op);
+                if (list == null)
+                    continue;
+                list.removeIf(u -> u == inst);
+                if (list.isEmpty())
+                    work.add(op);
+            }
+        }
+    }
+
+    // Appends every block that is only reached by a Goto from another one
+    // to that one, so that the Executor does not go from one to the other.
+    static void mergeBlocks(MethodGraph g) {
+        var gone = new HashSet<BasicBlock>();
+        var replaced = new HashMap<Instruction, Instruction>();
+        for (var blk : g.blocks) {
+            if (gone.contains(blk))
+                continue;
+            while (blk.terminator instanceof Goto go) {
+                var next = go.destinations[0];
+                if (next == blk || next == g.entry || next.incoming.size() != 1
+                    || !blk.handlers.isEmpty() || !next.handlers.isEmpty())
                     break;
-                case 0xca: // Breakpoint
+                blk.insts.remove(blk.insts.size() - 1);
+                for (var inst : next.insts) {
+                    if (inst instanceof Phi p)
+                        replaced.put(p, p.ops[0]);
+                    else
+                        blk.insts.add(inst);
+                }
+                blk.terminator = next.terminator;
+                blk.profiled = next.profiled;
+                for (var d : next.terminator.destinations)
+                    d.incoming.replaceAll(b -> b == next ? blk : b);
+                int n = blk.merged == null ? 0 : blk.merged.length;
+                var pcs = blk.merged == null ? new int[1] : Arrays.copyOf(blk.merged, n + 1);
+                pcs[n] = next.pc;
+                if (next.merged != null) {
+                    pcs = Arrays.copyOf(pcs, n + 1 + next.merged.length);
+                    System.arraycopy(next.merged, 0, pcs, n + 1, next.merged.length);
+                }
+                blk.merged = pcs;
+                gone.add(next);
+            }
+        }
+        if (gone.isEmpty())
+            return;
+        g.blocks.removeIf(gone::contains);
+        for (var blk : g.blocks) {
+            for (var inst : blk.insts) {
+                for (int j = 0; j < inst.ops.length; j++)
+                    inst.ops[j] = resolve(replaced, inst.ops[j]);
+            }
+            if (blk.state != null) {
+                for (int j = 0; j < blk.state.length; j++)
+                    blk.state[j] = resolve(replaced, blk.state[j]);
+            }
+        }
+    }
+
+    static Instruction resolve(HashMap<Instruction, Instruction> replaced, Instruction v) {
+        while (replaced.containsKey(v))
+            v = replaced.get(v);
+        return v;
+    }
+
+    // Replaces the arguments fixed says with constants of values, for
+    // optimize to compute what only depends on them. The elements of
+    // primitive arrays among them that the method only reads become
+    // constants too if they are short enough, so these arrays must not
+    // change anymore, see Specializer.
+    static void specialize(MethodGraph g, Object[] values, boolean[] fixed) {
+        var users = users(g);
+        boolean stores = storesArrays(g);
+        var args = new ArrayList<Instruction>();
+        for (var inst : g.entry.insts) {
+            if (inst instanceof GetArg a && fixed[a.index])
+                args.add(a);
+        }
+        for (var arg : args) {
+            var v = values[((GetArg) arg).index];
+            var c = new Constant<Object>(v);
+            if (!stores && foldable(v) && onlyRead(arg, users, new HashSet<Instruction>()))
+                g.constant_arrays.add(v);
+            g.entry.insts.replaceAll(i -> i == arg ? c : i);
+            g.replaceAllUsage(arg, c);
+        }
+        foldConstants(g);
+    }
+
+    static boolean primitiveArray(Object v) {
+        return v != null && v.getClass().isArray() && v.getClass().getComponentType().isPrimitive();
+    }
+
+    // Whether specialize may fold the elements of v.
+    static boolean foldable(Object v) {
+        return primitiveArray(v) && java.lang.reflect.Array.getLength(v) <= SPECIALIZE_ELEMENTS;
+    }
+
+    // Whether anything is stored into an array that was not allocated
+    // right there, which might be one passed in under another name, or a
+    // method is called that might.
+    static boolean storesArrays(MethodGraph g) {
+        for (var blk : g.blocks) {
+            for (var inst : blk.insts) {
+                if (inst instanceof StoreArray s && !(s.array() instanceof NewArray || s.array() instanceof NewObjArray
+                                                      || s.array() instanceof MultiNewArray))
+                    return true;
+                if (inst instanceof Invoke i && !(i instanceof InvokeSpecial s && s.trivial))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the array v is only read: its elements, its length and
+    // whether it is null, also where a phi passes it on. Comparing it to
+    // other objects would tell a copy from the original.
+    static boolean onlyRead(Instruction v, HashMap<Instruction, ArrayList<Instruction>> users, HashSet<Instruction> seen) {
+        if (!seen.add(v))
+            return true;
+        for (var u : users.getOrDefault(v, new ArrayList<Instruction>())) {
+            switch (u) {
+                case LoadArray l when l.array() == v && l.index() != v: break;
+                case ArrayLength l: break;
+                case IfCheckNull i: break;
+                case Phi p: {
+                    if (!onlyRead(p, users, seen))
+                        return false;
+                } break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    static HashMap<Instruction, ArrayList<Instruction>> users(MethodGraph g) {
+        var users = new HashMap<Instruction, ArrayList<Instruction>>();
+        for (var blk : g.blocks) {
+            for (var inst : blk.insts) {
+                for (var op : inst.ops) {
+                    if (op != null)
+                        users.computeIfAbsent(op, k -> new ArrayList<Instruction>()).add(inst);
+                }
+            }
+        }
+        return users;
+    }
+
+    // Removes phis that only merge one value and phis only used by
+    // themselves, until there are none left.
+    static void cleanPhis(MethodGraph g) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            var users = users(g);
+            for (var blk : g.blocks) {
+                for (int i = 0; i < blk.insts.size(); i++) {
+                    if (!(blk.insts.get(i) instanceof Phi p))
+                        continue;
+                    boolean unused = true;
+                    for (var u : users.getOrDefault(p, new ArrayList<Instruction>()))
+                        unused &= u == p;
+                    var same = p.allTheSame();
+                    if (same != null)
+                        g.replaceAllUsage(p, same);
+                    if (same != null || unused) {
+                        blk.unlink(i);
+                        changed = true;
+                    }
+                }
+                blk.apply();
+            }
+        }
+    }
+
+    // Fuses instructions that keep showing up together, so that the
+    // Executor dispatches once for all of them: adding a constant, which
+    // is what every i++ turns into, and loading an array element or the
+    // length of an array right before comparing it and branching.
+    static void fuse(MethodGraph g) {
+        var users = users(g);
+        var replaced = new HashMap<Instruction, Instruction>();
+        for (var blk : g.blocks) {
+            for (int i = 0; i < blk.insts.size(); i++) {
+                if (!(blk.insts.get(i) instanceof AddInteger add))
+                    continue;
+                Instruction other;
+                Constant k;
+                if (add.rhs() instanceof Constant c && c.val instanceof Integer) {
+                    other = add.lhs();
+                    k = c;
+                } else if (add.lhs() instanceof Constant c && c.val instanceof Integer) {
+                    other = add.rhs();
+                    k = c;
+                } else {
+                    continue;
+                }
+                var fused = new AddConstant((Integer) k.val);
+                fused.ops[0] = other;
+                blk.insts.set(i, fused);
+                for (var u : users.getOrDefault(add, new ArrayList<Instruction>())) {
+                    for (int j = 0; j < u.ops.length; j++) {
+                        if (u.ops[j] == add)
+                            u.ops[j] = fused;
+                    }
+                }
+                users.get(k).removeIf(u -> u == add);
+                users.get(other).replaceAll(u -> u == add ? fused : u);
+                // For an add of a constant to this one further on.
+                users.put(fused, users.getOrDefault(add, new ArrayList<Instruction>()));
+                replaced.put(add, fused);
+            }
+            fuseCompare(blk, users);
+        }
+        for (var blk : g.blocks) {
+            if (blk.state != null) {
+                for (int j = 0; j < blk.state.length; j++)
+                    blk.state[j] = replaced.getOrDefault(blk.state[j], blk.state[j]);
+            }
+        }
+        // The constants that were only added.
+        for (var blk : g.blocks) {
+            blk.insts.removeIf(inst -> inst instanceof Constant && users.getOrDefault(inst, new ArrayList<Instruction>()).isEmpty());
+        }
+    }
+
+    // Only what comes right before the compare is fused, so that nothing
+    // moves past anything else that could throw.
+    static void fuseCompare(BasicBlock blk, HashMap<Instruction, ArrayList<Instruction>> users) {
+        int n = blk.insts.size();
+        if (!(blk.terminator instanceof IfCmp c) || n < 2)
+            return;
+        var prev = blk.insts.get(n - 2);
+        var used = users.get(prev);
+        if (used == null || used.size() != 1 || (c.lhs() == prev) == (c.rhs() == prev))
+            return;
+        var other = c.lhs() == prev ? c.rhs() : c.lhs();
+        Branch fused;
+        switch (prev) {
+            case LoadArray l when l.kind == ElementKind.Int || l.kind == ElementKind.Byte
+                                  || l.kind == ElementKind.Char || l.kind == ElementKind.Short: {
+                fused = new IfCmpArray(c.lhs() == prev ? c.comparison : flip(c.comparison), l.kind);
+                fused.ops[0] = l.array();
+                fused.ops[1] = l.index();
+                fused.ops[2] = other;
+            } break;
+            case ArrayLength l: {
+                fused = new IfCmpLength(c.rhs() == prev ? c.comparison : flip(c.comparison));
+                fused.ops[0] = other;
+                fused.ops[1] = l.ops[0];
+            } break;
+            default:
+                return;
+        }
+        fused.destinations = c.destinations;
+        // So that fusing an add later on also finds the new compare.
+        for (var op : fused.ops) {
+            var list = users.get(op);
+            if (list != null)
+                list.replaceAll(u -> u == prev || u == c ? fused : u);
+        }
+        blk.insts.remove(n - 2);
+        blk.insts.set(n - 2, fused);
+        blk.terminator = fused;
+    }
+
+    // The compare that holds when c does not.
+    static Compare negate(Compare c) {
+        switch (c) {
+            case Compare.Lt: return Compare.Ge;
+            case Compare.Ge: return Compare.Lt;
+            case Compare.Gt: return Compare.Le;
+            case Compare.Le: return Compare.Gt;
+            case Compare.Eq: return Compare.Ne;
+            default: return Compare.Eq;
+        }
+    }
+
+    // The compare with lhs and rhs swapped.
+    static Compare flip(Compare c) {
+        switch (c) {
+            case Compare.Lt: return Compare.Gt;
+            case Compare.Gt: return Compare.Lt;
+            case Compare.Le: return Compare.Ge;
+            case Compare.Ge: return Compare.Le;
+            default: return c;
+        }
+    }
+
+    // How often each block was executed according to the profile.
+    static HashMap<BasicBlock, Long> blockFrequencies(MethodGraph g) {
+        var in = new HashMap<BasicBlock, Long>();
+        var freq = new HashMap<BasicBlock, Long>();
+        for (var blk : g.blocks) {
+            long out = 0;
+            if (blk.profiled != null) {
+                for (int k = 0; k < blk.profiled.length; k++) {
+                    out += blk.profiled[k];
+                    in.merge(blk.terminator.destinations[k], blk.profiled[k], Long::sum);
+                }
+            }
+            freq.put(blk, out);
+        }
+        // Blocks ending in a Return have no outgoing edges, and the entry
+        // has no incoming ones.
+        for (var blk : g.blocks)
+            freq.put(blk, Math.max(freq.get(blk), in.getOrDefault(blk, 0L)));
+        return freq;
+    }
+
+    static long edgeCount(BasicBlock from, BasicBlock to) {
+        long n = 0;
+        if (from.profiled != null) {
+            for (int k = 0; k < from.profiled.length; k++) {
+                if (from.terminator.destinations[k] == to)
+                    n += from.profiled[k];
+            }
+        }
+        return n;
+    }
+
+    static void sortIncoming(BasicBlock blk) {
+        int n = blk.incoming.size();
+        var order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(edgeCount(blk.incoming.get(b), blk),
+                                                  edgeCount(blk.incoming.get(a), blk)));
+
+        var incoming = new ArrayList<BasicBlock>(n);
+        for (var i : order)
+            incoming.add(blk.incoming.get(i));
+        blk.incoming = incoming;
+
+        for (var inst : blk.insts) {
+            if (inst instanceof Phi p) {
+                var ops = new Instruction[n];
+                for (int i = 0; i < n; i++)
+                    ops[i] = p.ops[order[i]];
+                p.ops = ops;
+            }
+        }
+    }
+
+    // Greedily chains every block to its hottest successor that is not
+    // placed yet. When there is none, continues with the hottest block
+    // left, so cold blocks end up at the end.
+    static void layoutBlocks(MethodGraph g, HashMap<BasicBlock, Long> freq) {
+        var by_freq = new ArrayList<BasicBlock>(g.blocks);
+        by_freq.sort((a, b) -> Long.compare(freq.get(b), freq.get(a)));
+
+        var placed = new HashSet<BasicBlock>();
+        var order = new ArrayList<BasicBlock>();
+        int hottest = 0;
+        var blk = g.entry;
+        while (true) {
+            placed.add(blk);
+            order.add(blk);
+
+            BasicBlock next = null;
+            long best = -1;
+            var dests = blk.terminator.destinations;
+            // Backwards, so that on a tie the original fall-through wins.
+            for (int k = dests.length; k-- > 0;) {
+                long n = blk.profiled == null ? 0 : blk.profiled[k];
+                if (!placed.contains(dests[k]) && !dests[k].cold && n > best) {
+                    next = dests[k];
+                    best = n;
+                }
+            }
+            if (next == null) {
+                while (hottest < by_freq.size() && placed.contains(by_freq.get(hottest)))
+                    hottest++;
+                if (hottest == by_freq.size())
+                    break;
+                next = by_freq.get(hottest);
+            }
+            blk = next;
+        }
+        g.blocks = order;
+    }
+
+
+
+
+
+
+
+
+
+
+    static MethodGraph stackify(ParsedMethod parsed) {
+        return stackify(parsed, 0, 0);
+    }
+
+    // With entry_pc > 0 the graph starts at that pc instead, with the
+    // locals and then the depth values on the stack there as arguments.
+    // That is where a speculating graph continues after a Guard fails.
+    static MethodGraph stackify(ParsedMethod parsed, int entry_pc, int depth) {
+        var insts = parsed.insts;
+        var max_locals = parsed.max_locals;
+        var param_count = parsed.param_count;
+        var phase = Metrics.start("stackify.blocks", parsed.name);
+
+        // Blocks start at the targets of jumps, after them, and at the
+        // starts, ends and handlers of try ranges. Inside a try range a
+        // block also ends after every store to a local, so the locals a
+        // block starts with are those its handlers see, whichever
+        // instruction throws. covered counts the ranges that start minus
+        // those that end at each pc.
+        var leaders = new BitSet(insts.length);
+        leaders.set(0);
+        var covered = new int[insts.length + 1];
+        for (var range : parsed.exception_table) {
+            leaders.set(range.handler);
+            leaders.set(range.start);
+            leaders.set(range.end);
+            covered[range.start]++;
+            covered[range.end]--;
+        }
+        int ranges = 0;
+        for (int i = 0; i < insts.length; i++) {
+            ranges += covered[i];
+            var inst = insts[i];
+            if (inst == null)
+                continue;
+            switch (inst) {
+                case Return r: continue;
+                case Goto g: leaders.set(i + g.offset); break;
+                case Switch sw: {
+                    leaders.set(i + sw.default_offset);
+                    for (int k = 0; k < sw.offsets.length; k++)
+                        leaders.set(i + sw.offsets[k]);
+                } break;
+                case Branch br: leaders.set(i + br.offset); break;
+                case StoreLocal l: if (ranges == 0) continue; break;
+                case IInc l: if (ranges == 0) continue; break;
+                default: continue;
+            }
+            leaders.set(next(insts, i));
+        }
+
+        var blocks = new BasicBlock[insts.length];
+        var block_list = new ArrayList<BasicBlock>();
+        for (int pc = leaders.nextSetBit(0); pc >= 0 && pc < insts.length; pc = leaders.nextSetBit(pc + 1)) {
+            blocks[pc] = new BasicBlock();
+            blocks[pc].pc = pc;
+            block_list.add(blocks[pc]);
+        }
+
+        var current_block = blocks[0];
+        for (int i = 0; i < insts.length; i++) {
+            var inst = insts[i];
+            if (inst == null) {
+                assert blocks[i] == null;
+                continue;
+            }
+
+
+            if (i > 0 && blocks[i] != null) {
+                if (current_block.terminator == null) {
+                    var end = new Goto(0);
+                    end.destinations[0] = blocks[i];
+                    blocks[i].incoming.add(current_block);
+                    current_block.insts.add(end);
+                    current_block.terminator = end;
+                }
+                current_block = blocks[i];
+            }
+
+            current_block.insts.add(inst);
+            if (inst instanceof Terminator t) {
+                switch (t) {
+                    case Goto g: g.destinations[0] = blocks[i + g.offset]; break;
+                    case Switch sw: {
+                        sw.destinations[0] = blocks[i + sw.default_offset];
+                        for (int k = 0; k < sw.offsets.length; k++)
+                            sw.destinations[1 + k] = blocks[i + sw.offsets[k]];
+                    } break;
+                    case Branch br: {
+                        br.destinations[0] = blocks[i + br.offset];
+                        br.destinations[1] = blocks[next(insts, i)];
+                    } break;
+                    default: break;
+                }
+                // Once per predecessor, even if several edges of a switch
+                // lead to the same block. The edges of a block are added
+                // one after the other, so it can only be the last one.
+                for (var dest : t.destinations) {
+                    if (!lastIncoming(dest, current_block))
+                        dest.incoming.add(current_block);
+                }
+                current_block.terminator = t;
+            }
+        }
+
+        Instruction last = current_block.insts.get(current_block.insts.size()-1);
+        if (last instanceof Terminator t) {
+            current_block.terminator = t;
+        } else {
+            throw new Error("WTF? " + last.getClass().getName());
+        }
+
+        // Blocks are covered by a range as a whole, the leaders make sure.
+        for (var blk : block_list) {
+            for (var range : parsed.exception_table) {
+                if (blk.pc < range.start || blk.pc >= range.end)
+                    continue;
+                var target = blocks[range.handler];
+                blk.handlers.add(new Handler(range.type, target));
+                if (!lastIncoming(target, blk) && !Arrays.asList(blk.terminator.destinations).contains(target))
+                    target.incoming.add(blk);
+            }
+        }
+        for (var range : parsed.exception_table) {
+            var target = blocks[range.handler];
+            if (!(target.insts.get(0) instanceof CatchException))
+                target.insts.add(0, new CatchException());
+        }
+
+        var entry = blocks[0];
+        if (entry_pc > 0) {
+            if (blocks[entry_pc] == null)
+                throw new Error("no block starts at " + entry_pc);
+            entry = new BasicBlock();
+            for (int i = 0; i < depth; i++)
+                entry.insts.add(new GetArg(max_locals + i));
+            var jump = new Goto(0);
+            jump.destinations[0] = blocks[entry_pc];
+            entry.insts.add(jump);
+            entry.terminator = jump;
+            blocks[entry_pc].incoming.add(entry);
+            block_list.add(0, entry);
+            removeUnreachable(entry, block_list);
+        }
+
+        Metrics.end(phase, block_list);
+        phase = Metrics.start("stackify.resolveStack", parsed.name);
+        resolveStack(entry, parsed.max_stack);
+        // A handler starts with nothing but the exception on the stack.
+        var listed = parsed.exception_table.length == 0 ? null : new HashSet<BasicBlock>(block_list);
+        for (var range : parsed.exception_table) {
+            var target = blocks[range.handler];
+            if (target.inputs == null && listed.contains(target)) {
+                target.inputs = new Phi[0];
+                resolveStack(target, parsed.max_stack);
+            }
+        }
+        Metrics.end(phase, block_list);
+        phase = Metrics.start("stackify.ssa", parsed.name);
+        var method = new MethodGraph(block_list, max_locals);
+        method.name = parsed.name;
+        method.param_types = parsed.param_types;
+        method.cf = parsed.cf;
+        method.method = parsed.method;
+
+        // Init locals lists
+        for (var blk : block_list) {
+            var stack = blk.inputs != null ? blk.inputs : new Instruction[0];
+                blk.inputs = new Instruction[max_locals];
+            if (blk == entry && entry_pc > 0) {
+                for (int i = 0; i < max_locals; i++) {
+                    blk.inputs[i] = new GetArg(i);
+                    blk.insertBefore(0, blk.inputs[i]);
+                }
+            } else if (blk == entry) {
+                // Longs and doubles take two local slots, the second one
+                // stays empty.
+                int slot = 0;
+                for (int i = 0; i < param_count; i++) {
+                    blk.inputs[slot] = new GetArg(i);
+                    blk.insertBefore(0, blk.inputs[slot]);
+                    var type = parsed.param_types[i];
+                    slot += type.equals("J") || type.equals("D") ? 2 : 1;
+                }
+            } else {
+                for (int i = 0; i < blk.inputs.length; i++) {
+                    blk.inputs[i] = new Phi(blk.incoming.size());
+                    blk.insertBefore(0, blk.inputs[i]);
+                }
+            }
+            blk.apply();
+            blk.state = Arrays.copyOf(blk.inputs, max_locals + stack.length);
+            System.arraycopy(stack, 0, blk.state, max_locals, stack.length);
+        }
+
+        // SSAify locals. The values of the loads are put in for them at the
+        // end, the stack may have carried a load into another block. The
+        // loads of a local are all equal, so they are told apart by
+        // identity.
+        var replaced = new IdentityHashMap<Instruction, Instruction>();
+        for (var blk : block_list) {
+            var locals = blk.inputs.clone();
+            for (int i = 0; i < blk.insts.size(); i++) {
+                var inst = blk.insts.get(i);
+                for (int j = 0; j < inst.ops.length; j++)
+                    inst.ops[j] = replaced.getOrDefault(inst.ops[j], inst.ops[j]);
+                if (inst instanceof LoadLocal l) {
+                    assert locals[l.index] != null : "Loading undefined local!";
+                    replaced.put(inst, locals[l.index]);
+                    blk.unlink(i);
+                } else if (inst instanceof StoreLocal l) {
+                    locals[l.index] = l.ops[0];
+                    blk.unlink(i);
+                } else if (inst instanceof IInc l) {
+                    var delta = new Constant<Integer>(l.constant);
+                    blk.insts.set(i, delta);
+                    var add = new AddInteger();
+                    add.ops[0] = locals[l.index];
+                    add.ops[1] = delta;
+                    locals[l.index] = add;
+                    blk.insertAfter(i, add);
+                }
+            }
+            blk.apply();
+            for (var dest : blk.terminator.destinations) {
+                int incoming_direction = dest.inputIndex(blk);
+                for (int i = 0; i < dest.inputs.length; i++) {
+                    ((Phi) dest.inputs[i]).ops[incoming_direction] = locals[i];
+                }
+            }
+            for (var h : blk.handlers) {
+                int incoming_direction = h.target.inputIndex(blk);
+                for (int i = 0; i < h.target.inputs.length; i++) {
+                    ((Phi) h.target.inputs[i]).ops[incoming_direction] = blk.inputs[i];
+                }
+            }
+        }
+
+        for (var blk : block_list) {
+            for (var inst : blk.insts) {
+                for (int j = 0; j < inst.ops.length; j++)
+                    inst.ops[j] = replaced.getOrDefault(inst.ops[j], inst.ops[j]);
+            }
+            blk.inputs = null;
+        }
+        Metrics.end(phase, block_list);
+
+
+        // Clean up unnecessary phi nodes.
+        // Needs to be iterated because this is not really all that
+        // correct, but works for now.
+        // The phis are put in for the ones removed as they come up, and
+        // everywhere else at the end.
+        phase = Metrics.start("stackify.phis", parsed.name);
+        replaced.clear();
+        for (int iter = 0; iter < 5; iter++) {
+            for (var blk : block_list) {
+                for (int i = 0; i < blk.insts.size(); i++) {
+                    var inst = blk.insts.get(i);
+                    if (inst instanceof Phi p) {
+                        for (int j = 0; j < p.ops.length; j++)
+                            p.ops[j] = resolve(replaced, p.ops[j]);
+                        var same = p.allTheSame();
+                        if (same != null) {
+                            replaced.put(p, same);
+                            blk.unlink(i);
+                        }
+                    }
+                }
+                blk.apply();
+            }
+        }
+        for (var blk : block_list) {
+            for (var inst : blk.insts) {
+                for (int j = 0; j < inst.ops.length; j++)
+                    inst.ops[j] = resolve(replaced, inst.ops[j]);
+            }
+            for (int j = 0; j < blk.state.length; j++)
+                blk.state[j] = resolve(replaced, blk.state[j]);
+        }
+        Metrics.end(phase, block_list);
+
+        return method;
+    }
+
+    // Drops the blocks that cannot be reached from the entry, along with
+    // their edges into the others.
+    static void removeUnreachable(BasicBlock entry, List<BasicBlock> blocks) {
+        var reached = new HashSet<BasicBlock>();
+        var work = new ArrayList<BasicBlock>();
+        reached.add(entry);
+        work.add(entry);
+        while (!work.isEmpty()) {
+            var blk = work.remove(work.size() - 1);
+            for (var d : blk.terminator.destinations) {
+                if (reached.add(d))
+                    work.add(d);
+            }
+            for (var h : blk.handlers) {
+                if (reached.add(h.target))
+                    work.add(h.target);
+            }
+        }
+        for (var blk : blocks) {
+            if (!reached.contains(blk))
+                continue;
+            for (int k = blk.incoming.size(); k-- > 0;) {
+                if (!reached.contains(blk.incoming.get(k)))
+                    removeIncoming(blk, k);
+            }
+        }
+        blocks.removeIf(b -> !reached.contains(b));
+    }
+
+    // Removes the k-th predecessor and its operand of every phi.
+    static void removeIncoming(BasicBlock blk, int k) {
+        blk.incoming.remove(k);
+        for (var inst : blk.insts) {
+            if (inst instanceof Phi p) {
+                var ops = new Instruction[p.ops.length - 1];
+                System.arraycopy(p.ops, 0, ops, 0, k);
+                System.arraycopy(p.ops, k + 1, ops, k, ops.length - k);
+                p.ops = ops;
+            }
+        }
+    }
+
+    // The pc of the instruction after the one at pc, insts.length after
+    // the last one.
+    static int next(Instruction[] insts, int pc) {
+        int next = pc + 1;
+        while (next < insts.length && insts[next] == null)
+            next++;
+        return next;
+    }
+
+    // What stands for inst once the instructions replaced are gone.
+    static Instruction resolve(Map<Instruction, Instruction> replaced, Instruction inst) {
+        for (var r = replaced.get(inst); r != null; r = replaced.get(inst))
+            inst = r;
+        return inst;
+    }
+
+    static boolean lastIncoming(BasicBlock blk, BasicBlock inc) {
+        int n = blk.incoming.size();
+        return n > 0 && blk.incoming.get(n - 1) == inc;
+    }
+
+    // Puts the values on the stack in for the operands, in the blocks
+    // reached from b that have not been seen yet. The stack a block starts
+    // with becomes its first phis, a block is done once all of them are
+    // known, so every block is visited once.
+    static void resolveStack(BasicBlock b, int max_stack) {
+        var stack = new Instruction[max_stack];
+        var work = new ArrayList<BasicBlock>();
+        work.add(b);
+        while (!work.isEmpty()) {
+            b = work.remove(work.size() - 1);
+            int n = 0;
+            for (int k = 0; k < b.insts.size(); k++) {
+                var inst = b.insts.get(k);
+                if (inst instanceof StackOp op) {
+                    n = shuffle(stack, n, op.opcode);
+                    b.unlink(k);
+                    continue;
+                }
+                int end = inst instanceof Phi ? 0 : inst.ops.length;
+                for (int i = end; i-- > 0;)
+                    inst.ops[i] = stack[--n];
+
+                for (int j = 0; j < inst.result_count; j++) {
+                    if (n == max_stack)
+                        throw new Error("More than max_stack " + max_stack + " values on the stack!");
+                    stack[n++] = inst;
+                }
+            }
+            b.apply();
+
+            for (var dest : b.terminator.destinations) {
+                if (dest.inputs == null) {
+                    dest.inputs = new Phi[n];
+
+                    for (int i = 0; i < n; i++) {
+                        dest.inputs[i] = new Phi(dest.incoming.size());
+                        dest.insertBefore(0, dest.inputs[i]);
+                    }
+                    dest.apply();
+                    work.add(dest);
+                } else {
+                    assert dest.inputs.length == n : "Unbalanced stack!";
+                }
+                int in_idx = dest.inputIndex(b);
+
+                for (int i = 0; i < n; i++) {
+                    ((Phi) dest.inputs[i]).ops[in_idx] = stack[i];
+                }
+            }
+        }
+    }
+
+    // Carries out the stack instructions on the n values of the stack and
+    // returns how many there are after. The forms for longs and doubles
+    // are not handled, like everywhere else.
+    static int shuffle(Instruction[] stack, int n, int opcode) {
+        var top = stack[n - 1];
+        switch (opcode) {
+            case 0x57: return n - 1;
+            case 0x58: return n - 2;
+            case 0x59: stack[n] = top; return n + 1;
+            case 0x5a: {
+                stack[n] = top;
+                stack[n - 1] = stack[n - 2];
+                stack[n - 2] = top;
+            } return n + 1;
+            case 0x5b: {
+                stack[n] = top;
+                stack[n - 1] = stack[n - 2];
+                stack[n - 2] = stack[n - 3];
+                stack[n - 3] = top;
+            } return n + 1;
+            case 0x5c: {
+                stack[n] = stack[n - 2];
+                stack[n + 1] = top;
+            } return n + 2;
+            case 0x5d: {
+                var second = stack[n - 2];
+                stack[n + 1] = top;
+                stack[n] = second;
+                stack[n - 1] = stack[n - 3];
+                stack[n - 2] = top;
+                stack[n - 3] = second;
+            } return n + 2;
+            case 0x5e: {
+                var second = stack[n - 2];
+                stack[n + 1] = top;
+                stack[n] = second;
+                stack[n - 1] = stack[n - 3];
+                stack[n - 2] = stack[n - 4];
+                stack[n - 3] = top;
+                stack[n - 4] = second;
+            } return n + 2;
+            case 0x5f: {
+                stack[n - 1] = stack[n - 2];
+                stack[n - 2] = top;
+            } return n;
+            default: throw new Error("not a stack instruction: " + opcode);
+        }
+    }
+
+    static ParsedMethod parseMethod(ClassFile cf, Method m) throws IOException {
+        var code = m.attributes.get("Code");
+        if (code == null)
+            throw new Error("method does not contain code!");
+
+        var name = cf.name + "." + m.name + m.descriptor;
+        var phase = Metrics.start("parseCode", name);
+        var parsed = parseCode(new DataInputStream(new ByteArrayInputStream(code)), cf);
+        parsed.name = name;
+        parsed.cf = cf;
+        parsed.method = m;
+        parsed.param_types = paramTypes(cf, m);
+        parsed.param_count = parsed.param_types.length;
+        link(cf, parsed);
+        Metrics.end(phase, parsed.insts);
+        return parsed;
+    }
+
+    // Resolves field accesses to slots of the layout, allocations to their
+    // class and calls that do not depend on the receiver to their method,
+    // so that the Executor does not look anything up by name. What is not
+    // among the classes of cf stays unresolved.
+    static void link(ClassFile cf, ParsedMethod parsed) {
+        for (var inst : parsed.insts) {
+            switch (inst) {
+                case GetField f: f.offset = offset(cf, f.ref); break;
+                case PutField p: p.offset = offset(cf, p.ref); break;
+                case New n: {
+                    var name = ClassFile.className(cf.constants, n.ref);
+                    var c = classFile(cf, name);
+                    if (c != null) {
+                        n.clazz = c.layout;
+                    } else {
+                        try {
+                            n.host = Class.forName(name.replace('/', '.'), false, Program.class.getClassLoader());
+                        } catch (ClassNotFoundException x) {
+                            // Fails when run.
+                        }
+                    }
+                } break;
+                case InvokeVirtual i: {
+                    // Private and final methods are not overridden.
+                    var m = resolve(cf, i.ref);
+                    if (m != null && (m.access_flags & (Method.ACC_PRIVATE | Method.ACC_FINAL)) != 0)
+                        i.target = m;
+                } break;
+                case Invoke i: i.target = resolve(cf, i.ref); break;
+                case TypeTest t: {
+                    t.name = ClassFile.className(cf.constants, t.ref);
+                    // Arrays of objects are all Object[] here.
+                    if (classFile(cf, t.name) == null && !t.name.startsWith("[L") && !t.name.startsWith("[[")) {
+                        try {
+                            t.host = Class.forName(t.name.replace('/', '.'), false, Program.class.getClassLoader());
+                        } catch (ClassNotFoundException x) {
+                            throw new Error("unknown class " + t.name);
+                        }
+                    }
+                } break;
+                case null, default: break;
+            }
+        }
+    }
+
+    // The class cf names so, null for host classes.
+    static ClassFile classFile(ClassFile cf, String name) {
+        if (cf.classes != null)
+            return cf.classes.get(name);
+        return name.equals(cf.name) ? cf : null;
+    }
+
+    static int offset(ClassFile cf, FieldReference ref) {
+        var c = classFile(cf, ref.class_name);
+        return c == null ? -1 : c.layout.offset(ref);
+    }
+
+    // The method ref names: declared in its class or inherited from a
+    // superclass or an interface. null if that is a host class.
+    static Method resolve(ClassFile cf, Property ref) {
+        var signature = ref.name + ref.descriptor;
+        var c = classFile(cf, ref.class_name);
+        if (c == null)
+            return null;
+        for (var k = c.layout; k != null; k = k.sup) {
+            var m = k.cf.by_signature.get(signature);
+            if (m != null)
+                return m;
+        }
+        return c.layout.select(signature);
+    }
+
+    // Descriptors of the arguments, starting with the class itself for
+    // `this` in instance methods. Longs and doubles take up two locals,
+    // which stackify accounts for when it maps arguments to locals.
+    static String[] paramTypes(ClassFile cf, Method m) {
+        var types = new ArrayList<String>();
+        if ((m.access_flags & Method.ACC_STATIC) == 0)
+            types.add("L" + cf.name + ";");
+        types.addAll(Arrays.asList(paramTypes(m.descriptor)));
+        return types.toArray(new String[0]);
+    }
+
+    static String[] paramTypes(String descriptor) {
+        var types = new ArrayList<String>();
+        var d = descriptor;
+        for (int i = 1; d.charAt(i) != ')'; i++) {
+            int start = i;
+            while (d.charAt(i) == '[')
+                i++;
+            if (d.charAt(i) == 'L')
+                i = d.indexOf(';', i);
+            types.add(d.substring(start, i + 1));
+        }
+        return types.toArray(new String[0]);
+    }
+
+    // Constructors that do nothing but call the one of java.lang.Object,
+    // like the default constructor of a class without field initializers.
+    // Only the class being compiled can be looked into.
+    static boolean trivialConstructor(ClassFile cf, MethodReference ref) {
+        if (!ref.name.equals("<init>") || !ref.descriptor.equals("()V"))
+            return false;
+        if (ref.class_name.equals("java/lang/Object"))
+            return true;
+        var m = cf.methods.get("<init>");
+        if (!ref.class_name.equals(cf.name) || m == null || !m.descriptor.equals("()V"))
+            return false;
+
+        // max_stack, max_locals and the length come before the code, which
+        // has to be aload_0, invokespecial, return.
+        var code = m.attributes.get("Code");
+        int length = (code[4] & 0xff) << 24 | (code[5] & 0xff) << 16 | (code[6] & 0xff) << 8 | code[7] & 0xff;
+        if (length != 5 || code[8] != 0x2a || (code[9] & 0xff) != 0xb7 || (code[12] & 0xff) != 0xb1)
+            return false;
+        var sup = (MethodReference) cf.constants[(code[10] & 0xff) << 8 | code[11] & 0xff];
+        return sup.class_name.equals("java/lang/Object") && sup.name.equals("<init>") && sup.descriptor.equals("()V");
+    }
+
+    static Constant ldc(ConstObject[] pool, int index) {
+        if (pool[index] instanceof StringReference r)
+            return new Constant<Object>(((ConstantEntry) pool[r.index & 0xffff]).val);
+        return new Constant((ConstantEntry) pool[index]);
+    }
+
+    static int readInt(byte[] code, int pos) {
+        return code[pos] << 24 | (code[pos + 1] & 0xff) << 16 | (code[pos + 2] & 0xff) << 8 | code[pos + 3] & 0xff;
+    }
+
+    static ParsedMethod parseCode(DataInputStream is, ClassFile cf) throws IOException {
+        var parsed = new ParsedMethod();
+        parsed.max_stack = is.readShort();
+        parsed.max_locals = is.readShort();
+
+        var code = new byte[is.readInt()];
+        is.read(code);
+
+        var a = parsed.insts = new Instruction[code.length];
+        ConstObject[] const_pool = cf.constants;
+
+        int idx;
+        ConstObject obj;
+
+        for (int i = 0; i < code.length; i++) {
+            int opcode = ((int)code[i]) & 0xff;
+            int begin = i;
+            switch (opcode) {
+                case 0x00: a[begin] = (new Nop()); break;
+                case 0x01: a[begin] = (new Constant<Object>((Object) null)); break;
+                case 0x02: a[begin] = (new Constant<Integer>(-1)); break;
+                case 0x03: a[begin] = (new Constant<Integer>(0)); break;
+                case 0x04: a[begin] = (new Constant<Integer>(1)); break;
+                case 0x05: a[begin] = (new Constant<Integer>(2)); break;
+                case 0x06: a[begin] = (new Constant<Integer>(3)); break;
+                case 0x07: a[begin] = (new Constant<Integer>(4)); break;
+                case 0x08: a[begin] = (new Constant<Integer>(5)); break;
+                case 0x09: a[begin] = (new Constant<Long>((long)0)); break;
+                case 0x0a: a[begin] = (new Constant<Long>((long)1)); break;
+                case 0x0b: a[begin] = (new Constant<Float>(0f)); break;
+                case 0x0c: a[begin] = (new Constant<Float>(1f)); break;
+                case 0x0d: a[begin] = (new Constant<Float>(2f)); break;
+                case 0x0e: a[begin] = (new Constant<Double>(0.0)); break;
+                case 0x0f: a[begin] = (new Constant<Double>(1.0)); break;
+                case 0x10: a[begin] = (new Constant<Integer>((int)code[++i])); break;
+                case 0x11: a[begin] = (new Constant<Integer>(code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0x12: a[begin] = ldc(const_pool, code[++i] & 0xff); break;
+                case 0x13:
+                case 0x14:
+                    a[begin] = ldc(const_pool, (code[++i] & 0xff) << 8 | code[++i] & 0xff);
+                    break;
+                case 0x15: a[begin] = (new LoadLocal<Integer>(code[++i] & 0xff)); break;
+                case 0x16: a[begin] = (new LoadLocal<Long>(code[++i] & 0xff)); break;
+                case 0x17: a[begin] = (new LoadLocal<Float>(code[++i] & 0xff)); break;
+                case 0x18: a[begin] = (new LoadLocal<Double>(code[++i] & 0xff)); break;
+                case 0x19: a[begin] = (new LoadLocal<Object>(code[++i] & 0xff)); break;
+                case 0x1a: a[begin] = (new LoadLocal<Integer>(0)); break;
+                case 0x1b: a[begin] = (new LoadLocal<Integer>(1)); break;
+                case 0x1c: a[begin] = (new LoadLocal<Integer>(2)); break;
+                case 0x1d: a[begin] = (new LoadLocal<Integer>(3)); break;
+                case 0x1e: a[begin] = (new LoadLocal<Long>(0)); break;
+                case 0x1f: a[begin] = (new LoadLocal<Long>(1)); break;
+                case 0x20: a[begin] = (new LoadLocal<Long>(2)); break;
+                case 0x21: a[begin] = (new LoadLocal<Long>(3)); break;
+                case 0x22: a[begin] = (new LoadLocal<Float>(0)); break;
+                case 0x23: a[begin] = (new LoadLocal<Float>(1)); break;
+                case 0x24: a[begin] = (new LoadLocal<Float>(2)); break;
+                case 0x25: a[begin] = (new LoadLocal<Float>(3)); break;
+                case 0x26: a[begin] = (new LoadLocal<Double>(0)); break;
+                case 0x27: a[begin] = (new LoadLocal<Double>(1)); break;
+                case 0x28: a[begin] = (new LoadLocal<Double>(2)); break;
+                case 0x29: a[begin] = (new LoadLocal<Double>(3)); break;
+                case 0x2a: a[begin] = (new LoadLocal<Object>(0)); break;
+                case 0x2b: a[begin] = (new LoadLocal<Object>(1)); break;
+                case 0x2c: a[begin] = (new LoadLocal<Object>(2)); break;
+                case 0x2d: a[begin] = (new LoadLocal<Object>(3)); break;
+                case 0x2e: a[begin] = (new LoadArray<Integer>(ElementKind.Int)); break;
+                case 0x2f: a[begin] = (new LoadArray<Long>(ElementKind.Long)); break;
+                case 0x30: a[begin] = (new LoadArray<Float>(ElementKind.Float)); break;
+                case 0x31: a[begin] = (new LoadArray<Double>(ElementKind.Double)); break;
+                case 0x32: a[begin] = (new LoadArray<Object>(ElementKind.Reference)); break;
+                case 0x33: a[begin] = (new LoadArray<Byte>(ElementKind.Byte)); break;
+                case 0x34: a[begin] = (new LoadArray<Character>(ElementKind.Char)); break;
+                case 0x35: a[begin] = (new LoadArray<Short>(ElementKind.Short)); break;
+                case 0x36: a[begin] = (new StoreLocal<Integer>(code[++i] & 0xff)); break;
+                case 0x37: a[begin] = (new StoreLocal<Long>(code[++i] & 0xff)); break;
+                case 0x38: a[begin] = (new StoreLocal<Float>(code[++i] & 0xff)); break;
+                case 0x39: a[begin] = (new StoreLocal<Double>(code[++i] & 0xff)); break;
+                case 0x3a: a[begin] = (new StoreLocal<Object>(code[++i] & 0xff)); break;
+                case 0x3b: a[begin] = (new StoreLocal<Integer>(0)); break;
+                case 0x3c: a[begin] = (new StoreLocal<Integer>(1)); break;
+                case 0x3d: a[begin] = (new StoreLocal<Integer>(2)); break;
+                case 0x3e: a[begin] = (new StoreLocal<Integer>(3)); break;
+                case 0x3f: a[begin] = (new StoreLocal<Long>(0)); break;
+                case 0x40: a[begin] = (new StoreLocal<Long>(1)); break;
+                case 0x41: a[begin] = (new StoreLocal<Long>(2)); break;
+                case 0x42: a[begin] = (new StoreLocal<Long>(3)); break;
+                case 0x43: a[begin] = (new StoreLocal<Float>(0)); break;
+                case 0x44: a[begin] = (new StoreLocal<Float>(1)); break;
+                case 0x45: a[begin] = (new StoreLocal<Float>(2)); break;
+                case 0x46: a[begin] = (new StoreLocal<Float>(3)); break;
+                case 0x47: a[begin] = (new StoreLocal<Double>(0)); break;
+                case 0x48: a[begin] = (new StoreLocal<Double>(1)); break;
+                case 0x49: a[begin] = (new StoreLocal<Double>(2)); break;
+                case 0x4a: a[begin] = (new StoreLocal<Double>(3)); break;
+                case 0x4b: a[begin] = (new StoreLocal<Object>(0)); break;
+                case 0x4c: a[begin] = (new StoreLocal<Object>(1)); break;
+                case 0x4d: a[begin] = (new StoreLocal<Object>(2)); break;
+                case 0x4e: a[begin] = (new StoreLocal<Object>(3)); break;
+                case 0x4f: a[begin] = (new StoreArray<Integer>(ElementKind.Int)); break;
+                case 0x50: a[begin] = (new StoreArray<Long>(ElementKind.Long)); break;
+                case 0x51: a[begin] = (new StoreArray<Float>(ElementKind.Float)); break;
+                case 0x52: a[begin] = (new StoreArray<Double>(ElementKind.Double)); break;
+                case 0x53: a[begin] = (new StoreArray<Object>(ElementKind.Reference)); break;
+                case 0x54: a[begin] = (new StoreArray<Byte>(ElementKind.Byte)); break;
+                case 0x55: a[begin] = (new StoreArray<Character>(ElementKind.Char)); break;
+                case 0x56: a[begin] = (new StoreArray<Short>(ElementKind.Short)); break;
+                case 0x57: // pop
+                case 0x58: // pop2
+                case 0x59: // dup
+                case 0x5a: // dup_x1
+                case 0x5b: // dup_x2
+                case 0x5c: // dup2
+                case 0x5d: // dup2_x1
+                case 0x5e: // dup2_x2
+                case 0x5f: // swap
+                    a[begin] = (new StackOp(opcode));
+                    break;
+                case 0x60: a[begin] = (new AddInteger()); break;
+                case 0x61: a[begin] = (new AddLong()); break;
+                case 0x62: a[begin] = (new AddFloat()); break;
+                case 0x63: a[begin] = (new AddDouble()); break;
+                case 0x64: a[begin] = (new SubInteger()); break;
+                case 0x65: a[begin] = (new SubLong()); break;
+                case 0x66: a[begin] = (new SubFloat()); break;
+                case 0x67: a[begin] = (new SubDouble()); break;
+                case 0x68: a[begin] = (new MulInteger()); break;
+                case 0x69: a[begin] = (new MulLong()); break;
+                case 0x6a: a[begin] = (new MulFloat()); break;
+                case 0x6b: a[begin] = (new MulDouble()); break;
+                case 0x6c: a[begin] = (new DivInteger()); break;
+                case 0x6d: a[begin] = (new DivLong()); break;
+                case 0x6e: a[begin] = (new DivFloat()); break;
+                case 0x6f: a[begin] = (new DivDouble()); break;
+                case 0x70: a[begin] = (new RemInteger()); break;
+                case 0x71: a[begin] = (new RemLong()); break;
+                case 0x72: a[begin] = (new RemFloat()); break;
+                case 0x73: a[begin] = (new RemDouble()); break;
+                case 0x74: a[begin] = (new NegInteger()); break;
+                case 0x75: a[begin] = (new NegLong()); break;
+                case 0x76: a[begin] = (new NegFloat()); break;
+                case 0x77: a[begin] = (new NegDouble()); break;
+                case 0x78: a[begin] = (new ShlInteger()); break;
+                case 0x79: a[begin] = (new ShlLong()); break;
+                case 0x7a: a[begin] = (new ShrInteger()); break;
+                case 0x7b: a[begin] = (new ShrLong()); break;
+                case 0x7c: a[begin] = (new UShrInteger()); break;
+                case 0x7d: a[begin] = (new UShrLong()); break;
+                case 0x7e: a[begin] = (new AndInteger()); break;
+                case 0x7f: a[begin] = (new AndLong()); break;
+                case 0x80: a[begin] = (new OrInteger()); break;
+                case 0x81: a[begin] = (new OrLong()); break;
+                case 0x82: a[begin] = (new XOrInteger()); break;
+                case 0x83: a[begin] = (new XOrLong()); break;
+                case 0x84: a[begin] = (new IInc(code[++i] & 0xff, code[++i])); break;
+                case 0x85: a[begin] = (new ConvertIntegerLong()); break;
+                case 0x86: a[begin] = (new ConvertIntegerFloat()); break;
+                case 0x87: a[begin] = (new ConvertIntegerDouble()); break;
+                case 0x88: a[begin] = (new ConvertLongInteger()); break;
+                case 0x89: a[begin] = (new ConvertLongFloat()); break;
+                case 0x8a: a[begin] = (new ConvertLongDouble()); break;
+                case 0x8b: a[begin] = (new ConvertFloatInteger()); break;
+                case 0x8c: a[begin] = (new ConvertFloatLong()); break;
+                case 0x8d: a[begin] = (new ConvertFloatDouble()); break;
+                case 0x8e: a[begin] = (new ConvertDoubleInteger()); break;
+                case 0x8f: a[begin] = (new ConvertDoubleLong()); break;
+                case 0x90: a[begin] = (new ConvertDoubleFloat()); break;
+                case 0x91: a[begin] = (new ConvertIntegerByte()); break;
+                case 0x92: a[begin] = (new ConvertIntegerCharacter()); break;
+                case 0x93: a[begin] = (new ConvertIntegerShort()); break;
+                case 0x94: a[begin] = (new LCmp()); break;
+                case 0x95: a[begin] = (new FCmp(false)); break;
+                case 0x96: a[begin] = (new FCmp(true)); break;
+                case 0x97: a[begin] = (new DCmp(false)); break;
+                case 0x98: a[begin] = (new DCmp(true)); break;
+                case 0x99: a[begin] = (new If(Compare.Eq, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0x9a: a[begin] = (new If(Compare.Ne, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0x9b: a[begin] = (new If(Compare.Lt, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0x9c: a[begin] = (new If(Compare.Ge, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0x9d: a[begin] = (new If(Compare.Gt, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0x9e: a[begin] = (new If(Compare.Le, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0x9f: a[begin] = (new IfCmp(Compare.Eq, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xa0: a[begin] = (new IfCmp(Compare.Ne, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xa1: a[begin] = (new IfCmp(Compare.Lt, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xa2: a[begin] = (new IfCmp(Compare.Ge, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xa3: a[begin] = (new IfCmp(Compare.Gt, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xa4: a[begin] = (new IfCmp(Compare.Le, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xa5: a[begin] = (new IfACmp(true, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xa6: a[begin] = (new IfACmp(false, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xa7:
+                    idx = code[++i] << 8 | code[++i] & 0xff;
+                    a[begin] = (new Goto((short) idx));
+                    break;
+                case 0xa8: // JSR, deprecated
+                case 0xa9: // RET, deprecated
+                    break;
+                case 0xaa: {
+                    // The operands start at the next multiple of four.
+                    int pos = (begin + 4) & ~3;
+                    int default_ = readInt(code, pos);
+                    int low = readInt(code, pos + 4);
+                    int high = readInt(code, pos + 8);
+                    var sw = new TableSwitch(low, high - low + 1);
+                    sw.default_offset = default_;
+                    for (int k = 0; k < sw.offsets.length; k++)
+                        sw.offsets[k] = readInt(code, pos + 12 + 4 * k);
+                    a[begin] = sw;
+                    i = pos + 12 + 4 * sw.offsets.length - 1;
+                } break;
+                case 0xab: {
+                    int pos = (begin + 4) & ~3;
+                    int default_ = readInt(code, pos);
+                    var keys = new int[readInt(code, pos + 4)];
+                    var offsets = new int[keys.length];
+                    for (int k = 0; k < keys.length; k++) {
+                        keys[k] = readInt(code, pos + 8 + 8 * k);
+                        offsets[k] = readInt(code, pos + 12 + 8 * k);
+                    }
+                    var sw = new LookupSwitch(keys);
+                    sw.default_offset = default_;
+                    sw.offsets = offsets;
+                    a[begin] = sw;
+                    i = pos + 8 + 8 * keys.length - 1;
+                } break;
+                case 0xac: a[begin] = (new Return<Integer>()); break;
+                case 0xad: a[begin] = (new Return<Long>()); break;
+                case 0xae: a[begin] = (new Return<Float>()); break;
+                case 0xaf: a[begin] = (new Return<Double>()); break;
+                case 0xb0: a[begin] = (new Return<Object>()); break;
+                case 0xb1: a[begin] = (new Return<Void>(0)); break;
+                case 0xb2:
+//                     obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+//                     a[begin] = (new GetStatic((FieldReference) obj));
+                    break;
+                case 0xb3:
+//                     obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+//                     a[begin] = (new PutStatic((FieldReference) obj));
+                    break;
+                case 0xb4:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new GetField((FieldReference) obj));
+                    break;
+                case 0xb5:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new PutField((FieldReference) obj));
+                    break;
+                case 0xb6:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new InvokeVirtual((Property) obj));
+                    break;
+                case 0xb7:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new InvokeSpecial((Property) obj, obj instanceof MethodReference r && trivialConstructor(cf, r)));
+                    break;
+                case 0xb8:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new InvokeStatic((Property) obj));
+                    break;
+                case 0xb9:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    // The count of argument words and a zero.
+                    i += 2;
+                    a[begin] = (new InvokeInterface((Property) obj));
+                    break;
+                case 0xba: {
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    i += 2;
+                    var nt = (NameAndType) const_pool[((Dynamic) obj).what & 0xffff];
+                    a[begin] = (new InvokeDynamic(((ConstantEntry<String>) const_pool[nt.name & 0xffff]).val,
+                                                  ((ConstantEntry<String>) const_pool[nt.type & 0xffff]).val));
+                } break;
+                case 0xbb:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new New((ClassReference) obj));
+                    break;
+                case 0xbc: a[begin] = (new NewArray(code[++i])); break;
+                case 0xbd:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new NewObjArray((ClassReference) obj));
+                    break;
+                case 0xbe: a[begin] = (new ArrayLength()); break;
+                case 0xbf: a[begin] = (new Throw()); break;
+                case 0xc0:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new CheckCast((ClassReference) obj));
+                    break;
+                case 0xc1:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    a[begin] = (new InstanceOf((ClassReference) obj));
+                    break;
+                case 0xc2: a[begin] = (new MonitorEnter()); break;
+                case 0xc3: a[begin] = (new MonitorExit()); break;
+                case 0xc4: {
+                    // Same as the plain instruction, with a two byte index.
+                    int op = code[++i] & 0xff;
+                    idx = (code[++i] & 0xff) << 8 | code[++i] & 0xff;
+                    switch (op) {
+                        case 0x15: a[begin] = (new LoadLocal<Integer>(idx)); break;
+                        case 0x16: a[begin] = (new LoadLocal<Long>(idx)); break;
+                        case 0x17: a[begin] = (new LoadLocal<Float>(idx)); break;
+                        case 0x18: a[begin] = (new LoadLocal<Double>(idx)); break;
+                        case 0x19: a[begin] = (new LoadLocal<Object>(idx)); break;
+                        case 0x36: a[begin] = (new StoreLocal<Integer>(idx)); break;
+                        case 0x37: a[begin] = (new StoreLocal<Long>(idx)); break;
+                        case 0x38: a[begin] = (new StoreLocal<Float>(idx)); break;
+                        case 0x39: a[begin] = (new StoreLocal<Double>(idx)); break;
+                        case 0x3a: a[begin] = (new StoreLocal<Object>(idx)); break;
+                        case 0x84: a[begin] = (new IInc(idx, code[++i] << 8 | code[++i] & 0xff)); break;
+                        default:
+                            throw new Error("invalid wide opcode");
+                    }
+                } break;
+                case 0xc5:
+                    obj = const_pool[(code[++i] & 0xff) << 8 | code[++i] & 0xff];
+                    idx = code[++i] & 0xff; // dimensions
+                    a[begin] = (new MultiNewArray((ClassReference) obj, idx));
+                    break;
+                case 0xc6: a[begin] = (new IfCheckNull(true, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xc7: a[begin] = (new IfCheckNull(false, code[++i] << 8 | code[++i] & 0xff)); break;
+                case 0xc8: a[begin] = (new Goto(code[++i] << 24 | (code[++i] & 0xff) << 16 | (code[++i] & 0xff) << 8 | code[++i] & 0xff)); break;
+                case 0xc9: // JSR, deprecated
+                    break;
+                case 0xca: // Breakpoint
+                    break;
+                default:
+                    throw new Error("invalid opcode");
+            }
+        }
+
+        var table = parsed.exception_table = new ExceptionRange[is.readUnsignedShort()];
+        for (int k = 0; k < table.length; k++) {
+            var range = table[k] = new ExceptionRange();
+            range.start = is.readUnsignedShort();
+            range.end = is.readUnsignedShort();
+            range.handler = is.readUnsignedShort();
+            idx = is.readUnsignedShort();
+            range.type = idx == 0 ? null : ClassFile.className(const_pool, idx);
+        }
+
+        return parsed;
+    }
+}
+
+class ParsedMethod {
+    // Class.method(descriptor), like the keys of the Profile.
+    String name;
+    ClassFile cf;
+    Method method;
+    int max_stack;
+    int max_locals;
+    int param_count;
+    String[] param_types;
+    Instruction[] insts;
+    ExceptionRange[] exception_table;
+}
+
+// An entry of the exception table, pcs are bytecode offsets. The type is
+// null for a finally.
+class ExceptionRange {
+    int start;
+    int end;
+    int handler;
+    String type;
+}
+
+abstract class Instruction implements Cloneable {
+    Instruction ops[];
+    int result_count;
+    // Number in the graph and where the Executor keeps the value, both
+    // assigned by MethodGraph.seal. Values share slots, ids are unique.
+    int id = -1;
+    int slot = -1;
+
+    Instruction(int argc) {
+        ops = new Instruction[argc];
+        result_count = 1;
+    }
+
+    Instruction(int argc, int res_count) {
+        ops = new Instruction[argc];
+        result_count = res_count;
+    }
+
+    public boolean equals(Object obj) {
+        if (obj instanceof Instruction i) {
+            if (i.getClass() != getClass())
+                return false;
+            return argumentsEqual(i);
+        } else {
+            return false;
+        }
+    }
+    // A copy with operands of its own, for Program.cloneBlocks.
+    Instruction copy() {
+        try {
+            var c = (Instruction) clone();
+            c.ops = ops.clone();
+            return c;
+        } catch (CloneNotSupportedException x) {
+            throw new Error(x);
+        }
+    }
+
+    boolean argumentsEqual(Instruction other) {
+        if (ops.length != other.ops.length)
+            return false;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] != other.ops[i])
+                return false;
+        }
+        return true;
+    }
+
+    public String toString() {
+        return getClass().getName();
+    }
+}
+
+class Nop extends Instruction {
+    Nop() { super(0, 0); }
+}
+
+class Constant<T> extends Instruction {
+    T val;
+    Constant(T v) { super(0); val = v; }
+    Constant(ConstantEntry<T> v) { super(0); val = v.val; }
+
+    public String toString() {
+        return "Constant " + val;
+    }
+
+    public boolean equals(Object obj) {
+        if (obj instanceof Constant c)
+            return val == c.val;
+        else
+            return false;
+    }
+}
+
+class LoadLocal<T> extends Instruction {
+    int index;
+    LoadLocal(int i) { super(0); index = i; }
+}
+class StoreLocal<T> extends Instruction {
+    int index;
+    Instruction value;
+
+    StoreLocal(int i) {
+        super(1, 0);
+        index = i;
+    }
+}
+// pop, dup, swap and friends. They only move values around on the stack,
+// so resolveStack carries them out and drops them.
+class StackOp extends Instruction {
+    int opcode;
+    StackOp(int o) { super(0, 0); opcode = o; }
+}
+
+class GetArg extends Instruction {
+    int index;
+    GetArg(int i) { super(0); index = i; }
+}
+
+// What an array instruction works on. Byte stands for boolean[] as well,
+// the bytecode uses the same instructions for both.
+enum ElementKind {
+    Int,
+    Long,
+    Float,
+    Double,
+    Reference,
+    Byte,
+    Char,
+    Short,
+}
+
+class LoadArray<T> extends Instruction {
+    ElementKind kind;
+    LoadArray(ElementKind k) { super(2); kind = k; }
+    public Instruction array() { return ops[0]; }
+    public Instruction index() { return ops[1]; }
+}
+class StoreArray<T> extends Instruction {
+    ElementKind kind;
+    StoreArray(ElementKind k) { super(3, 0); kind = k; }
+    public Instruction array() { return ops[0]; }
+    public Instruction index() { return ops[1]; }
+    public Instruction val() { return ops[2]; }
+}
+
+class BinaryOperation extends Instruction {
+    BinaryOperation() { super(2); }
+    Instruction lhs() { return ops[0]; }
+    Instruction rhs() { return ops[1]; }
+}
+abstract class Add extends BinaryOperation { Add() { } }
+class AddInteger extends Add { AddInteger() { } }
+class AddLong extends Add { AddLong() { } }
+class AddFloat extends Add { AddFloat() { } }
+class AddDouble extends Add { AddDouble() { } }
+abstract class Sub extends BinaryOperation { Sub() { } }
+class SubInteger extends Sub { SubInteger() { } }
+class SubLong extends Sub { SubLong() { } }
+class SubFloat extends Sub { SubFloat() { } }
+class SubDouble extends Sub { SubDouble() { } }
+abstract class Mul extends BinaryOperation { Mul() { } }
+class MulInteger extends Mul { MulInteger() { } }
+class MulLong extends Mul { MulLong() { } }
+class MulFloat extends Mul { MulFloat() { } }
+class MulDouble extends Mul { MulDouble() { } }
+abstract class Div extends BinaryOperation { Div() { } }
+class DivInteger extends Div { DivInteger() { } }
+class DivLong extends Div { DivLong() { } }
+class DivFloat extends Div { DivFloat() { } }
+class DivDouble extends Div { DivDouble() { } }
+abstract class Rem extends BinaryOperation { Rem() { } }
+class RemInteger extends Rem { RemInteger() { } }
+class RemLong extends Rem { RemLong() { } }
+class RemFloat extends Rem { RemFloat() { } }
+class RemDouble extends Rem { RemDouble() { } }
+abstract class Shl extends BinaryOperation { Shl() { } }
+class ShlInteger extends Shl { ShlInteger() { } }
+class ShlLong extends Shl { ShlLong() { } }
+abstract class Shr extends BinaryOperation { Shr() { } }
+class ShrInteger extends Shr { ShrInteger() { } }
+class ShrLong extends Shr { ShrLong() { } }
+abstract class UShr extends BinaryOperation { UShr() { } }
+class UShrInteger extends UShr { UShrInteger() { } }
+class UShrLong extends UShr { UShrLong() { } }
+abstract class And extends BinaryOperation { And() { } }
+class AndInteger extends And { AndInteger() { } }
+class AndLong extends And { AndLong() { } }
+abstract class Or extends BinaryOperation { Or() { } }
+class OrInteger extends Or { OrInteger() { } }
+class OrLong extends Or { OrLong() { } }
+abstract class XOr extends BinaryOperation { XOr() { } }
+class XOrInteger extends XOr { XOrInteger() { } }
+class XOrLong extends XOr { XOrLong() { } }
+abstract class Neg extends Instruction {
+    Neg() { super(1); }
+    Instruction src() { return ops[0]; }
+}
+class NegInteger extends Neg { NegInteger() { } }
+class NegLong extends Neg { NegLong() { } }
+class NegFloat extends Neg { NegFloat() { } }
+class NegDouble extends Neg { NegDouble() { } }
+
+
+abstract class Convert extends Instruction {
+    Convert() {
+        super(1);
+    };
+}
+class ConvertIntegerLong extends Convert { ConvertIntegerLong() { } }
+class ConvertIntegerFloat extends Convert { ConvertIntegerFloat() { } }
+class ConvertIntegerDouble extends Convert { ConvertIntegerDouble() { } }
+class ConvertLongInteger extends Convert { ConvertLongInteger() { } }
+class ConvertLongFloat extends Convert { ConvertLongFloat() { } }
+class ConvertLongDouble extends Convert { ConvertLongDouble() { } }
+class ConvertFloatInteger extends Convert { ConvertFloatInteger() { } }
+class ConvertFloatLong extends Convert { ConvertFloatLong() { } }
+class ConvertFloatDouble extends Convert { ConvertFloatDouble() { } }
+class ConvertDoubleInteger extends Convert { ConvertDoubleInteger() { } }
+class ConvertDoubleLong extends Convert { ConvertDoubleLong() { } }
+class ConvertDoubleFloat extends Convert { ConvertDoubleFloat() { } }
+class ConvertIntegerByte extends Convert { ConvertIntegerByte() { } }
+class ConvertIntegerCharacter extends Convert { ConvertIntegerCharacter() { } }
+class ConvertIntegerShort extends Convert { ConvertIntegerShort() { } }
+
+class IInc extends Instruction {
+    int index;
+    int constant;
+
+    IInc(int i, int c) {
+        super(0, 0);
+        index = i;
+        constant = c;
+    }
+}
+
+// An AddInteger of a constant, fused by Program.fuse.
+class AddConstant extends Instruction {
+    int constant;
+
+    AddConstant(int c) {
+        super(1);
+        constant = c;
+    }
+    public Instruction src() { return ops[0]; }
+
+    boolean argumentsEqual(Instruction other) {
+        return super.argumentsEqual(other) && constant == ((AddConstant) other).constant;
+    }
+
+    public String toString() {
+        return "AddConstant " + constant;
+    }
+}
+
+class LCmp<T> extends BinaryOperation { LCmp() { } }
+class FCmp extends BinaryOperation {
+    boolean less;
+    FCmp(boolean l) { less = l; }
+}
+class DCmp extends BinaryOperation {
+    boolean less;
+    DCmp(boolean l) { less = l; }
+}
+
+class GetField extends Instruction {
+    FieldReference ref;
+    // Slot of the field in the object, -1 until linked or for classes that
+    // are not loaded.
+    int offset = -1;
+    GetField(FieldReference r) {
+        super(1);
+        ref = r;
+    }
+}
+class PutField extends Instruction {
+    FieldReference ref;
+    int offset = -1;
+    PutField(FieldReference r) {
+        super(2, 0);
+        ref = r;
+    }
+}
+
+
+
+// A call of a guest method. ops are the arguments, starting with the
+// receiver for instance methods. target is filled in by Program.link for
+// calls that do not depend on the receiver, it stays null for methods of
+// classes that are not loaded.
+abstract class Invoke extends Instruction {
+    Property ref;
+    Method target;
+    Invoke(Property r, int receiver) {
+        super(Program.paramTypes(r.descriptor).length + receiver, r.descriptor.endsWith(")V") ? 0 : 1);
+        ref = r;
+    }
+
+    public String toString() {
+        return getClass().getName() + " " + ref.class_name + "." + ref.name + ref.descriptor;
+    }
+}
+class InvokeSpecial extends Invoke {
+    // See Program.trivialConstructor.
+    boolean trivial;
+    InvokeSpecial(Property r, boolean t) {
+        super(r, 1);
+        trivial = t;
+    }
+}
+class InvokeStatic extends Invoke {
+    InvokeStatic(Property r) { super(r, 0); }
+}
+// Calls the method the class of the receiver chooses, see
+// Executor.dispatch, unless link found it cannot be overridden.
+class InvokeVirtual extends Invoke {
+    volatile InlineCache cache;
+    // Name and descriptor, what GuestClass.select looks up.
+    String signature;
+    InvokeVirtual(Property r) {
+        super(r, 1);
+        signature = r.name + r.descriptor;
+    }
+}
+class InvokeInterface extends InvokeVirtual {
+    InvokeInterface(Property r) { super(r); }
+}
+// Parsed for its operands, the bootstrap methods that would link it are
+// host code.
+class InvokeDynamic extends Instruction {
+    String name;
+    InvokeDynamic(String n, String descriptor) {
+        super(Program.paramTypes(descriptor).length, descriptor.endsWith(")V") ? 0 : 1);
+        name = n;
+    }
+}
+
+// The receiver classes a call site saw and the methods they chose, in the
+// order they came. Never changed, Executor.dispatch replaces it with one
+// that has another class, up to POLYMORPHIC_LIMIT of them. After that the
+// site is megamorphic and the classes are asked.
+class InlineCache {
+    GuestClass[] classes;
+    Method[] targets;
+    boolean megamorphic;
+
+    InlineCache(GuestClass[] c, Method[] t, boolean m) {
+        classes = c;
+        targets = t;
+        megamorphic = m;
+    }
+
+    InlineCache add(GuestClass c, Method target) {
+        if (classes.length == Program.POLYMORPHIC_LIMIT)
+            return new InlineCache(classes, targets, true);
+        var cs = Arrays.copyOf(classes, classes.length + 1);
+        var ts = Arrays.copyOf(targets, targets.length + 1);
+        cs[classes.length] = c;
+        ts[targets.length] = target;
+        return new InlineCache(cs, ts, false);
+    }
+}
+
+class New extends Instruction {
+    ClassReference ref;
+    // null until linked or for classes that are not loaded.
+    GuestClass clazz;
+    // The host class otherwise, if there is one, see HostObject.
+    Class<?> host;
+    New(ClassReference r) {
+        super(0);
+        ref = r;
+    }
+}
+class NewArray extends Instruction {
+    int primtype;
+    NewArray(int p) {
+        super(1);
+        primtype = p;
+    }
+}
+class NewObjArray extends Instruction {
+    ClassReference ref;
+    NewObjArray(ClassReference r) {
+        super(1);
+        ref = r;
+    }
+}
+class ArrayLength extends Instruction {
+    ArrayLength() { super(1); }
+}
+class Throw extends Terminator {
+    Throw() { super(1, 0); }
+}
+// The first instruction of a handler, yields what was thrown.
+class CatchException extends Instruction {
+    CatchException() { super(0); }
+}
+// Whether ops[0] is an instance of the class ref, see
+// Executor.isInstance. name and host are filled in by Program.link, host
+// stays null for guest classes and arrays of objects.
+abstract class TypeTest extends Instruction {
+    ClassReference ref;
+    String name;
+    Class<?> host;
+    TypeTest(ClassReference r) {
+        super(1);
+        ref = r;
+    }
+}
+class CheckCast extends TypeTest {
+    CheckCast(ClassReference r) { super(r); }
+}
+class InstanceOf extends TypeTest {
+    InstanceOf(ClassReference r) { super(r); }
+}
+class MonitorEnter extends Instruction {
+    MonitorEnter() { super(1, 0); }
+}
+class MonitorExit extends Instruction {
+    MonitorExit() { super(1, 0); }
+}
+class MultiNewArray extends Instruction {
+    ClassReference ref;
+
+    MultiNewArray(ClassReference r, int dims) {
+        super(dims);
+        ref = r;
+    }
+}
+
+
+
+
+
+
+class Phi extends Instruction {
+    Phi(int count) {
+        super(count);
+    }
+
+    Instruction allTheSame() {
+        Instruction first = null;
+        for (var o : ops) {
+            if (o != this) {
+                if (first == null)
+                    first = o;
+                else if (o != first)
+                    return null;
+            }
+        }
+        return first;
+    }
+}
+
+
+abstract class Terminator extends Instruction {
+    BasicBlock[] destinations;
+    // Filled in by MethodGraph.seal: the phi operand each destination
+    // takes when coming from here, and where the counters of the edges
+    // start.
+    int[] in_index;
+    int edges;
+    // Which destinations are loop headers reached by a back edge where
+    // the Executor counts for on-stack replacement, null for none.
+    boolean[] back;
+
+    Terminator(int operands, int dests) {
+        super(operands, 0);
+        destinations = new BasicBlock[dests];
+    }
+
+    Instruction copy() {
+        var c = (Terminator) super.copy();
+        c.destinations = destinations.clone();
+        c.in_index = null;
+        c.back = null;
+        return c;
+    }
+}
+
+// destinations[0] is the default, destinations[1 + k] the target of the
+// k-th case.
+abstract class Switch extends Terminator {
+    // Relative to the switch, for stackify.
+    int default_offset;
+    int[] offsets;
+
+    Switch(int cases) {
+        super(1, cases + 1);
+        offsets = new int[cases];
+    }
+    public Instruction key() { return ops[0]; }
+}
+
+// The cases are low, low + 1, ...
+class TableSwitch extends Switch {
+    int low;
+
+    TableSwitch(int l, int cases) {
+        super(cases);
+        low = l;
+    }
+}
+
+// The keys of the cases, sorted.
+class LookupSwitch extends Switch {
+    int[] keys;
+
+    LookupSwitch(int[] k) {
+        super(k.length);
+        keys = k;
+    }
+}
+
+// An array element for Program.forwardArrays: the index is split into a
+// root and a constant offset, so that a[i] and a[i + 1] are known to be
+// different elements. value is what a load of it gets, null if not known,
+// pending the last store into it if nothing could have seen that yet.
+class ArrayElement {
+    Instruction array;
+    Instruction root;
+    int offset;
+    ElementKind kind;
+    Instruction value;
+    StoreArray pending;
+    // Index of pending in its block.
+    int pending_at;
+
+    ArrayElement(Instruction a, Instruction index, ElementKind k) {
+        array = a;
+        kind = k;
+        root = index;
+        while (true) {
+            if (root instanceof Constant c && c.val instanceof Integer v) {
+                offset += v;
+                root = null;
+                break;
+            } else if (root instanceof AddConstant add) {
+                offset += add.constant;
+                root = add.src();
+            } else if (root instanceof AddInteger add && add.rhs() instanceof Constant c && c.val instanceof Integer v) {
+                offset += v;
+                root = add.lhs();
+            } else if (root instanceof AddInteger add && add.lhs() instanceof Constant c && c.val instanceof Integer v) {
+                offset += v;
+                root = add.rhs();
+            } else if (root instanceof SubInteger sub && sub.rhs() instanceof Constant c && c.val instanceof Integer v) {
+                offset -= v;
+                root = sub.lhs();
+            } else {
+                break;
+            }
+        }
+    }
+
+    ArrayElement copy() {
+        var e = new ArrayElement(array, null, kind);
+        e.root = root;
+        e.offset = offset;
+        e.value = value;
+        return e;
+    }
+
+    ArrayElement find(ArrayList<ArrayElement> known) {
+        for (var f : known) {
+            if (f.array == array && f.root == root && f.offset == offset && f.kind == kind)
+                return f;
+        }
+        return null;
+    }
+
+    // Arrays of different kinds, arrays allocated by different
+    // instructions and different offsets from the same root never are
+    // the same element.
+    boolean mayAlias(ArrayElement other) {
+        if (kind != other.kind)
+            return false;
+        if (array != other.array)
+            return !(allocation(array) && allocation(other.array));
+        return root != other.root || offset == other.offset;
+    }
+
+    static boolean allocation(Instruction inst) {
+        return inst instanceof NewArray || inst instanceof NewObjArray || inst instanceof MultiNewArray;
+    }
+}
+
+// A loop for Program.unroll: header and the blocks that reach the back
+// edge from latch without going through it, entered only from pre and
+// left only by the edge from exiting to exit. For a counted loop, iv is a
+// phi of the header that goes up by step every iteration, and the loop is
+// left once iv + offset compared with bound, null for 0, does not hold
+// anymore. chain is what of the loop the bound is computed by.
+class NaturalLoop {
+    BasicBlock header;
+    BasicBlock latch;
+    BasicBlock pre;
+    LinkedHashSet<BasicBlock> blocks = new LinkedHashSet<BasicBlock>();
+    HashSet<Instruction> insts = new HashSet<Instruction>();
+    int size;
+    BasicBlock exiting;
+    BasicBlock exit;
+
+    Phi iv;
+    int step;
+    int offset;
+    Compare comparison;
+    Instruction bound;
+    LinkedHashSet<Instruction> chain;
+}
+
+// One compare of a chain for switchify.
+class CaseTest {
+    Instruction value;
+    int key;
+    BasicBlock match;
+    BasicBlock other;
+}
+
+abstract class Branch extends Terminator {
+    short offset;
+
+    Branch(int operands, int o) {
+        super(operands, 2);
+        offset = (short) o;
+    }
+    public BasicBlock on_true() { return destinations[0]; }
+    public BasicBlock on_false() { return destinations[1]; }
+}
+
+class If extends Branch {
+    Compare comparison;
+
+    If(Compare c, int o) {
+        super(1, o);
+        offset = (short) o;
+        comparison = c;
+    }
+    public Instruction condition() { return ops[0]; }
+}
+
+class IfCmp extends Branch {
+    Compare comparison;
+
+    IfCmp(Compare c, int o) {
+        super(2, o);
+        comparison = c;
+    }
+    public Instruction lhs() { return ops[0]; }
+    public Instruction rhs() { return ops[1]; }
+}
+
+// An IfCmp of an int element of an array, fused by Program.fuse.
+class IfCmpArray extends Branch {
+    Compare comparison;
+    ElementKind kind;
+
+    IfCmpArray(Compare c, ElementKind k) {
+        super(3, 0);
+        comparison = c;
+        kind = k;
+    }
+    public Instruction array() { return ops[0]; }
+    public Instruction index() { return ops[1]; }
+    public Instruction rhs() { return ops[2]; }
+}
+
+// An IfCmp of the length of an array, fused by Program.fuse.
+class IfCmpLength extends Branch {
+    Compare comparison;
+
+    IfCmpLength(Compare c) {
+        super(2, 0);
+        comparison = c;
+    }
+    public Instruction lhs() { return ops[0]; }
+    public Instruction array() { return ops[1]; }
+}
+
+class IfACmp extends Branch {
+    boolean equal;
+
+    IfACmp(boolean e, int o) {
+        super(2, o);
+        equal = e;
+    }
+    public Instruction lhs() { return ops[0]; }
+    public Instruction rhs() { return ops[1]; }
+}
+class IfCheckNull extends Branch {
+    boolean is_null;
+
+    IfCheckNull(boolean e, int o) {
+        super(1, o);
+        is_null = e;
+    }
+    public Instruction condition() { return ops[0]; }
+}
+
+
+// A Branch that went the same way every time so far, left by
+// Program.speculate. ops starts with the operands of the test, followed by
+// the values of the frame at the start of the block the branch never went
+// to, where[k] being the local, or max_locals + the stack position, of
+// ops[test.ops.length + k]. When the test goes the other way after all, the
+// Executor continues from that frame in the Speculation's graph entered at
+// pc.
+class Guard extends Terminator {
+    Branch test;
+    int expected;
+    int pc;
+    int frame_size;
+    int[] where;
+    AtomicLong failures = new AtomicLong();
+
+    Guard(Branch t, int e, int p, int size, ArrayList<Instruction> values, ArrayList<Integer> w) {
+        super(t.ops.length + values.size(), 1);
+        test = t;
+        expected = e;
+        pc = p;
+        frame_size = size;
+        System.arraycopy(t.ops, 0, ops, 0, t.ops.length);
+        for (int k = 0; k < values.size(); k++)
+            ops[t.ops.length + k] = values.get(k);
+        where = w.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    Instruction copy() {
+        var c = (Guard) super.copy();
+        c.test = (Branch) test.copy();
+        c.failures = new AtomicLong();
+        return c;
+    }
+}
+
+class Return<T> extends Terminator {
+    Return() { super(1, 0); }
+    // Without a value, for void methods.
+    Return(int operands) { super(operands, 0); }
+}
+
+class Goto extends Terminator {
+    int offset;
+    BasicBlock dest;
+
+    Goto(int o) {
+        super(0, 1);
+        offset = o;
+    }
+}
+
+class BasicBlock {
+    ArrayList<BasicBlock> incoming;
+    ArrayList<Instruction> insts;
+
+    // Edge counts of earlier runs, see Profile.
+    long[] profiled;
+    boolean cold;
+    // Bytecode offset of the first instruction, -1 for blocks that do not
+    // come from the bytecode.
+    int pc = -1;
+
+    // Used for construction.
+    Instruction[] inputs;
+    // The values of the locals and then of the stack at the start of the
+    // block, for speculate to leave in a Guard and for on-stack
+    // replacement. Kept up to date by replaceAllUsage and fuse. Values
+    // that were removed were not used anymore, except for objects that
+    // scalarReplace took apart.
+    Instruction[] state;
+    // Index among the loop headers an invocation can leave the graph at,
+    // -1 if it cannot leave here, see MethodGraph.findOsrEntries.
+    int osr = -1;
+    // The pcs of the blocks Program.mergeBlocks appended to this one, in
+    // order, null if none.
+    int[] merged;
+
+    Terminator terminator;
+    // Where an exception thrown in the block goes, the first one that
+    // catches it is taken. The handlers have the block as incoming and get
+    // the locals it started with.
+    ArrayList<Handler> handlers;
+
+    // Edits recorded by insertBefore, insertAfter and unlink. Until apply
+    // puts them in, insts and the indices into it stay as they were.
+    BitSet unlinked;
+    // Ordered by key, 2 * index for before and 2 * index + 1 for after
+    // the instruction at index, unless unsorted.
+    long[] insert_keys;
+    Instruction[] inserted;
+    int insert_count;
+    boolean unsorted;
+
+    BasicBlock() {
+        incoming = new ArrayList<BasicBlock>();
+        insts = new ArrayList<Instruction>();
+        handlers = new ArrayList<Handler>();
+    }
+
+    // An index of insts.size() inserts at the end. Several instructions
+    // inserted at the same place end up in the order they were inserted.
+    void insertBefore(int index, Instruction inst) {
+        insert(2L * index, inst);
+    }
+
+    void insertAfter(int index, Instruction inst) {
+        insert(2L * index + 1, inst);
+    }
+
+    void unlink(int index) {
+        if (unlinked == null)
+            unlinked = new BitSet(insts.size());
+        unlinked.set(index);
+    }
+
+    void insert(long key, Instruction inst) {
+        if (inserted == null) {
+            insert_keys = new long[8];
+            inserted = new Instruction[8];
+        } else if (insert_count == inserted.length) {
+            insert_keys = Arrays.copyOf(insert_keys, insert_count * 2);
+            inserted = Arrays.copyOf(inserted, insert_count * 2);
+        }
+        if (insert_count > 0 && insert_keys[insert_count - 1] > key)
+            unsorted = true;
+        insert_keys[insert_count] = key;
+        inserted[insert_count++] = inst;
+    }
+
+    // Carries out the edits recorded so far in one pass over the block.
+    void apply() {
+        if (unlinked == null && insert_count == 0)
+            return;
+        var order = inserted;
+        if (unsorted) {
+            // By key, then in the order inserted.
+            var sorted = new long[insert_count];
+            for (int k = 0; k < insert_count; k++)
+                sorted[k] = insert_keys[k] << 24 | k;
+            Arrays.sort(sorted);
+            order = new Instruction[insert_count];
+            for (int k = 0; k < insert_count; k++) {
+                int at = (int) (sorted[k] & 0xffffff);
+                order[k] = inserted[at];
+                insert_keys[k] = sorted[k] >> 24;
+            }
+        }
+        int n = insts.size();
+        var result = new ArrayList<Instruction>(n + insert_count);
+        int p = 0;
+        for (int i = 0; i < n; i++) {
+            for (; p < insert_count && insert_keys[p] == 2L * i; p++)
+                result.add(order[p]);
+            if (unlinked == null || !unlinked.get(i))
+                result.add(insts.get(i));
+            for (; p < insert_count && insert_keys[p] == 2L * i + 1; p++)
+                result.add(order[p]);
+        }
+        for (; p < insert_count; p++)
+            result.add(order[p]);
+        insts = result;
+        unlinked = null;
+        insert_keys = null;
+        inserted = null;
+        insert_count = 0;
+        unsorted = false;
+    }
+
+    // The pc of the block the terminator came from.
+    int lastPc() {
+        return merged == null ? pc : merged[merged.length - 1];
+    }
+
+    // PERFORMANCE Oh no!
+    int inputIndex(BasicBlock inc) {
+        for (int i = 0; i < incoming.size(); i++) {
+            if (inc == incoming.get(i))
+                return i;
+        }
+        return -1;
+    }
+}
+
+
+class Handler {
+    // Internal name of the class caught, null for anything.
+    String type;
+    BasicBlock target;
+    // Filled in by MethodGraph.seal like Terminator.in_index.
+    int in_index;
+
+    Handler(String t, BasicBlock b) {
+        type = t;
+        target = b;
+    }
+}
+
+
+enum Compare {
+    Lt,
+    Ge,
+    Gt,
+    Le,
+    Eq,
+    Ne,
+}
+
+
+
+class ClassFile {
+    String name;
+    int access_flags;
+    // null for java/lang/Object.
+    String super_name;
+    String[] interface_names;
+    ConstObject[] constants;
+    // By name, the last one for overloaded methods.
+    HashMap<String, Method> methods;
+    // By name and descriptor, for calls.
+    HashMap<String, Method> by_signature;
+    HashMap<String, Field> fields;
+    HashMap<String, byte[]> attributes;
+    GuestClass layout;
+    // The classes it can use, null if it was not loaded as one of them.
+    Classes classes;
+
+    static int ACC_PUBLIC = 0x0001; // 	Declared public; may be accessed from outside its package.
+    static int ACC_FINAL = 0x0010; // 	Declared final; no subclasses allowed.
+    static int ACC_SUPER = 0x0020; // 	Treat superclass methods specially when invoked by the invokespecial instruction.
+    static int ACC_INTERFACE = 0x0200; // 	Is an interface, not a class.
+    static int ACC_ABSTRACT = 0x0400; // 	Declared abstract; must not be instantiated.
+    static int ACC_SYNTHETIC = 0x1000; // 	Declared synthetic; not present in the source code.
+    static int ACC_ANNOTATION = 0x2000; // 	Declared as an annotation type.
+    static int ACC_ENUM = 0x4000; // 	Declared as an enum type.
+    ClassFile(DataInputStream file) throws IOException {
+        // https://en.wikipedia.org/wiki/Java_class_file#Representation_in_a_C-like_programming_language
+        int magic = file.readInt();
+        assert magic == 0xcafebabe;
+
+        int version = file.readInt();
+
+        var constants = new ConstObject[file.readUnsignedShort()];
+        for (int i = 1; i < constants.length; i++) {
+            constants[i] = readConstant(file);
+            // Longs and doubles take up two entries.
+            if (constants[i] instanceof ConstantEntry e && (e.val instanceof Long || e.val instanceof Double))
+                i++;
+        }
+        for (var c : constants) {
+            if (c instanceof Property p)
+                p.resolve(constants);
+        }
+        this.constants = constants;
+
+        access_flags = file.readUnsignedShort();
+        short this_class = file.readShort();
+        short super_class = file.readShort();
+        name = className(constants, this_class);
+        if (super_class != 0)
+            super_name = className(constants, super_class);
+
+        interface_names = new String[file.readShort()];
+        for (int i = 0; i < interface_names.length; i++)
+            interface_names[i] = className(constants, file.readShort());
+
+        // In the order they are declared, for the layout.
+        fields = new LinkedHashMap<String, Field>();
+        int fields_count = file.readShort();
+        for (int i = 0; i < fields_count; i++) {
+            short sub_access_flags = file.readShort();
+            var name = (ConstantEntry<String>) constants[file.readShort()];
+            var descriptor = (ConstantEntry<String>) constants[file.readShort()];
+            var attributes = readAttributes(file, file.readShort(), constants);
+            fields.put(name.val, new Field(sub_access_flags, name.val, descriptor.val, attributes));
+        }
+
+        methods = new HashMap<String, Method>();
+        by_signature = new HashMap<String, Method>();
+        int methods_count = file.readShort();
+        for (int i = 0; i < methods_count; i++) {
+            short sub_access_flags = file.readShort();
+            var name = (ConstantEntry<String>) constants[file.readShort()];
+
+            var descriptor = (ConstantEntry<String>) constants[file.readShort()];
+            var attributes = readAttributes(file, file.readShort(), constants);
+            var m = new Method(sub_access_flags, name.val, descriptor.val, attributes);
+            m.cf = this;
+            methods.put(name.val, m);
+            by_signature.put(name.val + descriptor.val, m);
+        }
+
+        attributes = readAttributes(file, file.readShort(), constants);
+        layout = new GuestClass(this, null);
+    }
+
+    static String className(ConstObject[] constants, int index) {
+        return className(constants, (ClassReference) constants[index]);
+    }
+
+    static String className(ConstObject[] constants, ClassReference ref) {
+        return ((ConstantEntry<String>) constants[ref.index & 0xffff]).val;
+    }
+
+    static HashMap<String, byte[]> readAttributes(DataInputStream file, int count, ConstObject[] constants) throws IOException {
+        var res = new HashMap<String, byte[]>();
+        for (int i = 0; i < count; i++) {
+            var name = (ConstantEntry<String>) constants[file.readShort()];
+            var data = new byte[file.readInt()];
+            file.read(data);
+            res.put(name.val, data);
+        }
+        return res;
+    }
+
+    static ConstObject readConstant(DataInputStream input) throws IOException {
+        // https://en.wikipedia.org/wiki/Java_class_file#The_constant_pool
+        var UTF8_CHARSET = StandardCharsets.UTF_8;
+        int b = input.readByte();
+        switch (b) {
+            case 1:
+                var buf = new byte[input.readShort()];
+                input.read(buf);
+                return new ConstantEntry(new String(buf, UTF8_CHARSET));
+            case 3:
+                return new ConstantEntry(input.readInt());
+            case 4:
+                return new ConstantEntry(input.readFloat());
+            case 5:
+                return new ConstantEntry(input.readLong());
+            case 6:
+                return new ConstantEntry(input.readDouble());
+            case 7:
+                return new ClassReference(input.readShort());
+            case 8:
+                return new StringReference(input.readShort());
+            case 9:
+                return new FieldReference(input.readShort(), input.readShort());
+            case 10:
+                return new MethodReference(input.readShort(), input.readShort());
+            case 11:
+                return new InterfaceMethodReference(input.readShort(), input.readShort());
+            case 12:
+                return new NameAndType(input.readShort(), input.readShort());
+            case 15:
+                return new MethodHandle(input.readByte(), input.readShort());
+            case 16:
+                return new MethodType(input.readShort());
+            case 17:
+            case 18:
+                return new Dynamic(input.readInt());
+            case 19:
+                return new Module(input.readShort());
+            case 20:
+                return new Package(input.readShort());
+            default:
+                throw new Error("invalid constant pool entry " + b);
+        }
+    }
+}
+
+interface ConstObject {}
+
+class ConstantEntry<T> implements ConstObject {
+    T val;
+    ConstantEntry(T v) {
+        val = v;
+    }
+}
+
+class ClassReference implements ConstObject {
+    short index;
+    ClassReference(short i) { index = i; }
+}
+class StringReference implements ConstObject {
+    short index;
+    StringReference(short i) { index = i; }
+}
+
+class Property implements ConstObject {
+    int class_index;
+    int name_and_type_index;
+    // Filled in by resolve once the whole constant pool is read, the
+    // entries can refer to ones that come later.
+    ClassReference clazz;
+    NameAndType field;
+    String class_name;
+    String name;
+    String descriptor;
+
+    Property(short c, short n) {
+        class_index = c & 0xffff;
+        name_and_type_index = n & 0xffff;
+    }
+
+    void resolve(ConstObject[] constants) {
+        clazz = (ClassReference) constants[class_index];
+        field = (NameAndType) constants[name_and_type_index];
+        class_name = ClassFile.className(constants, class_index);
+        name = ((ConstantEntry<String>) constants[field.name & 0xffff]).val;
+        descriptor = ((ConstantEntry<String>) constants[field.type & 0xffff]).val;
+    }
+}
+class FieldReference extends Property {
+    FieldReference(short c, short n) { super(c, n); }
+}
+class MethodReference extends Property {
+    MethodReference(short c, short n) { super(c, n); }
+}
+class InterfaceMethodReference extends Property {
+    InterfaceMethodReference(short c, short n) { super(c, n); }
+}
+class NameAndType implements ConstObject {
+    short name;
+    short type;
+    NameAndType(short n, short t) {
+        name = n;
+        type = t;
+    }
+}
+class MethodHandle implements ConstObject {
+    byte typedescriptor;
+    short index;
+    MethodHandle(byte t, short i) {
+        typedescriptor = t;
+        index = i;
+    }
+}
+class MethodType implements ConstObject {
+    short index;
+    MethodType(short i) { index = i; }
+}
+class Dynamic implements ConstObject {
+    int what;
+    Dynamic(int i) { what = i; }
+}
+class Module implements ConstObject {
+    short id;
+    Module(short i) { id = i; }
+}
+class Package implements ConstObject {
+    short id;
+    Package(short i) { id = i; }
+}
+
+
+class MethodGraph {
+    // Instruction[] insts;
+    // Class.method(descriptor), null for generated graphs.
+    String name;
+    BasicBlock entry;
+    List<BasicBlock> blocks;
+    int max_locals;
+    String[] param_types;
+
+    boolean sealed;
+    int inst_count;
+    // Size of the frame of an invocation, see SlotAllocator.
+    int slot_count;
+    Counters counters;
+    boolean has_handlers;
+    // Where the graph came from, to build it again, null for generated
+    // graphs.
+    ClassFile cf;
+    Method method;
+    // Set if speculate left any guards.
+    Speculation speculation;
+    // Whether applyProfile had edge counts to go by. Graphs built without
+    // have loop headers where the Executor moves on to one built with
+    // the counts so far, in osr_graphs by pc.
+    boolean has_profile;
+    int osr_headers;
+    HashMap<Integer, MethodGraph> osr_graphs = new HashMap<Integer, MethodGraph>();
+    // Arrays among the constants whose elements do not change, for
+    // foldConstants to read, see Program.specialize.
+    HashSet<Object> constant_arrays = new HashSet<Object>();
+
+
+    MethodGraph(List<BasicBlock> e, int m) {
+        blocks = e;
+        entry = e.get(0);
+        max_locals = m;
+    }
+    void print(PrintWriter p) throws IOException  {
+        new Printer(p).print(entry);
+    }
+
+    // Called at the end of optimize. Numbers the instructions, gives them
+    // slots in the frame the Executor keeps the values of an invocation
+    // in, works out which phi operand every edge selects and sets up the
+    // counters: one per instruction for its cycles, followed by one per
+    // edge. The graph must not change afterwards, which makes it safe to
+    // run from many threads at once.
+    void seal() {
+        int ids = 0;
+        int edges = 0;
+        for (var blk : blocks) {
+            for (var inst : blk.insts)
+                inst.id = ids++;
+            var t = blk.terminator;
+            t.in_index = new int[t.destinations.length];
+            for (int k = 0; k < t.destinations.length; k++)
+                t.in_index[k] = t.destinations[k].inputIndex(blk);
+            t.edges = edges;
+            edges += t.destinations.length;
+            for (var h : blk.handlers)
+                h.in_index = h.target.inputIndex(blk);
+            has_handlers |= !blk.handlers.isEmpty();
+            // Passes after speculate only changed the operands of the guard.
+            if (t instanceof Guard g)
+                System.arraycopy(g.ops, 0, g.test.ops, 0, g.test.ops.length);
+        }
+        inst_count = ids;
+        findOsrEntries();
+        slot_count = new SlotAllocator(this).allocate();
+        counters = new Counters(ids + edges);
+        sealed = true;
+    }
+
+    // Successors include the handlers, blocks that cannot be reached are
+    // left out.
+    BasicBlock[] reversePostorder() {
+        var post = new ArrayList<BasicBlock>();
+        var visited = new HashSet<BasicBlock>();
+        var stack = new ArrayList<BasicBlock>();
+        var next = new ArrayList<Integer>();
+        visited.add(entry);
+        stack.add(entry);
+        next.add(0);
+        while (!stack.isEmpty()) {
+            int top = stack.size() - 1;
+            var blk = stack.get(top);
+            int k = next.get(top);
+            var dests = blk.terminator.destinations;
+            if (k < dests.length + blk.handlers.size()) {
+                next.set(top, k + 1);
+                var succ = k < dests.length ? dests[k] : blk.handlers.get(k - dests.length).target;
+                if (visited.add(succ)) {
+                    stack.add(succ);
+                    next.add(0);
+                }
+            } else {
+                stack.remove(top);
+                next.remove(top);
+                post.add(blk);
+            }
+        }
+        Collections.reverse(post);
+        return post.toArray(new BasicBlock[0]);
+    }
+
+    // Marks the back edges into loop headers that have a pc and whose
+    // state can be rebuilt: values no longer in the graph were dead, so
+    // they are left out, but an object scalarReplace took apart is not.
+    void findOsrEntries() {
+        if (cf == null || has_profile)
+            return;
+        var present = new HashSet<Instruction>();
+        for (var blk : blocks)
+            present.addAll(blk.insts);
+        var position = new HashMap<BasicBlock, Integer>();
+        for (var blk : reversePostorder())
+            position.put(blk, position.size());
+
+        for (var blk : blocks) {
+            var t = blk.terminator;
+            for (int k = 0; k < t.destinations.length; k++) {
+                var head = t.destinations[k];
+                if (!position.containsKey(blk) || position.get(head) > position.get(blk))
+                    continue;
+                if (head.osr < 0 && !osrState(head, present))
+                    continue;
+                if (head.osr < 0)
+                    head.osr = osr_headers++;
+                if (t.back == null)
+                    t.back = new boolean[t.destinations.length];
+                t.back[k] = true;
+            }
+        }
+    }
+
+    static boolean osrState(BasicBlock head, HashSet<Instruction> present) {
+        if (head.pc < 0 || head.state == null || head.insts.get(0) instanceof CatchException)
+            return false;
+        for (var v : head.state) {
+            if (v instanceof New && !present.contains(v))
+                return false;
+        }
+        for (int i = 0; i < head.state.length; i++) {
+            if (!present.contains(head.state[i]))
+                head.state[i] = null;
+        }
+        return true;
+    }
+
+    // The graph an invocation continues in from the loop header at pc,
+    // built with the edge counts of this graph so far.
+    synchronized MethodGraph osrGraph(BasicBlock head) {
+        var graph = osr_graphs.get(head.pc);
+        if (graph == null) {
+            ParsedMethod parsed;
+            try {
+                parsed = Program.parseMethod(cf, method);
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+            graph = Program.stackify(parsed, head.pc, head.state.length - max_locals);
+            graph.name += "@" + head.pc;
+            var profile = new Profile();
+            profile.record(name, this);
+            profile.apply(name, graph);
+            Program.optimize(graph);
+            osr_graphs.put(head.pc, graph);
+        }
+        return graph;
+    }
+
+    long cycles(Instruction inst) {
+        return counters.get(inst.id);
+    }
+
+    long taken(BasicBlock blk, int k) {
+        return counters.get(inst_count + blk.terminator.edges + k);
+    }
+
+    void replaceAllUsage(Instruction a, Instruction b) {
+        assert !sealed : "Changing a sealed graph!";
+        for (var blk : blocks) {
+            for (var inst : blk.insts) {
+                for (int j = 0; j < inst.ops.length; j++) {
+                    if (inst.ops[j] == a)
+                        inst.ops[j] = b;
+                }
+            }
+            if (blk.state != null) {
+                for (int j = 0; j < blk.state.length; j++) {
+                    if (blk.state[j] == a)
+                        blk.state[j] = b;
+                }
+            }
+        }
+    }
+
+    class Printer {
+        int block_id;
+        int inst_id;
+        PrintWriter out;
+        HashMap<BasicBlock, Integer> visited;
+        HashMap<Instruction, Integer> inst_ids;
+
+        Printer(PrintWriter p) {
+            out = p;
+        }
+
+        void print(BasicBlock b) throws IOException {
+            visited = new HashMap<BasicBlock, Integer>();
+            visited.put(b, 0);
+            inst_ids = new HashMap<Instruction, Integer>();
+            for (var blk : blocks) {
+                for (var inst : blk.insts) {
+                    inst_ids.put(inst, inst_id++);
+                }
+            }
+
+            block_id = 1;
+            inst_id = 0;
+            printBlock(b);
+        }
+
+        void printBlock(BasicBlock b) {
+            int self = block_id;
+            String content = " { Block " + self;
+            for (var inst : b.insts) {
+                content = content + " | ";
+
+                content += "i" + inst_ids.get(inst) + ": " + inst.toString();
+                for (var op : inst.ops) {
+                    content += " i" + inst_ids.get(op);
+                }
+            }
+            content += "} ";
+
+            if (sealed && counters.used()) {
+                content += " | {#";
+                for (var inst : b.insts)
+                    content += "|" + cycles(inst);
+                content += "}";
+            }
+
+            out.printf("  bb%d [shape=record, labeljust=l%s, label=\"%s\"]\n",
+                       self, b.cold ? ", style=dashed" : "", content);
+            for (var d : b.terminator.destinations)
+                printEdge(self, d, "");
+            for (var h : b.handlers)
+                printEdge(self, h.target, " [style=dashed]");
+        }
+
+        void printEdge(int self, BasicBlock d, String style) {
+            var got = visited.putIfAbsent(d, block_id+1);
+            int dest_id;
+            if (got == null) {
+                block_id++;
+                dest_id = block_id;
+                out.printf("  bb%d -> bb%d%s\n", self, dest_id, style);
+                printBlock(d);
+            } else {
+                dest_id = got;
+                out.printf("  bb%d -> bb%d%s\n", self, dest_id, style);
+            }
+        }
+    }
+}
+
+
+// Profiling counters of a MethodGraph. Every thread counts into an array
+// of its own, so executing threads never write to the same memory, and
+// reading a counter sums up the arrays of all threads. The arrays of
+// threads that ended are added to ended and dropped, the Daemon starts a
+// thread per connection.
+class Counters {
+    int size;
+    ThreadLocal<long[]> local;
+    ArrayList<Counting> all;
+    long[] ended;
+    boolean used;
+
+    static class Counting {
+        Thread thread;
+        long[] counts;
+
+        Counting(Thread t, long[] c) {
+            thread = t;
+            counts = c;
+        }
+    }
+
+    Counters(int s) {
+        size = s;
+        all = new ArrayList<Counting>();
+        ended = new long[size];
+        local = ThreadLocal.withInitial(() -> {
+            var counts = new long[size];
+            synchronized (this) {
+                collect();
+                all.add(new Counting(Thread.currentThread(), counts));
+                used = true;
+            }
+            return counts;
+        });
+    }
+
+    long[] local() {
+        return local.get();
+    }
+
+    synchronized long get(int i) {
+        collect();
+        long n = ended[i];
+        for (var c : all)
+            n += c.counts[i];
+        return n;
+    }
+
+    synchronized boolean used() {
+        return used;
+    }
+
+    // A thread that ended counts no more.
+    void collect() {
+        for (int k = all.size(); k-- > 0;) {
+            var c = all.get(k);
+            if (c.thread.isAlive())
+                continue;
+            for (int i = 0; i < size; i++)
+                ended[i] += c.counts[i];
+            all.remove(k);
+        }
+    }
+}
+
+
+// Gives the values of a graph their slots in the frame of an invocation.
+// A value is live from its definition to its uses, found by walking back
+// from every use to the definition, so only the blocks a value is live in
+// are visited. Positions follow the layout of the blocks, and a linear
+// scan over the live ranges lets values that are never live at the same
+// time share a slot. The phis of a block all read their operands before
+// any of them writes (see Executor.execute), an operand still stays live
+// up to its phi, which at most costs a slot. A phi tries to get the slot
+// of one of its operands, which makes the move a no-op.
+class SlotAllocator {
+    MethodGraph graph;
+    HashMap<BasicBlock, Integer> index;
+    // First and last position of every block. An instruction uses its
+    // operands at an even position and defines its value at the next one.
+    int[] from;
+    int[] to;
+    int[] def;
+    int[] def_block;
+    Interval[] intervals;
+    // The last value found to be live at the end of the block.
+    int[] live_out;
+
+    SlotAllocator(MethodGraph g) {
+        graph = g;
+        int n = g.blocks.size();
+        index = new HashMap<BasicBlock, Integer>();
+        from = new int[n];
+        to = new int[n];
+        def = new int[g.inst_count];
+        def_block = new int[g.inst_count];
+        intervals = new Interval[g.inst_count];
+        live_out = new int[n];
+        Arrays.fill(live_out, -1);
+
+        int pos = 0;
+        for (int b = 0; b < n; b++) {
+            var blk = g.blocks.get(b);
+            index.put(blk, b);
+            from[b] = 2 * pos;
+            for (var inst : blk.insts) {
+                def[inst.id] = 2 * pos + 1;
+                def_block[inst.id] = b;
+                // Everything else writes its slot, even without a result.
+                if (!(inst instanceof Terminator))
+                    intervals[inst.id] = new Interval(def[inst.id]);
+                pos++;
+            }
+            to[b] = 2 * pos - 1;
+        }
+    }
+
+    // Returns the number of slots.
+    int allocate() {
+        var users = new ArrayList<ArrayList<Instruction>>(graph.inst_count);
+        for (int i = 0; i < graph.inst_count; i++)
+            users.add(null);
+        for (var blk : graph.blocks) {
+            for (var inst : blk.insts) {
+                for (var op : inst.ops) {
+                    if (op == null)
+                        continue;
+                    var list = users.get(op.id);
+                    if (list == null)
+                        users.set(op.id, list = new ArrayList<Instruction>());
+                    if (list.isEmpty() || list.get(list.size() - 1) != inst)
+                        list.add(inst);
+                }
+            }
+        }
+        for (var blk : graph.blocks) {
+            for (var inst : blk.insts) {
+                if (intervals[inst.id] != null && users.get(inst.id) != null)
+                    liveness(inst, users.get(inst.id));
+            }
+        }
+        int slots = scan();
+        for (var blk : graph.blocks) {
+            for (var inst : blk.insts) {
+                if (intervals[inst.id] != null)
+                    inst.slot = intervals[inst.id].slot;
+            }
+        }
+        return slots;
+    }
+
+    void liveness(Instruction value, ArrayList<Instruction> users) {
+        var it = intervals[value.id];
+        for (var u : users) {
+            int b = def_block[u.id];
+            var blk = graph.blocks.get(b);
+            int use = def[u.id] - 1;
+            for (int k = 0; k < u.ops.length; k++) {
+                if (u.ops[k] != value)
+                    continue;
+                if (u instanceof Phi) {
+                    it.add(from[b], use);
+                    liveOut(value, blk.incoming.get(k));
+                    it.hints.add(intervals[u.id]);
+                    intervals[u.id].hints.add(it);
+                } else if (def_block[value.id] == b && def[value.id] < use) {
+                    it.add(def[value.id], use);
+                } else {
+                    it.add(from[b], use);
+                    for (var pred : blk.incoming)
+                        liveOut(value, pred);
+                }
+            }
+        }
+    }
+
+    // An exception edge leaves from anywhere in the block, but whatever
+    // its handler needs is live at the end of the block as well, so it
+    // is live in all of it.
+    void liveOut(Instruction value, BasicBlock blk) {
+        var it = intervals[value.id];
+        var work = new ArrayList<BasicBlock>();
+        work.add(blk);
+        while (!work.isEmpty()) {
+            var b = index.get(work.remove(work.size() - 1));
+            // Not in the graph any more.
+            if (b == null || live_out[b] == value.id)
+                continue;
+            live_out[b] = value.id;
+            if (def_block[value.id] == b) {
+                it.add(def[value.id], to[b]);
+            } else {
+                it.add(from[b], to[b]);
+                work.addAll(graph.blocks.get(b).incoming);
+            }
+        }
+    }
+
+    int scan() {
+        var unhandled = new ArrayList<Interval>();
+        for (var it : intervals) {
+            if (it != null) {
+                it.normalize();
+                unhandled.add(it);
+            }
+        }
+        unhandled.sort((a, b) -> Integer.compare(a.start(), b.start()));
+
+        // Live at the current position, and started but in a gap.
+        var active = new ArrayList<Interval>();
+        var inactive = new ArrayList<Interval>();
+        var blocked = new boolean[16];
+        int slots = 0;
+        for (var cur : unhandled) {
+            int pos = cur.start();
+            for (int i = 0; i < active.size(); i++) {
+                var it = active.get(i);
+                if (it.covers(pos))
+                    continue;
+                remove(active, i--);
+                if (it.end() >= pos)
+                    inactive.add(it);
+            }
+            for (int i = 0; i < inactive.size(); i++) {
+                var it = inactive.get(i);
+                if (it.end() >= pos && !it.covers(pos))
+                    continue;
+                remove(inactive, i--);
+                if (it.end() >= pos)
+                    active.add(it);
+            }
+
+            Arrays.fill(blocked, 0, slots, false);
+            for (var it : active)
+                blocked[it.slot] = true;
+            for (var it : inactive) {
+                if (!blocked[it.slot] && it.intersects(cur))
+                    blocked[it.slot] = true;
+            }
+            int slot = -1;
+            for (var h : cur.hints) {
+                if (h.slot >= 0 && !blocked[h.slot]) {
+                    slot = h.slot;
                     break;
-                default:
-                    throw new Error("invalid opcode");
+                }
+            }
+            for (int k = 0; slot < 0 && k < slots; k++) {
+                if (!blocked[k])
+                    slot = k;
             }
+            if (slot < 0) {
+                slot = slots++;
+                if (slots > blocked.length)
+                    blocked = Arrays.copyOf(blocked, 2 * slots);
+            }
+            cur.slot = slot;
+            active.add(cur);
         }
+        return slots;
+    }
 
-        return parsed;
+    static void remove(ArrayList<Interval> list, int i) {
+        int last = list.size() - 1;
+        list.set(i, list.get(last));
+        list.remove(last);
     }
 }
 
-class ParsedMethod {
-    int max_stack;
-    int max_locals;
-    int param_count;
-    Instruction[] insts;
+// Estimates what running a graph costs without running it, with the cycle
+// counts of Executor.cost. Every block is assumed to run as often as the
+// loops around it iterate, taking both sides of every branch. That makes
+// the figures upper bounds, as long as the trip count of every loop
+// follows from an induction variable with a constant start, step and
+// limit. A loop where it does not is assumed to iterate UNKNOWN_TRIPS
+// times, and the figures are only estimates.
+class CostEstimate {
+    static int UNKNOWN_TRIPS = 10;
+    // Trip counts are found by stepping the induction variable, up to
+    // this many times.
+    static int MAX_TRIPS = 1 << 20;
+
+    MethodGraph graph;
+    BasicBlock[] order;
+    HashMap<BasicBlock, Integer> index;
+    int[] idom;
+    // Cycles of one execution, how often each block runs and in how many
+    // loops it is.
+    long[] cost;
+    long[] times;
+    int[] depth;
+    long total;
+    boolean bounded = true;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: Program --costs <Name.class>");
+            return;
+        }
+        ClassFile cf;
+        try (var in = new DataInputStream(Files.newInputStream(Paths.get(args[1])))) {
+            cf = new ClassFile(in);
+        }
+        new Classes(Paths.get(args[1]).toAbsolutePath().getParent()).add(cf);
+        var method = cf.methods.get("main");
+        if (method == null)
+            throw new Error("does not contain method main!");
+        var graph = Program.stackify(Program.parseMethod(cf, method));
+        Program.optimize(graph, System.out);
+
+        var estimate = new CostEstimate(graph);
+        for (int b = 0; b < estimate.order.length; b++) {
+            System.out.printf("  block %4d: depth %d, %3d cycles x %d\n", estimate.order[b].pc,
+                              estimate.depth[b], estimate.cost[b], estimate.times[b]);
+        }
+    }
+
+    CostEstimate(MethodGraph g) {
+        graph = g;
+        order = g.reversePostorder();
+        int n = order.length;
+        index = new HashMap<BasicBlock, Integer>();
+        for (int b = 0; b < n; b++)
+            index.put(order[b], b);
+        dominators();
+
+        cost = new long[n];
+        times = new long[n];
+        depth = new int[n];
+        Arrays.fill(times, 1);
+        for (int b = 0; b < n; b++) {
+            for (var inst : order[b].insts)
+                cost[b] += Executor.cost(inst);
+        }
+
+        // Every block that jumps back to a block dominating it closes a
+        // loop, all latches of a header make one loop.
+        for (int h = 0; h < n; h++) {
+            var latches = new ArrayList<Integer>();
+            for (var pred : order[h].incoming) {
+                var p = index.get(pred);
+                if (p != null && dominates(h, p))
+                    latches.add(p);
+            }
+            if (latches.isEmpty())
+                continue;
+            var body = loopBody(h, latches);
+            long trips = trips(h, body, latches);
+            if (trips < 0) {
+                bounded = false;
+                trips = UNKNOWN_TRIPS;
+            }
+            // The header runs once more than the rest of the body.
+            for (int b = 0; b < n; b++) {
+                if (body[b]) {
+                    times[b] = multiply(times[b], trips + 1);
+                    depth[b]++;
+                }
+            }
+        }
+        for (int b = 0; b < n; b++)
+            total = add(total, multiply(cost[b], times[b]));
+    }
+
+    String summary() {
+        return String.format("%d cycles %s", total, bounded ? "at most" : "estimated");
+    }
+
+    // Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm".
+    void dominators() {
+        int n = order.length;
+        idom = new int[n];
+        Arrays.fill(idom, -1);
+        idom[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = 1; b < n; b++) {
+                int dom = -1;
+                for (var pred : order[b].incoming) {
+                    var p = index.get(pred);
+                    if (p == null || idom[p] < 0)
+                        continue;
+                    dom = dom < 0 ? p : intersect(dom, p);
+                }
+                if (dom != idom[b]) {
+                    idom[b] = dom;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    int intersect(int a, int b) {
+        while (a != b) {
+            while (a > b)
+                a = idom[a];
+            while (b > a)
+                b = idom[b];
+        }
+        return a;
+    }
+
+    boolean dominates(int a, int b) {
+        while (b != a && b != 0)
+            b = idom[b];
+        return b == a;
+    }
+
+    boolean[] loopBody(int header, ArrayList<Integer> latches) {
+        var body = new boolean[order.length];
+        body[header] = true;
+        var work = new ArrayList<Integer>(latches);
+        while (!work.isEmpty()) {
+            int b = work.remove(work.size() - 1);
+            if (body[b])
+                continue;
+            body[b] = true;
+            for (var pred : order[b].incoming) {
+                var p = index.get(pred);
+                if (p != null)
+                    work.add(p);
+            }
+        }
+        return body;
+    }
+
+    // How often the body of the loop runs, -1 if that is not known. Looks
+    // for a phi of the header that starts at a constant and is stepped by
+    // a constant in the loop, compared against a constant by a branch out
+    // of the loop that runs on every iteration.
+    long trips(int header, boolean[] body, ArrayList<Integer> latches) {
+        long best = -1;
+        for (var inst : order[header].insts) {
+            if (!(inst instanceof Phi p))
+                continue;
+            Instruction start = null;
+            Instruction next = null;
+            boolean same = true;
+            for (int k = 0; k < p.ops.length; k++) {
+                var pred = index.get(order[header].incoming.get(k));
+                boolean inside = pred != null && body[pred];
+                if (inside && (next == null || next == p.ops[k]))
+                    next = p.ops[k];
+                else if (!inside && (start == null || start == p.ops[k]))
+                    start = p.ops[k];
+                else
+                    same = false;
+            }
+            if (!same || !(start instanceof Constant c && c.val instanceof Integer init))
+                continue;
+            Integer step = step(p, next);
+            if (step == null)
+                continue;
+
+            for (int b = 0; b < order.length; b++) {
+                if (!body[b] || !(order[b].terminator instanceof Branch br))
+                    continue;
+                boolean stays = body[index.get(br.on_true())];
+                if (stays == body[index.get(br.on_false())])
+                    continue;
+                boolean every = true;
+                for (int latch : latches)
+                    every &= dominates(b, latch);
+                if (!every)
+                    continue;
+                long n = exits(br, p, next, init, step, stays);
+                if (n >= 0)
+                    best = best < 0 ? n : Math.min(best, n);
+            }
+        }
+        return best;
+    }
+
+    // The constant next adds to the phi, before or after fuse.
+    static Integer step(Phi p, Instruction next) {
+        switch (next) {
+            case AddConstant a when a.src() == p:
+                return a.constant;
+            case AddInteger a when a.lhs() == p && a.rhs() instanceof Constant c && c.val instanceof Integer k:
+                return k;
+            case AddInteger a when a.rhs() == p && a.lhs() instanceof Constant c && c.val instanceof Integer k:
+                return k;
+            case null, default:
+                return null;
+        }
+    }
+
+    // After how many iterations the branch leaves the loop.
+    static long exits(Branch br, Phi p, Instruction next, int init, int step, boolean stays) {
+        Compare cmp;
+        Instruction lhs;
+        Instruction rhs;
+        switch (br) {
+            case If i: {
+                cmp = i.comparison;
+                lhs = i.condition();
+                rhs = null;
+            } break;
+            case IfCmp i: {
+                cmp = i.comparison;
+                lhs = i.lhs();
+                rhs = i.rhs();
+            } break;
+            default:
+                return -1;
+        }
+        if (lhs != p && lhs != next) {
+            var swap = lhs;
+            lhs = rhs;
+            rhs = swap;
+            cmp = Program.flip(cmp);
+        }
+        if (lhs != p && lhs != next)
+            return -1;
+        int limit;
+        if (rhs == null)
+            limit = 0;
+        else if (rhs instanceof Constant c && c.val instanceof Integer v)
+            limit = v;
+        else
+            return -1;
+
+        int value = lhs == p ? init : init + step;
+        for (int k = 0; k < MAX_TRIPS; k++) {
+            if (Executor.compare(cmp, value, limit) != stays)
+                return k;
+            value += step;
+        }
+        return -1;
+    }
+
+    static long multiply(long a, long b) {
+        try {
+            return Math.multiplyExact(a, b);
+        } catch (ArithmeticException x) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    static long add(long a, long b) {
+        try {
+            return Math.addExact(a, b);
+        } catch (ArithmeticException x) {
+            return Long.MAX_VALUE;
+        }
+    }
 }
 
-abstract class Instruction {
-    Instruction ops[];
-    int result_count;
+// Where a value is live, as first and last positions of disjoint ranges.
+class Interval {
+    int[] ranges;
+    int count;
+    // Intervals it would like to share the slot with.
+    ArrayList<Interval> hints;
+    int slot = -1;
+
+    Interval(int def) {
+        ranges = new int[4];
+        hints = new ArrayList<Interval>();
+        add(def, def);
+    }
 
-    Instruction(int argc) {
-        ops = new Instruction[argc];
-        result_count = 1;
+    void add(int first, int last) {
+        if (count == ranges.length)
+            ranges = Arrays.copyOf(ranges, 2 * count);
+        ranges[count++] = first;
+        ranges[count++] = last;
     }
 
-    Instruction(int argc, int res_count) {
-        ops = new Instruction[argc];
-        result_count = res_count;
+    // Sorts the ranges and merges the ones that touch.
+    void normalize() {
+        var pairs = new long[count / 2];
+        for (int i = 0; i < pairs.length; i++)
+            pairs[i] = (long) ranges[2 * i] << 32 | ranges[2 * i + 1];
+        Arrays.sort(pairs);
+        count = 0;
+        for (var pair : pairs) {
+            int first = (int) (pair >>> 32);
+            int last = (int) pair;
+            if (count > 0 && first <= ranges[count - 1] + 1) {
+                ranges[count - 1] = Math.max(ranges[count - 1], last);
+            } else {
+                ranges[count++] = first;
+                ranges[count++] = last;
+            }
+        }
     }
 
-    public boolean equals(Object obj) {
-        if (obj instanceof Instruction i) {
-            if (i.getClass() != getClass())
-                return false;
-            return argumentsEqual(i);
-        } else {
-            return false;
+    int start() { return ranges[0]; }
+    int end() { return ranges[count - 1]; }
+
+    boolean covers(int pos) {
+        int lo = 0;
+        int hi = count / 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ranges[2 * mid + 1] < pos)
+                lo = mid + 1;
+            else
+                hi = mid;
         }
+        return lo < count / 2 && ranges[2 * lo] <= pos;
     }
-    boolean argumentsEqual(Instruction other) {
-        if (ops.length != other.ops.length)
-            return false;
-        for (int i = 0; i < ops.length; i++) {
-            if (ops[i] != other.ops[i])
+
+    boolean intersects(Interval other) {
+        int i = 0;
+        int j = 0;
+        while (i < count && j < other.count) {
+            if (ranges[i + 1] < other.ranges[j])
+                i += 2;
+            else if (other.ranges[j + 1] < ranges[i])
+                j += 2;
+            else
+                return true;
+        }
+        return false;
+    }
+}
+
+
+// Edge counts collected by the Executor, summed up over all runs and
+// keyed by method. Blocks are identified by the bytecode offset they
+// start at, so a profile stays valid as long as the class file does.
+class Profile {
+    TreeMap<String, TreeMap<Long, Long>> methods = new TreeMap<>();
+
+    static Profile load(Path path) throws IOException {
+        var profile = new Profile();
+        if (!Files.exists(path))
+            return profile;
+        for (var line : Files.readAllLines(path)) {
+            var parts = line.split(" ");
+            if (parts.length != 4)
+                continue;
+            profile.add(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        Long.parseLong(parts[3]));
+        }
+        return profile;
+    }
+
+    void save(Path path) throws IOException {
+        try (var out = new PrintWriter(Files.newBufferedWriter(path))) {
+            for (var m : methods.entrySet()) {
+                for (var e : m.getValue().entrySet()) {
+                    long edge = e.getKey();
+                    out.printf("%s %d %d %d\n", m.getKey(), edge >> 32, (int) edge, e.getValue());
+                }
+            }
+        }
+    }
+
+    void add(String method, int from, int to, long count) {
+        methods.computeIfAbsent(method, k -> new TreeMap<>()).merge(edge(from, to), count, Long::sum);
+    }
+
+    // Adds the counts the Executor left in the graph, in the graph it was
+    // built into again if its guards failed too often and in the graphs
+    // invocations moved on to at loop headers. A failed guard counts as an
+    // edge to where execution continued.
+    void record(String method, MethodGraph g) {
+        if (!g.sealed)
+            return;
+        for (var blk : g.blocks) {
+            var dests = blk.terminator.destinations;
+            int from = blk.pc;
+            if (blk.merged != null) {
+                // The blocks merged into this one were gone through as
+                // often as it was left.
+                long n = blk.terminator instanceof Guard guard ? guard.failures.get() : 0;
+                for (int k = 0; k < dests.length; k++)
+                    n += g.taken(blk, k);
+                for (int pc : blk.merged) {
+                    if (pc < 0)
+                        continue;
+                    if (from >= 0 && n > 0)
+                        add(method, from, pc, n);
+                    from = pc;
+                }
+            }
+            if (from < 0)
+                continue;
+            for (int k = 0; k < dests.length; k++) {
+                long n = g.taken(blk, k);
+                int to = leadsTo(dests[k], 4);
+                if (to >= 0 && n > 0)
+                    add(method, from, to, n);
+            }
+            if (blk.terminator instanceof Guard guard && guard.failures.get() > 0)
+                add(method, from, guard.pc, guard.failures.get());
+        }
+        if (g.speculation != null && g.speculation.recompiled != null)
+            record(method, g.speculation.recompiled);
+        synchronized (g) {
+            for (var osr : g.osr_graphs.values())
+                record(method, osr);
+        }
+    }
+
+    // Fills in BasicBlock.profiled for optimize.
+    void apply(String method, MethodGraph g) {
+        var edges = methods.get(method);
+        if (edges == null)
+            return;
+        for (var blk : g.blocks) {
+            if (blk.pc < 0)
+                continue;
+            var dests = blk.terminator.destinations;
+            blk.profiled = new long[dests.length];
+            for (int k = 0; k < dests.length; k++) {
+                if (dests[k].pc >= 0)
+                    blk.profiled[k] = edges.getOrDefault(edge(blk.pc, dests[k].pc), 0L);
+            }
+        }
+    }
+
+    // The pc of a block, or for one that does not come from the bytecode,
+    // like those unroll puts in front of a loop, the pc all of its ways
+    // lead to, if there is one.
+    static int leadsTo(BasicBlock blk, int depth) {
+        if (blk.pc >= 0 || depth == 0)
+            return blk.pc;
+        int pc = -1;
+        for (var dest : blk.terminator.destinations) {
+            int to = leadsTo(dest, depth - 1);
+            if (to < 0 || pc >= 0 && to != pc)
+                return -1;
+            pc = to;
+        }
+        return pc;
+    }
+
+    static long edge(int from, int to) {
+        return (long) from << 32 | to;
+    }
+}
+
+
+// What a graph with guards falls back on: the graphs without speculation
+// that execution continues in when a guard fails, one per pc, built on the
+// first failure there, and after DEOPT_LIMIT failures the graph built again
+// without the guards that failed.
+class Speculation {
+    ClassFile cf;
+    Method method;
+    // The edge counts speculate went by, per pc, for building it again.
+    HashMap<Integer, long[]> profiled = new HashMap<Integer, long[]>();
+    // Blocks whose branch failed as a guard before.
+    HashSet<Integer> failed = new HashSet<Integer>();
+    HashMap<Integer, MethodGraph> entries = new HashMap<Integer, MethodGraph>();
+    AtomicInteger failures = new AtomicInteger();
+    volatile MethodGraph recompiled;
+
+    Speculation(ClassFile c, Method m) {
+        cf = c;
+        method = m;
+    }
+
+    synchronized MethodGraph entry(int pc, int depth) {
+        var graph = entries.get(pc);
+        if (graph == null) {
+            graph = Program.stackify(parse(), pc, depth);
+            graph.name += "@" + pc;
+            Program.optimize(graph);
+            entries.put(pc, graph);
+        }
+        return graph;
+    }
+
+    // Counts a failure of a guard of graph, on the last one that is
+    // allowed builds the graph again.
+    void failed(MethodGraph graph) {
+        if (failures.incrementAndGet() != Program.DEOPT_LIMIT)
+            return;
+        var fresh = Program.stackify(parse());
+        for (var blk : fresh.blocks) {
+            var counts = profiled.get(blk.pc);
+            if (counts != null)
+                blk.profiled = counts.clone();
+        }
+        fresh.speculation = new Speculation(cf, method);
+        fresh.speculation.failed.addAll(failed);
+        for (var blk : graph.blocks) {
+            if (blk.terminator instanceof Guard g && g.failures.get() > 0)
+                fresh.speculation.failed.add(blk.lastPc());
+        }
+        Program.optimize(fresh);
+        recompiled = fresh;
+    }
+
+    ParsedMethod parse() {
+        try {
+            return Program.parseMethod(cf, method);
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+}
+
+
+// The graphs of a method specialized on the values of some of its
+// arguments, see Program.specialize, for calls that pass the same ones
+// again and again. Primitives and the primitive arrays the method only
+// reads whose elements specialize folds are told apart by their
+// contents, so the graph works on a copy of such an array and a call
+// with an equal array, or the same one changed back, finds it again.
+// Longer ones of these could only be told apart by identity, and callers
+// like the Daemon pass new ones every time, so such calls run the generic
+// graph. Everything else is told apart by identity. Entries keep a hash
+// of what they were built for, so only the one that matches is compared
+// element by element. The SPECIALIZE_CACHE graphs used last are kept.
+// Looking them up takes no lock, graphs are built outside of it, so calls
+// with other values do not wait for each other.
+class Specializer {
+    ClassFile cf;
+    Method method;
+    MethodGraph generic;
+    boolean[] fixed;
+    boolean[] by_contents;
+    // Replaced as a whole when one is added.
+    volatile Entry[] entries = new Entry[0];
+    int built;
+
+    Specializer(MethodGraph generic, boolean[] f) {
+        if (generic.cf == null)
+            throw new Error("cannot specialize generated graph " + generic.name);
+        cf = generic.cf;
+        method = generic.method;
+        this.generic = generic;
+        fixed = f;
+        if (fixed.length != generic.param_types.length)
+            throw new Error("expected " + generic.param_types.length + " arguments to fix, got " + fixed.length);
+        var g = Program.stackify(parse());
+        var users = Program.users(g);
+        boolean stores = Program.storesArrays(g);
+        by_contents = new boolean[fixed.length];
+        for (var inst : g.entry.insts) {
+            if (inst instanceof GetArg a && fixed[a.index]) {
+                var type = g.param_types[a.index];
+                by_contents[a.index] = type.length() == 1
+                    || type.length() == 2 && !stores && Program.onlyRead(a, users, new HashSet<Instruction>());
+            }
+        }
+    }
+
+    // The primitive arrays the method only reads, for calls that pass
+    // the same arrays but vary the rest.
+    static boolean[] readArrays(MethodGraph generic) {
+        var fixed = new boolean[generic.param_types.length];
+        for (int i = 0; i < fixed.length; i++) {
+            var type = generic.param_types[i];
+            fixed[i] = type.startsWith("[") && type.length() == 2;
+        }
+        var s = new Specializer(generic, fixed);
+        for (int i = 0; i < fixed.length; i++)
+            fixed[i] &= s.by_contents[i];
+        return fixed;
+    }
+
+    Object invoke(Executor executor, Object... args) {
+        return executor.invoke(graph(args), args);
+    }
+
+    MethodGraph graph(Object[] args) {
+        if (args.length != fixed.length)
+            throw new Error("expected " + fixed.length + " arguments, got " + args.length);
+        for (int i = 0; i < args.length; i++) {
+            if (fixed[i] && by_contents[i] && Program.primitiveArray(args[i]) && !Program.foldable(args[i]))
+                return generic;
+        }
+        int hash = hash(args);
+        var found = find(entries, args, hash);
+        if (found != null) {
+            found.used = System.nanoTime();
+            return found.graph;
+        }
+        var values = args.clone();
+        for (int i = 0; i < values.length; i++) {
+            if (!fixed[i])
+                values[i] = null;
+            else if (byContents(i, values[i]) && Program.primitiveArray(values[i]))
+                values[i] = copy(values[i]);
+        }
+        var graph = Program.stackify(parse());
+        Program.specialize(graph, values, fixed);
+        Program.optimize(graph);
+        return add(values, hash, graph);
+    }
+
+    // Of the fixed arguments, by contents where they are told apart so.
+    int hash(Object[] args) {
+        int h = 1;
+        for (int i = 0; i < args.length; i++) {
+            if (fixed[i])
+                h = 31 * h + (byContents(i, args[i]) ? contentHash(args[i]) : System.identityHashCode(args[i]));
+        }
+        return h;
+    }
+
+    static int contentHash(Object v) {
+        switch (v) {
+            case int[] a: return Arrays.hashCode(a);
+            case long[] a: return Arrays.hashCode(a);
+            case float[] a: return Arrays.hashCode(a);
+            case double[] a: return Arrays.hashCode(a);
+            case byte[] a: return Arrays.hashCode(a);
+            case boolean[] a: return Arrays.hashCode(a);
+            case char[] a: return Arrays.hashCode(a);
+            case short[] a: return Arrays.hashCode(a);
+            default: return Objects.hashCode(v);
+        }
+    }
+
+    boolean byContents(int i, Object v) {
+        return by_contents[i] && (!Program.primitiveArray(v) || Program.foldable(v));
+    }
+
+    Entry find(Entry[] in, Object[] args, int hash) {
+        for (var e : in) {
+            if (e.hash == hash && matches(e.values, args))
+                return e;
+        }
+        return null;
+    }
+
+    boolean matches(Object[] values, Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!fixed[i] || values[i] == args[i])
+                continue;
+            if (!byContents(i, args[i]) || !Objects.deepEquals(values[i], args[i]))
                 return false;
         }
         return true;
     }
 
-    public String toString() {
-        return getClass().getName();
+    // Unless another thread added the same values meanwhile, then its
+    // graph is taken. Replaces the one used longest ago once full.
+    synchronized MethodGraph add(Object[] values, int hash, MethodGraph graph) {
+        var old = entries;
+        var same = find(old, values, hash);
+        if (same != null)
+            return same.graph;
+        var e = new Entry(values, hash, graph);
+        Entry[] now;
+        if (old.length < Program.SPECIALIZE_CACHE) {
+            now = Arrays.copyOf(old, old.length + 1);
+            now[old.length] = e;
+        } else {
+            int eldest = 0;
+            for (int k = 1; k < old.length; k++) {
+                if (old[k].used < old[eldest].used)
+                    eldest = k;
+            }
+            now = old.clone();
+            now[eldest] = e;
+        }
+        entries = now;
+        built++;
+        return graph;
+    }
+
+    static Object copy(Object array) {
+        switch (array) {
+            case int[] a: return a.clone();
+            case long[] a: return a.clone();
+            case float[] a: return a.clone();
+            case double[] a: return a.clone();
+            case byte[] a: return a.clone();
+            case boolean[] a: return a.clone();
+            case char[] a: return a.clone();
+            case short[] a: return a.clone();
+            default: throw new Error("not a primitive array: " + array);
+        }
+    }
+
+    ParsedMethod parse() {
+        try {
+            return Program.parseMethod(cf, method);
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    // A graph and the fixed arguments it was built for.
+    static class Entry {
+        Object[] values;
+        // See Specializer.hash.
+        int hash;
+        MethodGraph graph;
+        // When it was last used, for add. Written without a lock, a stale
+        // one only evicts a graph a bit early.
+        long used = System.nanoTime();
+
+        Entry(Object[] v, int h, MethodGraph g) {
+            values = v;
+            hash = h;
+            graph = g;
+        }
     }
 }
 
-class Nop extends Instruction {
-    Nop() { super(0, 0); }
+
+class Field {
+    int access_flags;
+    String name;
+    String descriptor;
+    HashMap<String, byte[]> attributes;
+
+    Field(int access_flags, String n, String d, HashMap<String, byte[]> a) {
+        this.access_flags = access_flags;
+        name = n;
+        descriptor = d;
+        attributes = a;
+    }
 }
 
-class Constant<T> extends Instruction {
-    T val;
-    Constant(T v) { super(0); val = v; }
-    Constant(ConstantEntry<T> v) { super(0); val = v.val; }
+// The layout of the objects of a class: every instance field gets a slot,
+// in the order they are declared, after the ones of the superclass if it
+// is loaded, so a slot means the same field in all subclasses. Also what
+// a virtual call on the objects runs.
+class GuestClass {
+    String name;
+    ClassFile cf;
+    GuestClass sup;
+    HashMap<String, Integer> slots;
+    Object[] defaults;
+    // The methods virtual calls chose so far, by name and descriptor.
+    ConcurrentHashMap<String, Method> vtable = new ConcurrentHashMap<String, Method>();
+    // The names of the class, its superclasses and interfaces, see types.
+    volatile HashSet<String> types;
+
+    GuestClass(ClassFile c, GuestClass s) {
+        name = c.name;
+        cf = c;
+        sup = s;
+        slots = s == null ? new HashMap<String, Integer>() : new HashMap<String, Integer>(s.slots);
+        var values = new ArrayList<Object>(s == null ? List.of() : Arrays.asList(s.defaults));
+        for (var f : c.fields.values()) {
+            if ((f.access_flags & Method.ACC_STATIC) != 0)
+                continue;
+            slots.put(f.name, values.size());
+            values.add(Program.defaultValue(f.descriptor));
+        }
+        defaults = values.toArray();
+    }
 
-    public String toString() {
-        return "Constant " + val.toString();
+    // The host class the topmost guest superclass extends, null if it is
+    // not one the host has.
+    Class<?> host() {
+        var c = this;
+        while (c.sup != null)
+            c = c.sup;
+        if (c.cf.super_name == null)
+            return null;
+        try {
+            return Class.forName(c.cf.super_name.replace('/', '.'));
+        } catch (ClassNotFoundException x) {
+            return null;
+        }
     }
 
-    public boolean equals(Object obj) {
-        if (obj instanceof Constant c)
-            return val == c.val;
-        else
-            return false;
+    HashSet<String> types() {
+        var t = types;
+        if (t != null)
+            return t;
+        synchronized (this) {
+            if (types == null) {
+                var names = new ArrayList<String>();
+                for (var c = this; c != null; c = c.sup) {
+                    names.add(c.name);
+                    if (c.sup == null && c.cf.super_name != null)
+                        names.add(c.cf.super_name);
+                }
+                for (int k = 0; k < names.size(); k++) {
+                    var c = Program.classFile(cf, names.get(k));
+                    if (c == null)
+                        continue;
+                    for (var n : c.interface_names) {
+                        if (!names.contains(n))
+                            names.add(n);
+                    }
+                }
+                types = new HashSet<String>(names);
+            }
+            return types;
+        }
     }
-}
 
-class LoadLocal<T> extends Instruction {
-    int index;
-    LoadLocal(int i) { super(0); index = i; }
-}
-class StoreLocal<T> extends Instruction {
-    int index;
-    Instruction value;
+    // What a virtual or interface call of signature runs: the method
+    // declared here or in the nearest superclass, else a default method of
+    // an interface, null if there is none.
+    Method select(String signature) {
+        var m = vtable.get(signature);
+        if (m != null)
+            return m;
+        for (var c = this; c != null && m == null; c = c.sup) {
+            var d = c.cf.by_signature.get(signature);
+            if (d != null && (d.access_flags & Method.ACC_STATIC) == 0)
+                m = d;
+        }
+        // The interfaces of the class first, then theirs.
+        var interfaces = new ArrayList<ClassFile>();
+        for (var c = this; c != null && m == null; c = c.sup)
+            interfaces.add(c.cf);
+        for (int k = 0; k < interfaces.size() && m == null; k++) {
+            var c = interfaces.get(k);
+            for (var n : c.interface_names) {
+                var i = Program.classFile(cf, n);
+                if (i == null || interfaces.contains(i))
+                    continue;
+                var d = i.by_signature.get(signature);
+                if (d != null && (d.access_flags & (Method.ACC_STATIC | Method.ACC_ABSTRACT)) == 0) {
+                    m = d;
+                    break;
+                }
+                interfaces.add(i);
+            }
+        }
+        if (m != null)
+            vtable.put(signature, m);
+        return m;
+    }
 
-    StoreLocal(int i) {
-        super(1, 0);
-        index = i;
+    // -1 for fields of other classes.
+    int offset(FieldReference ref) {
+        if (!ref.class_name.equals(name))
+            return -1;
+        var slot = slots.get(ref.name);
+        if (slot == null)
+            throw new Error(name + " has no field " + ref.name);
+        return slot;
     }
 }
-class GetArg extends Instruction {
-    int index;
-    GetArg(int i) { super(0); index = i; }
-}
 
-class LoadArray<T> extends Instruction {
-    LoadArray() { super(2); }
-    public Instruction array() { return ops[0]; }
-    public Instruction index() { return ops[1]; }
-}
-class StoreArray<T> extends Instruction {
-    StoreArray() { super(3, 0); }
-    public Instruction array() { return ops[0]; }
-    public Instruction index() { return ops[1]; }
-    public Instruction val() { return ops[2]; }
-}
+// An instance of a guest class, with its fields in the slots of the layout.
+class GuestObject {
+    GuestClass clazz;
+    Object[] fields;
 
-class BinaryOperation extends Instruction {
-    BinaryOperation() { super(2); }
-    Instruction lhs() { return ops[0]; }
-    Instruction rhs() { return ops[1]; }
-}
-abstract class Add extends BinaryOperation { Add() { } }
-class AddInteger extends Add { AddInteger() { } }
-class AddLong extends Add { AddLong() { } }
-class AddFloat extends Add { AddFloat() { } }
-class AddDouble extends Add { AddDouble() { } }
-abstract class Sub extends BinaryOperation { Sub() { } }
-class SubInteger extends Sub { SubInteger() { } }
-class SubLong extends Sub { SubLong() { } }
-class SubFloat extends Sub { SubFloat() { } }
-class SubDouble extends Sub { SubDouble() { } }
-abstract class Mul extends BinaryOperation { Mul() { } }
-class MulInteger extends Mul { MulInteger() { } }
-class MulLong extends Mul { MulLong() { } }
-class MulFloat extends Mul { MulFloat() { } }
-class MulDouble extends Mul { MulDouble() { } }
-abstract class Div extends BinaryOperation { Div() { } }
-class DivInteger extends Div { DivInteger() { } }
-class DivLong extends Div { DivLong() { } }
-class DivFloat extends Div { DivFloat() { } }
-class DivDouble extends Div { DivDouble() { } }
-abstract class Rem extends BinaryOperation { Rem() { } }
-class RemInteger extends Rem { RemInteger() { } }
-class RemLong extends Rem { RemLong() { } }
-class RemFloat extends Rem { RemFloat() { } }
-class RemDouble extends Rem { RemDouble() { } }
-abstract class Shl extends BinaryOperation { Shl() { } }
-class ShlInteger extends Shl { ShlInteger() { } }
-class ShlLong extends Shl { ShlLong() { } }
-abstract class Shr extends BinaryOperation { Shr() { } }
-class ShrInteger extends Shr { ShrInteger() { } }
-class ShrLong extends Shr { ShrLong() { } }
-abstract class UShr extends BinaryOperation { UShr() { } }
-class UShrInteger extends UShr { UShrInteger() { } }
-class UShrLong extends UShr { UShrLong() { } }
-abstract class And extends BinaryOperation { And() { } }
-class AndInteger extends And { AndInteger() { } }
-class AndLong extends And { AndLong() { } }
-abstract class Or extends BinaryOperation { Or() { } }
-class OrInteger extends Or { OrInteger() { } }
-class OrLong extends Or { OrLong() { } }
-abstract class XOr extends BinaryOperation { XOr() { } }
-class XOrInteger extends XOr { XOrInteger() { } }
-class XOrLong extends XOr { XOrLong() { } }
-abstract class Neg extends Instruction {
-    Neg() { super(1); }
-    Instruction src() { return ops[0]; }
+    GuestObject(GuestClass c) {
+        clazz = c;
+        fields = c.defaults.clone();
+    }
 }
-class NegInteger extends Neg { NegInteger() { } }
-class NegLong extends Neg { NegLong() { } }
-class NegFloat extends Neg { NegFloat() { } }
-class NegDouble extends Neg { NegDouble() { } }
 
+// An object of a host class from New until its constructor ran, which
+// only then creates value, see Executor.construct.
+class HostObject {
+    Class<?> clazz;
+    Object value;
 
-abstract class Convert extends Instruction {
-    Convert() {
-        super(1);
-    };
+    HostObject(Class<?> c) {
+        clazz = c;
+    }
 }
-class ConvertIntegerLong extends Convert { ConvertIntegerLong() { } }
-class ConvertIntegerFloat extends Convert { ConvertIntegerFloat() { } }
-class ConvertIntegerDouble extends Convert { ConvertIntegerDouble() { } }
-class ConvertLongInteger extends Convert { ConvertLongInteger() { } }
-class ConvertLongFloat extends Convert { ConvertLongFloat() { } }
-class ConvertLongDouble extends Convert { ConvertLongDouble() { } }
-class ConvertFloatInteger extends Convert { ConvertFloatInteger() { } }
-class ConvertFloatLong extends Convert { ConvertFloatLong() { } }
-class ConvertFloatDouble extends Convert { ConvertFloatDouble() { } }
-class ConvertDoubleInteger extends Convert { ConvertDoubleInteger() { } }
-class ConvertDoubleLong extends Convert { ConvertDoubleLong() { } }
-class ConvertDoubleFloat extends Convert { ConvertDoubleFloat() { } }
-class ConvertIntegerByte extends Convert { ConvertIntegerByte() { } }
-class ConvertIntegerCharacter extends Convert { ConvertIntegerCharacter() { } }
-class ConvertIntegerShort extends Convert { ConvertIntegerShort() { } }
 
-class IInc extends Instruction {
-    int index;
-    int constant;
+// What the guest threw, a host Throwable or a GuestObject, on its way to
+// a handler. Only these reach the handlers of the guest, anything else
+// thrown while running it is a fault of the Executor. See
+// Executor.guestException.
+class GuestException extends RuntimeException {
+    Object val;
 
-    IInc(int i, int c) {
-        super(0, 0);
-        index = i;
-        if (c < 128) // Signed byte
-            constant = c;
-        else
-            constant = c - 256;
+    GuestException(Object v) {
+        super(v instanceof Throwable t ? t.toString() : ((GuestObject) v).clazz.name, v instanceof Throwable t ? t : null, false, false);
+        val = v;
     }
 }
 
-class LCmp<T> extends BinaryOperation { LCmp() { } }
-class FCmp extends BinaryOperation {
-    boolean less;
-    FCmp(boolean l) { less = l; }
-}
-class DCmp extends BinaryOperation {
-    boolean less;
-    DCmp(boolean l) { less = l; }
-}
+class Method {
+    int access_flags;
+    String name;
+    String descriptor;
+    HashMap<String, byte[]> attributes;
+    // The class it is declared in.
+    ClassFile cf;
+    // Built on the first call, see graph. Volatile so that calls that find
+    // it built do not lock.
+    volatile MethodGraph graph;
 
-class GetField extends Instruction {
-    FieldReference ref;
-    GetField(FieldReference r) {
-        super(1);
-        ref = r;
+    static int ACC_PRIVATE = 0x0002;
+    static int ACC_STATIC = 0x0008;
+    static int ACC_FINAL = 0x0010;
+    static int ACC_ABSTRACT = 0x0400;
+
+    Method(int access_flags, String n, String d, HashMap<String, byte[]> a) {
+        this.access_flags = access_flags;
+        name = n;
+        descriptor = d;
+        attributes = a;
     }
-}
-class PutField extends Instruction {
-    FieldReference ref;
-    PutField(FieldReference r) {
-        super(2);
-        ref = r;
+
+    MethodGraph graph() {
+        var g = graph;
+        if (g != null)
+            return g;
+        synchronized (this) {
+            if (graph == null) {
+                if (attributes.get("Code") == null)
+                    throw new Error(cf.name + "." + name + descriptor + " is abstract");
+                try {
+                    g = Program.stackify(Program.parseMethod(cf, this));
+                } catch (IOException x) {
+                    throw new UncheckedIOException(x);
+                }
+                Program.optimize(g);
+                graph = g;
+            }
+            return graph;
+        }
     }
 }
 
+// The guest classes a program can use: the ones added and those found as
+// Name.class in dir when they are first named. The others, like
+// java/lang/Object, are host classes.
+class Classes {
+    Path dir;
+    HashMap<String, ClassFile> loaded = new HashMap<String, ClassFile>();
 
+    Classes(Path d) {
+        dir = d;
+    }
 
-class New extends Instruction {
-    ClassReference ref;
-    New(ClassReference r) {
-        super(0);
-        ref = r;
+    synchronized void add(ClassFile cf) {
+        cf.classes = this;
+        loaded.put(cf.name, cf);
+        var sup = cf.super_name == null ? null : get(cf.super_name);
+        cf.layout = new GuestClass(cf, sup == null ? null : sup.layout);
     }
-}
-class NewArray extends Instruction {
-    int primtype;
-    NewArray(int p) {
-        super(1);
-        primtype = p;
+
+    // null for host classes.
+    synchronized ClassFile get(String name) {
+        if (loaded.containsKey(name))
+            return loaded.get(name);
+        var path = dir == null ? null : dir.resolve(name + ".class").normalize();
+        // A name with .. in it is none of a class.
+        if (path == null || !path.startsWith(dir.normalize()) || !Files.exists(path)) {
+            loaded.put(name, null);
+            return null;
+        }
+        try (var in = new DataInputStream(Files.newInputStream(path))) {
+            add(new ClassFile(in));
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        return loaded.get(name);
     }
 }
-class NewObjArray extends Instruction {
-    ClassReference ref;
-    NewObjArray(ClassReference r) {
-        super(1);
-        ref = r;
+
+
+// The frames of the invocations on one thread, one after another in one
+// array: the arguments, then a slot per value of the graph. For each
+// invocation that called another one, where it goes on once that returned.
+class Frames {
+    Object[] values = new Object[1024];
+    int top;
+    int depth;
+
+    MethodGraph[] graphs = new MethodGraph[64];
+    BasicBlock[] blocks = new BasicBlock[64];
+    int[] indexes = new int[64];
+    int[] directions = new int[64];
+    GuestException[] thrown = new GuestException[64];
+    int[][] trips = new int[64][];
+    int[] args_bases = new int[64];
+    int[] arg_counts = new int[64];
+
+    void reserve(int size) {
+        if (size <= values.length)
+            return;
+        if (size > Program.FRAMES_LIMIT)
+            throw new StackOverflowError("more than " + Program.FRAMES_LIMIT + " values in the frames");
+        values = Arrays.copyOf(values, Math.min(Math.max(size, values.length * 2), Program.FRAMES_LIMIT));
     }
-}
-class ArrayLength extends Instruction {
-    ArrayLength() { super(1); }
-}
-class Throw extends Instruction {
-    Throw() { super(1); }
-}
-class CheckCast extends Instruction {
-    ClassReference ref;
-    CheckCast(ClassReference r) {
-        super(1);
-        ref = r;
+
+    void push(MethodGraph graph, BasicBlock block, int idx, int incoming_direction, GuestException x, int[] t, int args_base, int count) {
+        if (depth == graphs.length) {
+            int n = depth * 2;
+            graphs = Arrays.copyOf(graphs, n);
+            blocks = Arrays.copyOf(blocks, n);
+            indexes = Arrays.copyOf(indexes, n);
+            directions = Arrays.copyOf(directions, n);
+            thrown = Arrays.copyOf(thrown, n);
+            trips = Arrays.copyOf(trips, n);
+            args_bases = Arrays.copyOf(args_bases, n);
+            arg_counts = Arrays.copyOf(arg_counts, n);
+        }
+        graphs[depth] = graph;
+        blocks[depth] = block;
+        indexes[depth] = idx;
+        directions[depth] = incoming_direction;
+        thrown[depth] = x;
+        trips[depth] = t;
+        args_bases[depth] = args_base;
+        arg_counts[depth] = count;
+        depth++;
     }
-}
-class InstanceOf extends Instruction {
-    ClassReference ref;
-    InstanceOf(ClassReference r) {
-        super(1);
-        ref = r;
+
+    void pop() {
+        depth--;
     }
 }
-class MonitorEnter extends Instruction {
-    MonitorEnter() { super(1, 0); }
-}
-class MonitorExit extends Instruction {
-    MonitorExit() { super(1, 0); }
-}
-class MultiNewArray extends Instruction {
-    ClassReference ref;
 
-    MultiNewArray(ClassReference r, int dims) {
-        super(dims);
-        ref = r;
+// Inefficient as hell, but I'm extremely short on time.
+// Keeps the values of an invocation in a frame of its own on the Frames
+// of the current thread and counts into the counters of that thread, so
+// one graph can be run from many threads at once.
+class Executor {
+    Executor() {
     }
-}
 
+    // If set, guest code may only construct host objects of the classes
+    // this accepts, see hostConstructor and Daemon.
+    static volatile java.util.function.Predicate<Class<?>> host_classes;
+
+    // The frames of the invocations running on the current thread.
+    static final ThreadLocal<Frames> frames = ThreadLocal.withInitial(Frames::new);
 
+    // Calls run in the same loop: the caller is pushed onto the Frames of
+    // the thread and the callee goes on from there, so guest recursion
+    // neither takes space on the host stack nor allocates.
+    // What the guest throws comes out as the host exception it is, or as
+    // the GuestException if it is not a RuntimeException or Error.
+    Object run(MethodGraph graph, Object[] args) {
+        try {
+            return enter(graph, args);
+        } catch (GuestException x) {
+            throw unwrap(x);
+        }
+    }
 
+    static RuntimeException unwrap(GuestException x) {
+        if (x.val instanceof RuntimeException r)
+            return r;
+        if (x.val instanceof Error e)
+            throw e;
+        return x;
+    }
 
+    // Like run, but leaves what the guest throws in its GuestException,
+    // for the calls of guest code.
+    Object enter(MethodGraph graph, Object[] args) {
+        var f = frames.get();
+        int floor = f.depth;
+        int floor_top = f.top;
+        f.reserve(floor_top + args.length);
+        System.arraycopy(args, 0, f.values, floor_top, args.length);
+        try {
+            return execute(f, floor, graph, floor_top, args.length);
+        } finally {
+            // Released already unless something went through.
+            if (f.top > floor_top)
+                Arrays.fill(f.values, floor_top, f.top, null);
+            f.top = floor_top;
+            f.depth = floor;
+        }
+    }
 
+    // Runs graph with its count arguments at values[args_base] until the
+    // frames above floor returned.
+    Object execute(Frames f, int floor, MethodGraph graph, int args_base, int count) {
+        // The current frame: the arguments, then the values of graph.
+        int base = 0;
+        Object[] values = null;
+        long[] counts = null;
+        int edges = 0;
+        BasicBlock block = null;
+        int idx = 0;
+        int incoming_direction = 0;
+        GuestException thrown = null;
+        // Back edges taken per loop header, see MethodGraph.findOsrEntries.
+        int[] trips = null;
+        boolean enter = true;
+
+        // Nothing is done for the handlers until something is thrown, the
+        // try costs nothing on the way through.
+        blocks: while (true) {
+            if (enter) {
+                while (graph.speculation != null && graph.speculation.recompiled != null)
+                    graph = graph.speculation.recompiled;
+                if (!graph.sealed)
+                    throw new Error("Graph has not been optimized yet!");
+                base = args_base + count;
+                f.reserve(base + graph.slot_count);
+                f.top = base + graph.slot_count;
+                values = f.values;
+                counts = graph.counters.local();
+                edges = graph.inst_count;
+                block = graph.entry;
+                idx = 0;
+                incoming_direction = 0;
+                thrown = null;
+                trips = null;
+                enter = false;
+            }
+            int end = block.insts.size();
+            Guard failed = null;
+
+            try {
+                insts: for (; idx < end; idx++) {
+                    var inst = block.insts.get(idx);
+                    Object result = null;
+
+                    switch (inst) {
+                        case Phi i: {
+                            // All phis of the block read before any of them
+                            // writes, one may read what another overwrites,
+                            // as in a swap. Above top for the while.
+                            int n = idx + 1;
+                            while (n < end && block.insts.get(n) instanceof Phi)
+                                n++;
+                            int top = f.top;
+                            f.reserve(top + n - idx);
+                            values = f.values;
+                            for (int k = idx; k < n; k++)
+                                values[top + k - idx] = load(values, base, block.insts.get(k).ops[incoming_direction]);
+                            for (int k = idx; k < n; k++) {
+                                values[base + block.insts.get(k).slot] = values[top + k - idx];
+                                values[top + k - idx] = null;
+                            }
+                            idx = n - 1;
+                        } continue insts;
+
+                        case GetArg i: result = values[args_base + i.index]; break;
+                        case CatchException i: result = thrown.val; break;
+
+                        case InvokeSpecial i when i.trivial: break;
+                        case Invoke i: {
+                            if (i instanceof InvokeSpecial s && hostConstructor(s, values, base))
+                                break;
+                            var callee = target(i, values, base).graph();
+                            counts[inst.id] += cost(inst);
+                            int top = f.top;
+                            f.reserve(top + i.ops.length);
+                            values = f.values;
+                            for (int k = 0; k < i.ops.length; k++)
+                                values[top + k] = load(values, base, i.ops[k]);
+                            f.push(graph, block, idx, incoming_direction, thrown, trips, args_base, count);
+                            graph = callee;
+                            args_base = top;
+                            count = i.ops.length;
+                            enter = true;
+                        } continue blocks;
+
+                        case Guard g: {
+                            counts[inst.id] += cost(inst);
+                            if (direction(g.test, values, base) != g.expected) {
+                                failed = g;
+                                break insts;
+                            }
+                            counts[edges + g.edges]++;
+                            incoming_direction = g.in_index[0];
+                            block = g.destinations[0];
+                            idx = 0;
+                        } continue blocks;
+                        case Terminator t: {
+                            counts[inst.id] += cost(inst);
+                            int dir = direction(t, values, base);
+                            if (dir < 0) {
+                                result = t.ops.length == 0 ? null : load(values, base, t.ops[0]);
+                                Arrays.fill(values, args_base, f.top, null);
+                                f.top = args_base;
+                                if (f.depth == floor)
+                                    return result;
+                                // Back in the caller, after the call.
+                                f.pop();
+                                graph = f.graphs[f.depth];
+                                block = f.blocks[f.depth];
+                                idx = f.indexes[f.depth];
+                                incoming_direction = f.directions[f.depth];
+                                thrown = f.thrown[f.depth];
+                                trips = f.trips[f.depth];
+                                args_base = f.args_bases[f.depth];
+                                count = f.arg_counts[f.depth];
+                                base = args_base + count;
+                                f.top = base + graph.slot_count;
+                                values = f.values;
+                                counts = graph.counters.local();
+                                edges = graph.inst_count;
+                                values[base + block.insts.get(idx).slot] = result;
+                                idx++;
+                                continue blocks;
+                            }
+                            counts[edges + t.edges + dir]++;
+                            incoming_direction = t.in_index[dir];
+                            block = t.destinations[dir];
+                            idx = 0;
+                            if (t.back != null && t.back[dir]) {
+                                if (trips == null)
+                                    trips = new int[graph.osr_headers];
+                                if (++trips[block.osr] == Program.OSR_THRESHOLD) {
+                                    count = replace(f, graph, block, incoming_direction, values, base, args_base);
+                                    graph = graph.osrGraph(block);
+                                    enter = true;
+                                }
+                            }
+                        } continue blocks;
+                        default:
+                            result = evaluate(inst, values, base);
+                    }
 
-class Phi extends Instruction {
-    Phi(int count) {
-        super(count);
-    }
+                    values[base + inst.slot] = result;
 
-    Instruction allTheSame() {
-        Instruction first = null;
-        for (var o : ops) {
-            if (o != this) {
-                if (first == null)
-                    first = o;
-                else if (o != first)
-                    return null;
+                    counts[inst.id] += cost(inst);
+                }
+            } catch (RuntimeException fault) {
+                var x = guestException(block.insts.get(idx), fault);
+                if (x == null)
+                    throw fault;
+                // Up to the invocation that handles it.
+                var handler = handler(block, x);
+                while (handler == null) {
+                    Arrays.fill(values, args_base, f.top, null);
+                    f.top = args_base;
+                    if (f.depth == floor)
+                        throw x;
+                    f.pop();
+                    graph = f.graphs[f.depth];
+                    block = f.blocks[f.depth];
+                    trips = f.trips[f.depth];
+                    args_base = f.args_bases[f.depth];
+                    count = f.arg_counts[f.depth];
+                    base = args_base + count;
+                    f.top = base + graph.slot_count;
+                    handler = handler(block, x);
+                }
+                values = f.values;
+                counts = graph.counters.local();
+                edges = graph.inst_count;
+                incoming_direction = handler.in_index;
+                block = handler.target;
+                idx = 0;
+                thrown = x;
+                continue blocks;
             }
+            if (failed == null)
+                throw new Error("This block did not have a terminator.");
+            // Outside of the try, the handlers are up to the graph continued in.
+            count = deoptimize(f, graph, failed, values, base, args_base);
+            graph = graph.speculation.entry(failed.pc, failed.frame_size - graph.max_locals);
+            enter = true;
         }
-        return first;
     }
-}
 
+    // Continues at the loop header block, coming from its predecessor
+    // incoming_direction, in the graph built for entering there: puts its
+    // arguments in place of the frame and returns how many there are. The
+    // phis of head have not run yet, so they are read from their operands.
+    int replace(Frames f, MethodGraph graph, BasicBlock head, int incoming_direction, Object[] values, int base, int args_base) {
+        int n = head.state.length;
+        int top = f.top;
+        f.reserve(top + n);
+        values = f.values;
+        for (int i = 0; i < n; i++) {
+            var v = head.state[i];
+            if (v instanceof Phi p && head.insts.contains(p))
+                v = p.ops[incoming_direction];
+            values[top + i] = v == null ? null : load(values, base, v);
+        }
+        System.arraycopy(values, top, values, args_base, n);
+        Arrays.fill(values, args_base + n, top + n, null);
+        f.top = args_base + n;
+        return n;
+    }
 
-abstract class Terminator extends Instruction {
-    BasicBlock[] destinations;
-    Terminator(int operands, int dests) {
-        super(operands, 0);
-        destinations = new BasicBlock[dests];
+    // Puts the frame the guard left in place of the frame of graph, for
+    // its speculation to continue from, and returns its size.
+    int deoptimize(Frames f, MethodGraph graph, Guard g, Object[] values, int base, int args_base) {
+        int n = g.frame_size;
+        int top = f.top;
+        f.reserve(top + n);
+        values = f.values;
+        Arrays.fill(values, top, top + n, null);
+        int skip = g.test.ops.length;
+        for (int k = 0; k < g.where.length; k++)
+            values[top + g.where[k]] = load(values, base, g.ops[skip + k]);
+        System.arraycopy(values, top, values, args_base, n);
+        Arrays.fill(values, args_base + n, top + n, null);
+        f.top = args_base + n;
+        g.failures.incrementAndGet();
+        graph.speculation.failed(graph);
+        return n;
     }
-}
 
-abstract class Branch extends Terminator {
-    short offset;
+    // x as what the guest threw, null if it is a fault of the Executor.
+    // Only the exceptions the JVM throws for the instruction are the
+    // guest's, what it throws itself already is a GuestException.
+    static GuestException guestException(Instruction inst, RuntimeException x) {
+        if (x instanceof GuestException g)
+            return g;
+        boolean npe = x instanceof NullPointerException;
+        boolean bounds = x instanceof ArrayIndexOutOfBoundsException;
+        boolean visible;
+        switch (inst) {
+            case Div i: visible = x instanceof ArithmeticException; break;
+            case Rem i: visible = x instanceof ArithmeticException; break;
+            case LoadArray i: visible = npe || bounds; break;
+            case IfCmpArray i: visible = npe || bounds; break;
+            case StoreArray i: visible = npe || bounds || x instanceof ArrayStoreException; break;
+            case ArrayLength i: visible = npe; break;
+            case IfCmpLength i: visible = npe; break;
+            case GetField i: visible = npe; break;
+            case PutField i: visible = npe; break;
+            case MonitorEnter i: visible = npe; break;
+            case MonitorExit i: visible = npe || x instanceof IllegalMonitorStateException; break;
+            case NewArray i: visible = x instanceof NegativeArraySizeException; break;
+            case NewObjArray i: visible = x instanceof NegativeArraySizeException; break;
+            case MultiNewArray i: visible = x instanceof NegativeArraySizeException; break;
+            default: visible = false;
+        }
+        return visible ? new GuestException(x) : null;
+    }
 
-    Branch(int operands, int o) {
-        super(operands, 2);
-        offset = (short) o;
+    static Handler handler(BasicBlock block, GuestException x) {
+        for (var h : block.handlers) {
+            if (catches(h.type, x))
+                return h;
+        }
+        return null;
     }
-    public BasicBlock on_true() { return destinations[0]; }
-    public BasicBlock on_false() { return destinations[1]; }
-}
 
-class If extends Branch {
-    Compare comparison;
+    // Guest code can only throw what the host threw before, so the class
+    // caught is looked up among the superclasses of the host exception.
+    static boolean catches(String type, GuestException x) {
+        if (type == null)
+            return true;
+        Class<?> host;
+        if (x.val instanceof GuestObject o) {
+            if (o.clazz.types().contains(type))
+                return true;
+            host = o.clazz.host();
+        } else {
+            host = x.val.getClass();
+        }
+        for (Class<?> c = host; c != null; c = c.getSuperclass()) {
+            if (c.getName().replace('.', '/').equals(type))
+                return true;
+        }
+        return false;
+    }
 
-    If(Compare c, int o) {
-        super(1, o);
-        offset = (short) o;
-        comparison = c;
+    // Like run, but first checks the arguments against the parameter types
+    // of the method, so that e.g. a boxed Object[] passed for an int[]
+    // fails here and not in the middle of the method. Arrays are not
+    // copied, the guest works on the arrays of the caller.
+    Object invoke(MethodGraph graph, Object... args) {
+        var types = graph.param_types;
+        if (args.length != types.length)
+            throw new Error("expected " + types.length + " arguments, got " + args.length);
+        for (int i = 0; i < args.length; i++) {
+            if (!accepts(types[i], args[i]))
+                throw new Error("argument " + i + " is not a " + types[i] + ": " + args[i]);
+        }
+        return run(graph, args);
     }
-    public Instruction condition() { return ops[0]; }
-}
 
-class IfCmp extends Branch {
-    Compare comparison;
+    static boolean accepts(String type, Object arg) {
+        switch (type) {
+            case "Z", "B", "C", "S", "I": return arg instanceof Integer;
+            case "J": return arg instanceof Long;
+            case "F": return arg instanceof Float;
+            case "D": return arg instanceof Double;
+            case "[Z": return arg instanceof boolean[];
+            case "[B": return arg instanceof byte[];
+            case "[C": return arg instanceof char[];
+            case "[S": return arg instanceof short[];
+            case "[I": return arg instanceof int[];
+            case "[J": return arg instanceof long[];
+            case "[F": return arg instanceof float[];
+            case "[D": return arg instanceof double[];
+            default: return arg == null || (type.startsWith("[") ? arg instanceof Object[] : !arg.getClass().isArray());
+        }
+    }
 
-    IfCmp(Compare c, int o) {
-        super(2, o);
-        comparison = c;
+    // Made up cycle counts of the instructions.
+    static int cost(Instruction inst) {
+        switch (inst) {
+            case Constant i: return 0;
+            case Phi i: return 0;
+            case Mul i: return 3;
+            case Div i: return 3;
+            case Rem i: return 3;
+            case IfCmpArray i: return 2;
+            case IfCmpLength i: return 2;
+            default: return 1;
+        }
     }
-    public Instruction lhs() { return ops[0]; }
-    public Instruction rhs() { return ops[1]; }
-}
 
-class IfACmp extends Branch {
-    boolean equal;
+    // Computes the result of everything but phis, locals, arguments and
+    // terminators.
+    static Object evaluate(Instruction inst, Object[] values, int base) {
+        switch (inst) {
+            case Constant i: return i.val;
+            case AddConstant i: return (Integer) load(values, base, i.src()) + i.constant;
+
+            case AddInteger i:  return (Integer)load(values, base, i.lhs()) + (Integer)load(values, base, i.rhs());
+            case AddLong i:     return (Long)load(values, base, i.lhs()) + (Long)load(values, base, i.rhs());
+            case AddFloat i:    return (Float)load(values, base, i.lhs()) + (Float)load(values, base, i.rhs());
+            case AddDouble i:   return (Double)load(values, base, i.lhs()) + (Double)load(values, base, i.rhs());
+            case SubInteger i:  return (Integer)load(values, base, i.lhs()) - (Integer)load(values, base, i.rhs());
+            case SubLong i:     return (Long)load(values, base, i.lhs()) - (Long)load(values, base, i.rhs());
+            case SubFloat i:    return (Float)load(values, base, i.lhs()) - (Float)load(values, base, i.rhs());
+            case SubDouble i:   return (Double)load(values, base, i.lhs()) - (Double)load(values, base, i.rhs());
+            case MulInteger i:  return (Integer)load(values, base, i.lhs()) * (Integer)load(values, base, i.rhs());
+            case MulLong i:     return (Long)load(values, base, i.lhs()) * (Long)load(values, base, i.rhs());
+            case MulFloat i:    return (Float)load(values, base, i.lhs()) * (Float)load(values, base, i.rhs());
+            case MulDouble i:   return (Double)load(values, base, i.lhs()) * (Double)load(values, base, i.rhs());
+            case DivInteger i:  return (Integer)load(values, base, i.lhs()) / (Integer)load(values, base, i.rhs());
+            case DivLong i:     return (Long)load(values, base, i.lhs()) / (Long)load(values, base, i.rhs());
+            case DivFloat i:    return (Float)load(values, base, i.lhs()) / (Float)load(values, base, i.rhs());
+            case DivDouble i:   return (Double)load(values, base, i.lhs()) / (Double)load(values, base, i.rhs());
+            case RemInteger i:  return (Integer)load(values, base, i.lhs()) % (Integer)load(values, base, i.rhs());
+            case RemLong i:     return (Long)load(values, base, i.lhs()) % (Long)load(values, base, i.rhs());
+            case RemFloat i:    return (Float)load(values, base, i.lhs()) % (Float)load(values, base, i.rhs());
+            case RemDouble i:   return (Double)load(values, base, i.lhs()) % (Double)load(values, base, i.rhs());
+            case ShlInteger i:  return (Integer)load(values, base, i.lhs()) << (Integer)load(values, base, i.rhs());
+            case ShlLong i:     return (Long)load(values, base, i.lhs()) << (Long)load(values, base, i.rhs());
+            case ShrInteger i:  return (Integer)load(values, base, i.lhs()) >> (Integer)load(values, base, i.rhs());
+            case ShrLong i:     return (Long)load(values, base, i.lhs()) >> (Long)load(values, base, i.rhs());
+            case UShrInteger i: return (Integer)load(values, base, i.lhs()) >>> (Integer)load(values, base, i.rhs());
+            case UShrLong i:    return (Long)load(values, base, i.lhs()) >>> (Long)load(values, base, i.rhs());
+            case AndInteger i:  return (Integer)load(values, base, i.lhs()) & (Integer)load(values, base, i.rhs());
+            case AndLong i:     return (Long)load(values, base, i.lhs()) & (Long)load(values, base, i.rhs());
+            case OrInteger i:   return (Integer)load(values, base, i.lhs()) | (Integer)load(values, base, i.rhs());
+            case OrLong i:      return (Long)load(values, base, i.lhs()) | (Long)load(values, base, i.rhs());
+            case XOrInteger i:  return (Integer)load(values, base, i.lhs()) ^ (Integer)load(values, base, i.rhs());
+            case XOrLong i:     return (Long)load(values, base, i.lhs()) ^ (Long)load(values, base, i.rhs());
+            case NegInteger i:  return -(Integer)load(values, base, i.src());
+            case NegLong i:     return -(Long)load(values, base, i.src());
+            case NegFloat i:    return -(Float)load(values, base, i.src());
+            case NegDouble i:   return -(Double)load(values, base, i.src());
+
+            case ConvertIntegerLong i:      return ((Integer) load(values, base, i.ops[0])).longValue();
+            case ConvertIntegerFloat i:     return ((Integer) load(values, base, i.ops[0])).floatValue();
+            case ConvertIntegerDouble i:    return ((Integer) load(values, base, i.ops[0])).doubleValue();
+            case ConvertLongInteger i:      return ((Long) load(values, base, i.ops[0])).intValue();
+            case ConvertLongFloat i:        return ((Long) load(values, base, i.ops[0])).floatValue();
+            case ConvertLongDouble i:       return ((Long) load(values, base, i.ops[0])).doubleValue();
+            case ConvertFloatInteger i:     return ((Float) load(values, base, i.ops[0])).intValue();
+            case ConvertFloatLong i:        return ((Float) load(values, base, i.ops[0])).longValue();
+            case ConvertFloatDouble i:      return ((Float) load(values, base, i.ops[0])).doubleValue();
+            case ConvertDoubleInteger i:    return ((Double) load(values, base, i.ops[0])).intValue();
+            case ConvertDoubleLong i:       return ((Double) load(values, base, i.ops[0])).longValue();
+            case ConvertDoubleFloat i:      return ((Double) load(values, base, i.ops[0])).floatValue();
+            case ConvertIntegerByte i:      return (int) ((Integer) load(values, base, i.ops[0])).byteValue();
+            case ConvertIntegerCharacter i: return (int) (char) ((Integer) load(values, base, i.ops[0])).intValue();
+            case ConvertIntegerShort i:     return (int) ((Integer) load(values, base, i.ops[0])).shortValue();
+
+            case LoadArray i: return loadArray(i.kind, load(values, base, i.array()), (Integer) load(values, base, i.index()));
+            case StoreArray i: storeArray(i.kind, load(values, base, i.array()), (Integer) load(values, base, i.index()), load(values, base, i.val())); return null;
+            case ArrayLength i: return arrayLength(load(values, base, inst.ops[0]));
+            case NewArray i: return newArray(i.primtype, (Integer) load(values, base, inst.ops[0]));
+            case NewObjArray i: return new Object[(Integer) load(values, base, inst.ops[0])];
+
+            case InvokeSpecial i when i.trivial: return null;
+            case InvokeSpecial i when hostConstructor(i, values, base): return null;
+            case Invoke i: return call(i, values, base);
+
+            case InstanceOf i: return isInstance(load(values, base, i.ops[0]), i) ? 1 : 0;
+            case CheckCast i: {
+                var v = load(values, base, i.ops[0]);
+                if (v != null && !isInstance(v, i))
+                    throw new GuestException(new ClassCastException(v + " is not a " + i.name));
+                return v;
+            }
 
-    IfACmp(boolean e, int o) {
-        super(2, o);
-        equal = e;
+            case New i when i.clazz != null:    return new GuestObject(i.clazz);
+            case New i when i.host != null:     return new HostObject(i.host);
+            case GetField i when i.offset >= 0: return ((GuestObject) load(values, base, i.ops[0])).fields[i.offset];
+            case PutField i when i.offset >= 0: ((GuestObject) load(values, base, i.ops[0])).fields[i.offset] = load(values, base, i.ops[1]); return null;
+
+            default:
+                throw new Error("TODO: implement " + inst.getClass().getName());
+        }
     }
-    public Instruction lhs() { return ops[0]; }
-    public Instruction rhs() { return ops[1]; }
-}
-class IfCheckNull extends Branch {
-    boolean is_null;
 
-    IfCheckNull(boolean e, int o) {
-        super(1, o);
-        is_null = e;
+    static boolean isInstance(Object v, TypeTest t) {
+        switch (v) {
+            case null: return false;
+            case GuestObject o: return t.name.equals("java/lang/Object") || o.clazz.types().contains(t.name);
+            case HostObject h: return isInstance(h.value, t);
+            default: return t.host != null ? t.host.isInstance(v) : v instanceof Object[];
+        }
     }
-    public Instruction condition() { return ops[0]; }
-}
 
+    // Runs the method a call goes to, in a frame of its own.
+    static Object call(Invoke site, Object[] values, int base) {
+        var args = new Object[site.ops.length];
+        for (int k = 0; k < args.length; k++)
+            args[k] = load(values, base, site.ops[k]);
+        return new Executor().enter(target(site, values, base).graph(), args);
+    }
 
-class Return<T> extends Terminator {
-    Return() { super(1, 0); }
-}
+    // Runs the constructor of a host class, false if site is no such call.
+    // The guest subclass of a host class, say of RuntimeException, keeps
+    // no host part, so the constructors of its superclass do nothing.
+    static boolean hostConstructor(InvokeSpecial site, Object[] values, int base) {
+        if (site.target != null || !site.ref.name.equals("<init>"))
+            return false;
+        var receiver = load(values, base, site.ops[0]);
+        if (receiver instanceof GuestObject)
+            return true;
+        if (!(receiver instanceof HostObject h))
+            return false;
+        var allowed = host_classes;
+        if (allowed != null && !allowed.test(h.clazz))
+            throw new Error("guest code may not construct a " + h.clazz.getName());
+        var types = Program.paramTypes(site.ref.descriptor);
+        var classes = new Class<?>[types.length];
+        var args = new Object[types.length];
+        for (int k = 0; k < types.length; k++) {
+            classes[k] = hostClass(types[k]);
+            var v = load(values, base, site.ops[k + 1]);
+            if (v instanceof HostObject a)
+                v = a.value;
+            args[k] = switch (types[k]) {
+                case "Z" -> (Integer) v != 0;
+                case "B" -> (byte) (int) (Integer) v;
+                case "C" -> (char) (int) (Integer) v;
+                case "S" -> (short) (int) (Integer) v;
+                default -> v;
+            };
+        }
+        try {
+            h.value = h.clazz.getConstructor(classes).newInstance(args);
+        } catch (java.lang.reflect.InvocationTargetException x) {
+            throw new GuestException(x.getCause());
+        } catch (ReflectiveOperationException x) {
+            throw new Error("cannot call host constructor " + site.ref.class_name + site.ref.descriptor, x);
+        }
+        return true;
+    }
 
-class Goto extends Terminator {
-    int offset;
-    BasicBlock dest;
+    static Class<?> hostClass(String type) {
+        switch (type) {
+            case "I": return int.class;
+            case "J": return long.class;
+            case "F": return float.class;
+            case "D": return double.class;
+            case "Z": return boolean.class;
+            case "B": return byte.class;
+            case "C": return char.class;
+            case "S": return short.class;
+        }
+        var name = type.startsWith("L") ? type.substring(1, type.length() - 1) : type;
+        try {
+            return Class.forName(name.replace('/', '.'));
+        } catch (ClassNotFoundException x) {
+            throw new Error("unknown class " + name);
+        }
+    }
 
-    Goto(int o) {
-        super(0, 1);
-        offset = o;
+    static Method target(Invoke site, Object[] values, int base) {
+        var target = site.target;
+        if (target == null && site instanceof InvokeVirtual v)
+            target = dispatch(v, load(values, base, site.ops[0]));
+        if (target == null)
+            throw new Error("cannot call host method " + site.ref.class_name + "." + site.ref.name + site.ref.descriptor);
+        return target;
     }
-}
 
-class BasicBlock {
-    ArrayList<BasicBlock> incoming;
-    ArrayList<Instruction> insts;
-    int[] cycles;
+    // The method the class of the receiver chooses for a virtual call,
+    // from the inline cache of the call site if the class was seen there.
+    static Method dispatch(InvokeVirtual site, Object receiver) {
+        if (receiver == null)
+            throw new GuestException(new NullPointerException("calling " + site.ref.name + " on null"));
+        if (!(receiver instanceof GuestObject obj))
+            throw new Error("cannot call " + site.ref.name + site.ref.descriptor + " on host object " + receiver.getClass().getName());
+        var clazz = obj.clazz;
+        var cache = site.cache;
+        if (cache != null) {
+            var classes = cache.classes;
+            for (int k = 0; k < classes.length; k++) {
+                if (classes[k] == clazz)
+                    return cache.targets[k];
+            }
+        }
+        var target = clazz.select(site.signature);
+        if (target == null)
+            throw new Error(clazz.name + " has no method " + site.ref.name + site.ref.descriptor);
+        if (cache == null || !cache.megamorphic) {
+            synchronized (site) {
+                cache = site.cache;
+                if (cache == null)
+                    site.cache = new InlineCache(new GuestClass[]{clazz}, new Method[]{target}, false);
+                else if (!cache.megamorphic && !Arrays.asList(cache.classes).contains(clazz))
+                    site.cache = cache.add(clazz, target);
+            }
+        }
+        return target;
+    }
 
-    // Used for construction.
-    Instruction[] inputs;
+    // Which destination the terminator takes, -1 for a Return.
+    static int direction(Terminator t, Object[] values, int base) {
+        switch (t) {
+            case Goto g:
+                return 0;
+            case If i:
+                return compare(i.comparison, (Integer) load(values, base, i.condition()), 0) ? 0 : 1;
+            case IfCmp i:
+                return compare(i.comparison, (Integer) load(values, base, i.lhs()), (Integer) load(values, base, i.rhs())) ? 0 : 1;
+            case IfCmpArray i: {
+                var element = loadArray(i.kind, load(values, base, i.array()), (Integer) load(values, base, i.index()));
+                return compare(i.comparison, (Integer) element, (Integer) load(values, base, i.rhs())) ? 0 : 1;
+            }
+            case IfCmpLength i:
+                return compare(i.comparison, (Integer) load(values, base, i.lhs()), arrayLength(load(values, base, i.array()))) ? 0 : 1;
+            case IfCheckNull i:
+                return (load(values, base, i.condition()) == null) == i.is_null ? 0 : 1;
+            case IfACmp i:
+                return (load(values, base, i.lhs()) == load(values, base, i.rhs())) == i.equal ? 0 : 1;
+            case TableSwitch s: {
+                long index = (long) (Integer) load(values, base, s.key()) - s.low;
+                return index >= 0 && index < s.offsets.length ? 1 + (int) index : 0;
+            }
+            case LookupSwitch s: {
+                int k = Arrays.binarySearch(s.keys, (Integer) load(values, base, s.key()));
+                return k >= 0 ? 1 + k : 0;
+            }
+            case Return r:
+                return -1;
+            case Throw i:
+                throw thrown(load(values, base, i.ops[0]));
+            default:
+                throw new Error("TODO: implement " + t.getClass().getName());
+        }
+    }
 
-    Terminator terminator;
+    // Bytes, chars and shorts are ints everywhere but in arrays, like on the
+    // stack of the JVM.
+    static Object loadArray(ElementKind kind, Object arr, int idx) {
+        switch (kind) {
+            case ElementKind.Int:       return ((int[]) arr)[idx];
+            case ElementKind.Long:      return ((long[]) arr)[idx];
+            case ElementKind.Float:     return ((float[]) arr)[idx];
+            case ElementKind.Double:    return ((double[]) arr)[idx];
+            case ElementKind.Reference: return ((Object[]) arr)[idx];
+            case ElementKind.Byte:      return arr instanceof boolean[] b ? (b[idx] ? 1 : 0) : (int) ((byte[]) arr)[idx];
+            case ElementKind.Char:      return (int) ((char[]) arr)[idx];
+            case ElementKind.Short:     return (int) ((short[]) arr)[idx];
+        }
+        throw new Error("unreachable");
+    }
 
-    BasicBlock() {
-        incoming = new ArrayList<BasicBlock>();
-        insts = new ArrayList<Instruction>();
+    static void storeArray(ElementKind kind, Object arr, int idx, Object val) {
+        switch (kind) {
+            case ElementKind.Int:       ((int[]) arr)[idx] = (Integer) val; break;
+            case ElementKind.Long:      ((long[]) arr)[idx] = (Long) val; break;
+            case ElementKind.Float:     ((float[]) arr)[idx] = (Float) val; break;
+            case ElementKind.Double:    ((double[]) arr)[idx] = (Double) val; break;
+            case ElementKind.Reference: ((Object[]) arr)[idx] = val; break;
+            case ElementKind.Byte: {
+                if (arr instanceof boolean[] b)
+                    b[idx] = ((Integer) val & 1) != 0;
+                else
+                    ((byte[]) arr)[idx] = (byte) (int) (Integer) val;
+            } break;
+            case ElementKind.Char:      ((char[]) arr)[idx] = (char) (int) (Integer) val; break;
+            case ElementKind.Short:     ((short[]) arr)[idx] = (short) (int) (Integer) val; break;
+        }
     }
 
-    public void init() {
-        cycles = new int[insts.size()];
+    static int arrayLength(Object arr) {
+        switch (arr) {
+            case int[] a: return a.length;
+            case long[] a: return a.length;
+            case float[] a: return a.length;
+            case double[] a: return a.length;
+            case Object[] a: return a.length;
+            case byte[] a: return a.length;
+            case boolean[] a: return a.length;
+            case char[] a: return a.length;
+            case short[] a: return a.length;
+            default: throw new Error("not an array: " + arr);
+        }
     }
 
-    // PERFORMANCE Oh no!
-    int inputIndex(BasicBlock inc) {
-        for (int i = 0; i < incoming.size(); i++) {
-            if (inc == incoming.get(i))
-                return i;
+    // The type codes of the newarray instruction.
+    static Object newArray(int primtype, int length) {
+        switch (primtype) {
+            case 4: return new boolean[length];
+            case 5: return new char[length];
+            case 6: return new float[length];
+            case 7: return new double[length];
+            case 8: return new byte[length];
+            case 9: return new short[length];
+            case 10: return new int[length];
+            case 11: return new long[length];
+            default: throw new Error("invalid array type " + primtype);
         }
-        return -1;
     }
-}
 
+    static GuestException thrown(Object val) {
+        if (val instanceof HostObject h)
+            val = h.value;
+        if (val == null)
+            return new GuestException(new NullPointerException("throwing null"));
+        return new GuestException(val);
+    }
 
-enum Compare {
-    Lt,
-    Ge,
-    Gt,
-    Le,
-    Eq,
-    Ne,
-}
+    static boolean compare(Compare c, int lhs, int rhs) {
+        switch (c) {
+            case Compare.Lt: return lhs < rhs;
+            case Compare.Ge: return lhs >= rhs;
+            case Compare.Gt: return lhs > rhs;
+            case Compare.Le: return lhs <= rhs;
+            case Compare.Eq: return lhs == rhs;
+            case Compare.Ne: return lhs != rhs;
+        }
+        throw new Error("unreachable");
+    }
 
+    static Object load(Object[] values, int base, Instruction i) {
+        return values[base + i.slot];
+    }
+}
 
 
-class ClassFile {
-    ConstObject[] constants;
-    HashMap<String, Method> methods;
-    HashMap<String, Field> fields;
-    HashMap<String, byte[]> attributes;
+// Writes class files with a single `static int main(int n, int[] arr)` of
+// configurable size and shape: a row of if-chains with fan_in arms each,
+// which all assign to some locals and then merge into a block with a phi
+// for every local, the whole row nested in `nesting` loops that run n
+// times. Methods with more than 64k of code are not valid class files any
+// more, but parseCode still reads them.
+class MethodGenerator {
+    int blocks = 16;
+    int locals = 8;
+    int nesting = 1;
+    int fan_in = 2;
+    // Statements per arm, each one `a = b + c` on random locals.
+    int arm_length = 2;
+
+    ByteArrayOutputStream out;
+    ArrayList<Integer> labels;
+    // Instruction position, label and offset size of every jump.
+    ArrayList<int[]> fixups;
+
+    static int IF_ICMPLT = 0xa1;
+    static int IF_ICMPGE = 0xa2;
+    static int GOTO_W = 0xc8;
 
-    static int ACC_PUBLIC = 0x0001; // 	Declared public; may be accessed from outside its package.
-    static int ACC_FINAL = 0x0010; // 	Declared final; no subclasses allowed.
-    static int ACC_SUPER = 0x0020; // 	Treat superclass methods specially when invoked by the invokespecial instruction.
-    static int ACC_INTERFACE = 0x0200; // 	Is an interface, not a class.
-    static int ACC_ABSTRACT = 0x0400; // 	Declared abstract; must not be instantiated.
-    static int ACC_SYNTHETIC = 0x1000; // 	Declared synthetic; not present in the source code.
-    static int ACC_ANNOTATION = 0x2000; // 	Declared as an annotation type.
-    static int ACC_ENUM = 0x4000; // 	Declared as an enum type.
-    ClassFile(DataInputStream file) throws IOException {
-        // https://en.wikipedia.org/wiki/Java_class_file#Representation_in_a_C-like_programming_language
-        int magic = file.readInt();
-        assert magic == 0xcafebabe;
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: Program --generate <Name.class> [blocks [locals [nesting [fan_in]]]]");
+            return;
+        }
+        var g = new MethodGenerator();
+        if (args.length > 2) g.blocks = Integer.parseInt(args[2]);
+        if (args.length > 3) g.locals = Integer.parseInt(args[3]);
+        if (args.length > 4) g.nesting = Integer.parseInt(args[4]);
+        if (args.length > 5) g.fan_in = Integer.parseInt(args[5]);
+
+        var path = Paths.get(args[1]);
+        var name = path.getFileName().toString().replaceFirst("\\.class$", "");
+        Files.write(path, g.classFile(name));
+    }
 
-        int version = file.readInt();
+    // A generator for methods of roughly the given number of instructions.
+    static MethodGenerator ofSize(int insts) {
+        var g = new MethodGenerator();
+        int per_region = g.fan_in * g.arm_length * 4 + (g.fan_in - 1) * 4;
+        g.blocks = Math.max(1, insts / per_region) * (2 * g.fan_in - 1);
+        return g;
+    }
 
-        var constants = new ConstObject[file.readShort()];
-        for (int i = 1; i < constants.length; i++)
-            constants[i] = readConstant(file);
+    byte[] classFile(String name) {
+        var file = new ByteArrayOutputStream();
+        var d = new DataOutputStream(file);
+        try {
+            d.writeInt(0xcafebabe);
+            // Version 49 does not need a StackMapTable.
+            d.writeShort(0);
+            d.writeShort(49);
+
+            d.writeShort(8);
+            d.writeByte(1); d.writeUTF(name);                // #1
+            d.writeByte(7); d.writeShort(1);                 // #2
+            d.writeByte(1); d.writeUTF("java/lang/Object");  // #3
+            d.writeByte(7); d.writeShort(3);                 // #4
+            d.writeByte(1); d.writeUTF("main");              // #5
+            d.writeByte(1); d.writeUTF("(I[I)I");            // #6
+            d.writeByte(1); d.writeUTF("Code");              // #7
+
+            d.writeShort(0x0021); // public super
+            d.writeShort(2);
+            d.writeShort(4);
+            d.writeShort(0); // interfaces
+            d.writeShort(0); // fields
+
+            d.writeShort(1);
+            d.writeShort(0x0009); // public static
+            d.writeShort(5);
+            d.writeShort(6);
+            d.writeShort(1);
+            var code = codeAttribute();
+            d.writeShort(7);
+            d.writeInt(code.length);
+            d.write(code);
+
+            d.writeShort(0); // attributes
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        return file.toByteArray();
+    }
 
-        short access_flags = file.readShort();
-        short this_flags = file.readShort();
-        short super_class = file.readShort();
+    // The contents of the Code attribute, which is what parseCode reads.
+    byte[] codeAttribute() {
+        var code = code();
+        var attr = new ByteArrayOutputStream();
+        var d = new DataOutputStream(attr);
+        try {
+            d.writeShort(2);
+            d.writeShort(2 + locals + nesting);
+            d.writeInt(code.length);
+            d.write(code);
+            d.writeShort(0); // exception table
+            d.writeShort(0); // attributes
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        return attr.toByteArray();
+    }
 
-        var interfaces = new ClassReference[file.readShort()];
-        for (int i = 0; i < interfaces.length; i++)
-            interfaces[i] = (ClassReference) constants[file.readShort()];
+    byte[] code() {
+        out = new ByteArrayOutputStream();
+        labels = new ArrayList<Integer>();
+        fixups = new ArrayList<int[]>();
+        var rnd = new Random(blocks * 31 + locals);
+
+        int first_var = 2;
+        int first_counter = first_var + locals;
+        for (int k = 0; k < locals; k++) {
+            emit(0x11, (k + 1) >> 8, k + 1); // sipush
+            store(first_var + k);
+        }
 
-        fields = new HashMap<String, Field>();
-        int fields_count = file.readShort();
-        for (int i = 0; i < fields_count; i++) {
-            short sub_access_flags = file.readShort();
-            var name = (ConstantEntry<String>) constants[file.readShort()];
-            var descriptor = (ConstantEntry<String>) constants[file.readShort()];
-            var attributes = readAttributes(file, file.readShort(), constants);
-            fields.put(name.val, new Field(sub_access_flags, name.val, descriptor.val, attributes));
+        var tops = new int[nesting];
+        var exits = new int[nesting];
+        for (int d = 0; d < nesting; d++) {
+            tops[d] = label();
+            exits[d] = label();
+            emit(0x03); // iconst_0
+            store(first_counter + d);
+            bind(tops[d]);
+            load(first_counter + d);
+            load(0);
+            // Conditional jumps only reach 32k, so jump over a goto_w.
+            emit(IF_ICMPLT, 0, 8);
+            jump(GOTO_W, exits[d]);
         }
 
-        methods = new HashMap<String, Method>();
-        int methods_count = file.readShort();
-        for (int i = 0; i < methods_count; i++) {
-            short sub_access_flags = file.readShort();
-            var name = (ConstantEntry<String>) constants[file.readShort()];
+        int regions = Math.max(1, blocks / Math.max(1, 2 * fan_in - 1));
+        for (int r = 0; r < regions; r++) {
+            int merge = label();
+            int selector = first_var + r % locals;
+            for (int a = 0; a < fan_in; a++) {
+                int next = label();
+                boolean last = a == fan_in - 1;
+                if (!last) {
+                    load(selector);
+                    int bound = (a + 1) * 1000;
+                    emit(0x11, bound >> 8, bound);
+                    jump(IF_ICMPGE, next);
+                }
+                for (int t = 0; t < arm_length; t++) {
+                    load(first_var + rnd.nextInt(locals));
+                    load(first_var + rnd.nextInt(locals));
+                    emit(0x60); // iadd
+                    store(first_var + rnd.nextInt(locals));
+                }
+                if (!last)
+                    jump(GOTO_W, merge);
+                bind(next);
+            }
+            bind(merge);
+        }
 
-            var descriptor = (ConstantEntry<String>) constants[file.readShort()];
-            var attributes = readAttributes(file, file.readShort(), constants);
-            methods.put(name.val, new Method(sub_access_flags, name.val, descriptor.val, attributes));
+        for (int d = nesting; d-- > 0;) {
+            int counter = first_counter + d;
+            if (counter > 255)
+                emit(0xc4, 0x84, counter >> 8, counter, 0, 1);
+            else
+                emit(0x84, counter, 1);
+            jump(GOTO_W, tops[d]);
+            bind(exits[d]);
+        }
+        load(first_var);
+        emit(0xac); // ireturn
+
+        var code = out.toByteArray();
+        for (var f : fixups) {
+            int at = f[0];
+            int offset = labels.get(f[1]) - at;
+            if (f[2] == 4) {
+                code[at + 1] = (byte) (offset >> 24);
+                code[at + 2] = (byte) (offset >> 16);
+                code[at + 3] = (byte) (offset >> 8);
+                code[at + 4] = (byte) offset;
+            } else {
+                assert offset == (short) offset : "Branch too far!";
+                code[at + 1] = (byte) (offset >> 8);
+                code[at + 2] = (byte) offset;
+            }
         }
+        return code;
+    }
 
-        attributes = readAttributes(file, file.readShort(), constants);
+    void emit(int... bytes) {
+        for (var b : bytes)
+            out.write(b);
     }
 
-    static HashMap<String, byte[]> readAttributes(DataInputStream file, int count, ConstObject[] constants) throws IOException {
-        var res = new HashMap<String, byte[]>();
-        for (int i = 0; i < count; i++) {
-            var name = (ConstantEntry<String>) constants[file.readShort()];
-            var data = new byte[file.readInt()];
-            file.read(data);
-            res.put(name.val, data);
-        }
-        return res;
+    int label() {
+        labels.add(-1);
+        return labels.size() - 1;
     }
 
-    static ConstObject readConstant(DataInputStream input) throws IOException {
-        // https://en.wikipedia.org/wiki/Java_class_file#The_constant_pool
-        var UTF8_CHARSET = StandardCharsets.UTF_8;
-        int b = input.readByte();
-        switch (b) {
-            case 1:
-                var buf = new byte[input.readShort()];
-                input.read(buf);
-                return new ConstantEntry(new String(buf, UTF8_CHARSET));
-            case 3:
-                return new ConstantEntry(input.readInt());
-            case 4:
-                return new ConstantEntry(input.readFloat());
-            case 5:
-                return new ConstantEntry(input.readLong());
-            case 6:
-                return new ConstantEntry(input.readDouble());
-            case 7:
-                return new ClassReference(input.readShort());
-            case 8:
-                return new StringReference(input.readShort());
-            case 9:
-                return new FieldReference(input.readShort(), input.readShort());
-            case 10:
-                return new MethodReference(input.readShort(), input.readShort());
-            case 11:
-                return new InterfaceMethodReference(input.readShort(), input.readShort());
-            case 12:
-                return new NameAndType(input.readShort(), input.readShort());
-            case 15:
-                return new MethodHandle(input.readByte(), input.readShort());
-            case 16:
-                return new MethodType(input.readShort());
-            case 17:
-            case 18:
-                return new Dynamic(input.readInt());
-            case 19:
-                return new Module(input.readShort());
-            case 20:
-                return new Package(input.readShort());
-            default:
-                throw new Error("invalid constant pool entry " + b);
-        }
+    void bind(int label) {
+        labels.set(label, out.size());
+    }
+
+    void jump(int opcode, int label) {
+        int size = opcode == GOTO_W ? 4 : 2;
+        fixups.add(new int[]{out.size(), label, size});
+        emit(opcode);
+        for (int i = 0; i < size; i++)
+            emit(0);
     }
-}
 
-interface ConstObject {}
+    void load(int local) {
+        if (local > 255)
+            emit(0xc4, 0x15, local >> 8, local);
+        else
+            emit(0x15, local);
+    }
 
-class ConstantEntry<T> implements ConstObject {
-    T val;
-    ConstantEntry(T v) {
-        val = v;
+    void store(int local) {
+        if (local > 255)
+            emit(0xc4, 0x36, local >> 8, local);
+        else
+            emit(0x36, local);
     }
 }
 
-class ClassReference implements ConstObject {
-    short index;
-    ClassReference(short i) { index = i; }
-}
-class StringReference implements ConstObject {
-    short index;
-    StringReference(short i) { index = i; }
-}
 
-class Property implements ConstObject {
-    ClassReference clazz;
-    NameAndType field;
-    Property(short c, short n) {
+// Runs every stage of the pipeline on generated methods from 10^2 up to
+// 10^6 instructions and fails when a stage grows faster than its declared
+// bound. Growth is measured as the slope of a least squares fit of
+// log(time) over log(size) across all sizes measured, and as the slope
+// between each two neighbouring sizes, so that a stretch that grows too
+// fast in the middle does not hide behind a flat one at the end.
+class ScalingSuite {
+    static String[] STAGES = {"parseCode", "stackify", "optimize", "run"};
+    // Declared exponents, 1 is linear and 2 quadratic.
+    static double[] BOUNDS = {1, 1, 1, 1};
+    // Timing is noisy, so measured exponents may be this much higher.
+    static double SLACK = 0.3;
+    // Exponents from faster measurements than this are mostly noise.
+    static long MIN_NANOS = 2_000_000L;
+    // A stage that takes longer than this is not run on larger sizes.
+    static long BUDGET_NANOS = 20_000_000_000L;
 
+    public static void main(String[] args) throws IOException {
+        int max = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        var sizes = new ArrayList<Integer>();
+        for (int size = 100; size <= max; size *= 10)
+            sizes.add(size);
+
+        // Loading and compiling the classes of the pipeline would be
+        // billed to the smallest size otherwise.
+        var warm = MethodGenerator.ofSize(1000);
+        var warm_cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(warm.classFile("Generated"))));
+        var warm_graph = Program.stackify(Program.parseMethod(warm_cf, warm_cf.methods.get("main")));
+        Program.optimize(warm_graph);
+        new Executor().run(warm_graph, new Object[]{1, new int[0]});
+
+        var times = new long[STAGES.length][sizes.size()];
+        var failed = new String[STAGES.length];
+        for (int s = 0; s < sizes.size(); s++) {
+            int size = sizes.get(s);
+            var gen = MethodGenerator.ofSize(size);
+            var cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(gen.classFile("Generated"))));
+            var method = cf.methods.get("main");
+
+            System.err.printf("%9d:", size);
+            MethodGraph graph = null;
+            for (int stage = 0; stage < STAGES.length; stage++) {
+                if (failed[stage] != null) {
+                    times[stage][s] = -1;
+                    System.err.printf(" %s skipped", STAGES[stage]);
+                    continue;
+                }
+                try {
+                    long best = Long.MAX_VALUE;
+                    long total = 0;
+                    for (int rep = 0; rep < 10 && total < 200_000_000L; rep++) {
+                        // Every stage but run changes its input, so each
+                        // repetition gets a fresh one.
+                        ParsedMethod parsed = stage >= 1 ? Program.parseMethod(cf, method) : null;
+                        MethodGraph g = stage >= 2 ? Program.stackify(parsed) : null;
+                        if (stage >= 3) {
+                            if (graph == null) {
+                                Program.optimize(g);
+                                graph = g;
+                            }
+                            g = graph;
+                        }
+
+                        // Don't bill garbage of earlier runs to this one.
+                        System.gc();
+                        long start = System.nanoTime();
+                        switch (stage) {
+                            case 0: Program.parseMethod(cf, method); break;
+                            case 1: Program.stackify(parsed); break;
+                            case 2: Program.optimize(g); break;
+                            case 3: new Executor().run(g, new Object[]{1, new int[0]}); break;
+                        }
+                        long t = System.nanoTime() - start;
+                        best = Math.min(best, t);
+                        total += t;
+                    }
+                    times[stage][s] = best;
+                    if (best > BUDGET_NANOS)
+                        failed[stage] = "too slow at " + size;
+                    System.err.printf(" %s %.3fms", STAGES[stage], best / 1e6);
+                } catch (StackOverflowError x) {
+                    times[stage][s] = -1;
+                    failed[stage] = "stack overflow at " + size;
+                    System.err.printf(" %s overflowed", STAGES[stage]);
+                }
+                // Later stages need the earlier ones to work.
+                if (failed[stage] != null) {
+                    for (int later = stage + 1; later < STAGES.length; later++)
+                        failed[later] = failed[later] != null ? failed[later] : "needs " + STAGES[stage];
+                }
+            }
+            System.err.println();
+        }
+
+        boolean ok = true;
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            // Points and neighbours that took at least MIN_NANOS.
+            var xs = new ArrayList<Double>();
+            var ys = new ArrayList<Double>();
+            double worst = Double.NEGATIVE_INFINITY;
+            for (int s = 0; s < sizes.size(); s++) {
+                if (times[stage][s] < MIN_NANOS)
+                    continue;
+                xs.add(Math.log(sizes.get(s)));
+                ys.add(Math.log(times[stage][s]));
+                if (s > 0 && times[stage][s - 1] >= MIN_NANOS) {
+                    worst = Math.max(worst, Math.log((double) times[stage][s] / times[stage][s - 1])
+                                            / Math.log((double) sizes.get(s) / sizes.get(s - 1)));
+                }
+            }
+            String verdict;
+            if (xs.size() < 2) {
+                verdict = "too fast to tell";
+            } else {
+                double exp = slope(xs, ys);
+                // No two neighbours took long enough.
+                if (worst == Double.NEGATIVE_INFINITY)
+                    worst = exp;
+                double bound = BOUNDS[stage] + SLACK;
+                boolean good = exp <= bound && worst <= bound;
+                ok &= good;
+                verdict = String.format("n^%.2f, between neighbours at most n^%.2f (bound n^%.0f) %s",
+                                        exp, worst, BOUNDS[stage], good ? "ok" : "FAILED");
+            }
+            if (failed[stage] != null && !failed[stage].startsWith("needs")) {
+                ok = false;
+                verdict += ", " + failed[stage] + " FAILED";
+            }
+            System.err.printf("%-10s %s\n", STAGES[stage], verdict);
+        }
+        if (!ok)
+            System.exit(1);
     }
-}
-class FieldReference extends Property {
-    FieldReference(short c, short n) { super(c, n); }
-}
-class MethodReference extends Property {
-    MethodReference(short c, short n) { super(c, n); }
-}
-class InterfaceMethodReference extends Property {
-    InterfaceMethodReference(short c, short n) { super(c, n); }
-}
-class NameAndType implements ConstObject {
-    short name;
-    short type;
-    NameAndType(short n, short t) {
-        name = n;
-        type = t;
-    }
-}
-class MethodHandle implements ConstObject {
-    byte typedescriptor;
-    short index;
-    MethodHandle(byte t, short i) {
-        typedescriptor = t;
-        index = i;
+
+    // Of the least squares line through the points.
+    static double slope(ArrayList<Double> xs, ArrayList<Double> ys) {
+        int n = xs.size();
+        double mx = 0, my = 0;
+        for (int i = 0; i < n; i++) {
+            mx += xs.get(i) / n;
+            my += ys.get(i) / n;
+        }
+        double sxy = 0, sxx = 0;
+        for (int i = 0; i < n; i++) {
+            sxy += (xs.get(i) - mx) * (ys.get(i) - my);
+            sxx += (xs.get(i) - mx) * (xs.get(i) - mx);
+        }
+        return sxy / sxx;
     }
 }
-class MethodType implements ConstObject {
-    short index;
-    MethodType(short i) { index = i; }
-}
-class Dynamic implements ConstObject {
-    int what;
-    Dynamic(int i) { what = i; }
-}
-class Module implements ConstObject {
-    short id;
-    Module(short i) { id = i; }
-}
-class Package implements ConstObject {
-    short id;
-    Package(short i) { id = i; }
-}
 
 
-class MethodGraph {
-    // Instruction[] insts;
-    BasicBlock entry;
-    List<BasicBlock> blocks;
-    int max_locals;
+// Keeps the graphs of all methods of some class files in memory and
+// rebuilds them when a file changes, but only for the methods whose code
+// changed. Every graph is written to Class.method.dot and rendered to a
+// pdf, like the one of main.
+class Watcher {
+    // Events less than this many milliseconds apart are one change,
+    // compilers write class files in several steps.
+    static long QUIET_MILLIS = 50;
 
+    HashMap<String, byte[]> fingerprints = new HashMap<String, byte[]>();
+    HashMap<String, MethodGraph> graphs = new HashMap<String, MethodGraph>();
+    boolean rendering = true;
 
-    MethodGraph(List<BasicBlock> e, int m) {
-        blocks = e;
-        entry = e.get(0);
-        max_locals = m;
-    }
-    void print(PrintWriter p) throws IOException  {
-        new Printer(p).print(entry);
-    }
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: Program --watch <Name.class>...");
+            return;
+        }
+        var files = new ArrayList<Path>();
+        for (int i = 1; i < args.length; i++)
+            files.add(Paths.get(args[i]).toAbsolutePath());
+
+        var service = FileSystems.getDefault().newWatchService();
+        var dirs = new HashSet<Path>();
+        for (var file : files) {
+            if (dirs.add(file.getParent()))
+                file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
 
-    void replaceAllUsage(Instruction a, Instruction b) {
-        for (var blk : blocks) {
-            for (var inst : blk.insts) {
-                for (int j = 0; j < inst.ops.length; j++) {
-                    if (inst.ops[j] == a)
-                        inst.ops[j] = b;
+        var watcher = new Watcher();
+        for (var file : files)
+            watcher.update(file);
+        try {
+            while (true) {
+                var changed = new HashSet<Path>();
+                var key = service.take();
+                while (key != null) {
+                    var dir = (Path) key.watchable();
+                    for (var event : key.pollEvents()) {
+                        if (event.context() instanceof Path name)
+                            changed.add(dir.resolve(name));
+                    }
+                    key.reset();
+                    key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                for (var file : files) {
+                    if (changed.contains(file))
+                        watcher.update(file);
                 }
             }
+        } catch (InterruptedException x) {
+            service.close();
         }
     }
 
-    class Printer {
-        int block_id;
-        int inst_id;
-        PrintWriter out;
-        HashMap<BasicBlock, Integer> visited;
-        HashMap<Instruction, Integer> inst_ids;
+    void update(Path file) {
+        long start = System.nanoTime();
+        ClassFile cf;
+        try (var in = new DataInputStream(Files.newInputStream(file))) {
+            cf = new ClassFile(in);
+        } catch (IOException | RuntimeException x) {
+            // Most likely still being written, there will be another event.
+            System.err.println(file.getFileName() + ": " + x);
+            return;
+        }
+        new Classes(file.toAbsolutePath().getParent()).add(cf);
+
+        int rebuilt = 0;
+        int kept = 0;
+        int failed = 0;
+        var current = new HashSet<String>();
+        for (var m : cf.methods.values()) {
+            var code = m.attributes.get("Code");
+            if (code == null)
+                continue;
+            var key = cf.name + "." + m.name + m.descriptor;
+            current.add(key);
+            var print = fingerprint(cf, code);
+            if (Arrays.equals(print, fingerprints.get(key))) {
+                kept++;
+                continue;
+            }
+            fingerprints.put(key, print);
+            try {
+                var graph = Program.stackify(Program.parseMethod(cf, m));
+                Program.optimize(graph);
+                graphs.put(key, graph);
+                render(cf.name + "." + m.name.replaceAll("[<>]", ""), graph);
+                rebuilt++;
+            } catch (Error | RuntimeException | IOException x) {
+                graphs.remove(key);
+                System.err.println(key + ": " + x);
+                failed++;
+            }
+        }
+        var prefix = cf.name + ".";
+        fingerprints.keySet().removeIf(k -> k.startsWith(prefix) && !current.contains(k));
+        graphs.keySet().removeIf(k -> k.startsWith(prefix) && !current.contains(k));
+        System.err.printf("%s: %d rebuilt, %d failed, %d unchanged, %.1fms\n", file.getFileName(), rebuilt, failed,
+                          kept, (System.nanoTime() - start) / 1e6);
+    }
 
-        Printer(PrintWriter p) {
-            out = p;
+    void render(String name, MethodGraph graph) {
+        try (var out = new PrintWriter(name + ".dot")) {
+            out.print("digraph {\n  compound=true\n  node [shape=rect]\n");
+            graph.print(out);
+            out.print("}\n");
+        } catch (IOException x) {
+            System.err.println(name + ".dot: " + x);
+            return;
         }
+        if (!rendering)
+            return;
+        try {
+            Runtime.getRuntime().exec(new String[]{"dot", "-Tpdf", name + ".dot", "-o", name + ".pdf"});
+        } catch (IOException x) {
+            System.err.println("not rendering any pdfs: " + x);
+            rendering = false;
+        }
+    }
 
-        void print(BasicBlock b) throws IOException {
-            visited = new HashMap<BasicBlock, Integer>();
-            visited.put(b, 0);
-            inst_ids = new HashMap<Instruction, Integer>();
-            for (var blk : blocks) {
-                for (var inst : blk.insts) {
-                    inst_ids.put(inst, inst_id++);
-                }
+    // Covers everything the graph of a method is built from: the code
+    // and the exception table, but not the line numbers. The constants the
+    // code refers to go in by their values rather than their indices, a
+    // change to any other method can move them around in the pool. The
+    // fields and the constructor are there for link and trivialConstructor.
+    static byte[] fingerprint(ClassFile cf, byte[] attribute) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new Error(x);
+        }
+        var refs = new ArrayList<Integer>();
+        digest.update(unlink(attribute, refs));
+        for (int ref : refs)
+            digest.update((describe(cf.constants, ref) + "\n").getBytes(StandardCharsets.UTF_8));
+
+        for (var f : cf.fields.values())
+            digest.update((f.name + f.descriptor + "\n").getBytes(StandardCharsets.UTF_8));
+        var init = cf.methods.get("<init>");
+        if (init != null && init.attributes.get("Code") != null)
+            digest.update(unlink(init.attributes.get("Code"), new ArrayList<Integer>()));
+        return digest.digest();
+    }
+
+    // A copy of a Code attribute up to the end of its exception table with
+    // all constant pool indices zeroed, the indices go into refs.
+    static byte[] unlink(byte[] attribute, ArrayList<Integer> refs) {
+        int length = Program.readInt(attribute, 4);
+        int handlers = (attribute[8 + length] & 0xff) << 8 | attribute[9 + length] & 0xff;
+        var copy = Arrays.copyOf(attribute, 10 + length + 8 * handlers);
+
+        int i = 8;
+        while (i < 8 + length) {
+            int opcode = copy[i] & 0xff;
+            int operands = 0;
+            switch (opcode) {
+                case 0x12:
+                    refs.add(copy[i + 1] & 0xff);
+                    copy[i + 1] = 0;
+                    i += 2;
+                    break;
+                case 0x13, 0x14, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xbb, 0xbd, 0xc0, 0xc1:
+                    operands = 3;
+                    break;
+                case 0xb9, 0xba:
+                    operands = 5;
+                    break;
+                case 0xc5:
+                    operands = 4;
+                    break;
+                case 0x10, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37, 0x38, 0x39, 0x3a, 0xa9, 0xbc:
+                    i += 2;
+                    break;
+                case 0x11, 0x84, 0x99, 0x9a, 0x9b, 0x9c, 0x9d, 0x9e, 0x9f, 0xa0, 0xa1, 0xa2,
+                     0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xc6, 0xc7:
+                    i += 3;
+                    break;
+                case 0xc8, 0xc9:
+                    i += 5;
+                    break;
+                case 0xc4:
+                    i += (copy[i + 1] & 0xff) == 0x84 ? 6 : 4;
+                    break;
+                case 0xaa: {
+                    // The padding is relative to the start of the code.
+                    int pos = i + 4 - ((i - 8) & 3);
+                    int low = Program.readInt(copy, pos + 4);
+                    int high = Program.readInt(copy, pos + 8);
+                    i = pos + 12 + 4 * (high - low + 1);
+                } break;
+                case 0xab: {
+                    int pos = i + 4 - ((i - 8) & 3);
+                    i = pos + 8 + 8 * Program.readInt(copy, pos + 4);
+                } break;
+                default:
+                    i += 1;
             }
+            if (operands > 0) {
+                refs.add((copy[i + 1] & 0xff) << 8 | copy[i + 2] & 0xff);
+                copy[i + 1] = 0;
+                copy[i + 2] = 0;
+                i += operands;
+            }
+        }
 
-            block_id = 1;
-            inst_id = 0;
-            printBlock(b);
+        // The catch types, 0 stays 0 for a finally.
+        for (int pos = 10 + length + 6; pos < copy.length; pos += 8) {
+            int type = (copy[pos] & 0xff) << 8 | copy[pos + 1] & 0xff;
+            if (type != 0)
+                refs.add(type);
+            copy[pos] = 0;
+            copy[pos + 1] = 0;
         }
+        return copy;
+    }
 
-        void printBlock(BasicBlock b) {
-            int self = block_id;
-            String content = " { Block " + self;
-            for (var inst : b.insts) {
-                content = content + " | ";
+    static String describe(ConstObject[] constants, int index) {
+        switch (constants[index]) {
+            case ConstantEntry e: return e.val.getClass().getSimpleName() + " " + e.val;
+            case ClassReference r: return "class " + ClassFile.className(constants, r);
+            case StringReference r: return "string " + ((ConstantEntry) constants[r.index & 0xffff]).val;
+            case Property p: return p.getClass().getSimpleName() + " " + p.class_name + "." + p.name + p.descriptor;
+            default: return constants[index].getClass().getSimpleName() + " " + index;
+        }
+    }
+}
 
-                content += "i" + inst_ids.get(inst) + ": " + inst.toString();
-                for (var op : inst.ops) {
-                    content += " i" + inst_ids.get(op);
-                }
+
+// Stays running and answers requests on a localhost port, one per line,
+// so that the JVM, the interpreter and the parsed classes stay warm:
+//
+//   compile <Name.class> <method>          ok <blocks> blocks <instructions> instructions
+//   run <Name.class> <method> <args>...    ok <result>
+//   render <Name.class> <method> <out.dot> ok <out.dot>
+//   quit                                   closes the connection
+//
+// Every answer is one line, errors start with "error". Arrays are passed
+// as comma separated elements, like 1,3,4,5 for an int[]. Paths are
+// relative to the directory the daemon was started in, and only files
+// below it are read or written: anyone on the machine can connect. For
+// the same reason the guest may only construct the host objects
+// hostClass accepts, no files or sockets. Class files are
+// parsed again when they change on disk, together with the classes next
+// to them that they use. Graphs are built once per class
+// file and method and shared by all connections, which the thread local
+// counters allow. run uses graphs specialized on the arrays passed, for
+// methods that only read them, see Specializer.
+class Daemon {
+    static int PORT = 7340;
+
+    static class Loaded {
+        ClassFile cf;
+        FileTime modified;
+        ConcurrentHashMap<String, MethodGraph> graphs = new ConcurrentHashMap<String, MethodGraph>();
+        // For run, the graphs specialized on the arrays passed.
+        ConcurrentHashMap<String, Specializer> specializers = new ConcurrentHashMap<String, Specializer>();
+
+        Loaded(ClassFile cf, FileTime modified) {
+            this.cf = cf;
+            this.modified = modified;
+        }
+    }
+
+    ConcurrentHashMap<Path, Loaded> classes = new ConcurrentHashMap<Path, Loaded>();
+
+    // Boxes, strings and the exceptions of java.lang and java.util.
+    static boolean hostClass(Class<?> c) {
+        var pkg = c.getPackageName();
+        if (Throwable.class.isAssignableFrom(c))
+            return pkg.equals("java.lang") || pkg.equals("java.util");
+        return List.of(Object.class, Boolean.class, Byte.class, Character.class, Short.class, Integer.class,
+                       Long.class, Float.class, Double.class, String.class, StringBuilder.class).contains(c);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : PORT;
+        Executor.host_classes = Daemon::hostClass;
+        var daemon = new Daemon();
+        try (var server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("listening on " + server.getLocalSocketAddress());
+            while (true) {
+                var socket = server.accept();
+                var thread = new Thread(() -> daemon.serve(socket));
+                thread.setDaemon(true);
+                thread.start();
             }
-            content += "} ";
+        }
+    }
 
-            if (b.cycles != null) {
-                content += " | {#";
-                for (var c : b.cycles)
-                    content += "|" + c;
-                content += "}";
+    void serve(Socket socket) {
+        try (socket;
+             var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             var out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                var request = line.trim().split("\\s+");
+                if (request[0].equals("quit"))
+                    break;
+                if (request[0].isEmpty())
+                    continue;
+                String answer;
+                try {
+                    answer = "ok " + answer(request);
+                } catch (Error | RuntimeException | IOException x) {
+                    answer = "error " + x;
+                }
+                out.println(answer.replace('\n', ' '));
             }
+        } catch (IOException x) {
+            System.err.println(socket.getRemoteSocketAddress() + ": " + x);
+        }
+    }
 
-            out.printf("  bb%d [shape=record, labeljust=l, label=\"%s\"]\n", self, content);
-            for (var d : b.terminator.destinations) {
-                var got = visited.putIfAbsent(d, block_id+1);
-                int dest_id;
-                if (got == null) {
-                    block_id++;
-                    dest_id = block_id;
-                    out.printf("  bb%d -> bb%d\n", self, dest_id);
-                    printBlock(d);
-                } else {
-                    dest_id = got;
-                    out.printf("  bb%d -> bb%d\n", self, dest_id);
+    String answer(String[] request) throws IOException {
+        if (!List.of("compile", "run", "render").contains(request[0]))
+            throw new Error("unknown command " + request[0]);
+        if (request.length < 3)
+            throw new Error("expected " + request[0] + " <Name.class> <method>");
+        var loaded = load(confined(request[1]));
+        var graph = graph(loaded, request[2]);
+        switch (request[0]) {
+            case "compile":
+                return graph.blocks.size() + " blocks " + graph.inst_count + " instructions";
+            case "run": {
+                var types = graph.param_types;
+                if (request.length - 3 != types.length)
+                    throw new Error("expected " + types.length + " arguments, got " + (request.length - 3));
+                var args = new Object[types.length];
+                for (int i = 0; i < types.length; i++)
+                    args[i] = argument(types[i], request[3 + i]);
+                // Requests pass the same arrays over and over, each time
+                // as new ones.
+                var specializer = loaded.specializers.computeIfAbsent(
+                    request[2], k -> new Specializer(graph, Specializer.readArrays(graph)));
+                return show(specializer.invoke(new Executor(), args));
+            }
+            case "render": {
+                if (request.length != 4)
+                    throw new Error("expected render <Name.class> <method> <out.dot>");
+                try (var out = new PrintWriter(confined(request[3]).toFile())) {
+                    out.print("digraph {\n  compound=true\n  node [shape=rect]\n");
+                    graph.print(out);
+                    out.print("}\n");
                 }
+                return request[3];
             }
         }
+        throw new Error("unknown command " + request[0]);
     }
-}
 
+    // name below the working directory, also after following links.
+    static Path confined(String name) throws IOException {
+        var dir = Paths.get("").toRealPath();
+        var path = dir.resolve(name).normalize();
+        if (path.getParent() == null || Files.isSymbolicLink(path))
+            throw new Error(name + " is not in " + dir);
+        var parent = path.getParent().toRealPath();
+        if (!parent.startsWith(dir))
+            throw new Error(name + " is not in " + dir);
+        return parent.resolve(path.getFileName());
+    }
 
-class Field {
-    String name;
-    String descriptor;
-    HashMap<String, byte[]> attributes;
+    Loaded load(Path path) throws IOException {
+        var modified = Files.getLastModifiedTime(path);
+        var loaded = classes.get(path);
+        if (loaded == null || !loaded.modified.equals(modified)) {
+            try (var in = new DataInputStream(Files.newInputStream(path))) {
+                loaded = new Loaded(new ClassFile(in), modified);
+            }
+            new Classes(path.getParent()).add(loaded.cf);
+            classes.put(path, loaded);
+        }
+        return loaded;
+    }
 
-    Field(int access_flags, String n, String d, HashMap<String, byte[]> a) {
-        name = n;
-        descriptor = d;
-        attributes = a;
+    MethodGraph graph(Loaded loaded, String name) throws IOException {
+        var cf = loaded.cf;
+        var m = cf.methods.get(name);
+        if (m == null || m.attributes.get("Code") == null)
+            throw new Error(cf.name + " has no method " + name);
+        try {
+            return loaded.graphs.computeIfAbsent(name, k -> {
+                try {
+                    var graph = Program.stackify(Program.parseMethod(cf, m));
+                    Program.optimize(graph);
+                    return graph;
+                } catch (IOException x) {
+                    throw new UncheckedIOException(x);
+                }
+            });
+        } catch (UncheckedIOException x) {
+            throw x.getCause();
+        }
     }
-}
-class Method {
-    String name;
-    String descriptor;
-    HashMap<String, byte[]> attributes;
 
-    Method(int access_flags, String n, String d, HashMap<String, byte[]> a) {
-        name = n;
-        descriptor = d;
-        attributes = a;
+    static Object argument(String type, String text) {
+        var elements = text.isEmpty() ? new String[0] : text.split(",");
+        switch (type) {
+            case "Z", "B", "C", "S", "I": return Integer.parseInt(text);
+            case "J": return Long.parseLong(text);
+            case "F": return Float.parseFloat(text);
+            case "D": return Double.parseDouble(text);
+            case "[I": return Arrays.stream(elements).mapToInt(Integer::parseInt).toArray();
+            case "[J": return Arrays.stream(elements).mapToLong(Long::parseLong).toArray();
+            case "[D": return Arrays.stream(elements).mapToDouble(Double::parseDouble).toArray();
+            default: throw new Error("cannot pass a " + type);
+        }
     }
-}
 
+    static String show(Object result) {
+        switch (result) {
+            case null: return "void";
+            case int[] a: return Arrays.toString(a);
+            case long[] a: return Arrays.toString(a);
+            case double[] a: return Arrays.toString(a);
+            case Object[] a: return Arrays.toString(a);
+            default: return result.toString();
+        }
+    }
+}
 
-// Inefficient as hell, but I'm extremely short on time.
-class Executor {
-    HashMap<Instruction, Object> current_invocation_values;
 
-    Executor() {
-        current_invocation_values = new HashMap<Instruction, Object>();
+// Wall time, allocated bytes and the size of the graph after every phase
+// of the pipeline, per method. Each phase is committed as a JFR event, so
+// a recording started with -XX:StartFlightRecording shows them next to the
+// garbage collections, and collected for a JSON report if Program runs
+// with --metrics <out.json>. With neither, start returns null and nothing
+// is measured.
+class Metrics {
+    static Path report;
+    static ArrayList<Metrics> recorded = new ArrayList<Metrics>();
+    static com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @jdk.jfr.Name("Program.Phase")
+    @jdk.jfr.Label("Pipeline Phase")
+    @jdk.jfr.Category("Program")
+    @jdk.jfr.StackTrace(false)
+    static class PhaseEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Phase") String phase;
+        @jdk.jfr.Label("Method") String method;
+        @jdk.jfr.Label("Allocated") @jdk.jfr.DataAmount long allocated;
+        @jdk.jfr.Label("Blocks") int blocks;
+        @jdk.jfr.Label("Instructions") int instructions;
+        @jdk.jfr.Label("Phis") int phis;
     }
 
-    Object run(MethodGraph graph, Object[] args) {
-        var locals = new Object[graph.max_locals];
-        System.arraycopy(args, 0, locals, 0, args.length);
-
-        BasicBlock block = graph.entry;
-        BasicBlock next;
+    String phase;
+    String method;
+    PhaseEvent event;
+    long nanos;
+    long allocated;
+    int blocks;
+    int instructions;
+    int phis;
+
+    static Metrics start(String phase, String method) {
+        var event = new PhaseEvent();
+        if (report == null && !event.isEnabled())
+            return null;
+        var m = new Metrics();
+        m.phase = phase;
+        m.method = method;
+        m.event = event;
+        m.allocated = threads.getCurrentThreadAllocatedBytes();
+        event.begin();
+        m.nanos = System.nanoTime();
+        return m;
+    }
 
-        int incoming_direction = 0;
-        while (true) {
-            var cycles = block.cycles;
-            int end = block.insts.size();
-            if (cycles == null)
-                cycles = block.cycles = new int[end];
+    static void end(Metrics m, MethodGraph g) {
+        if (m != null)
+            end(m, g.blocks);
+    }
 
-            for (int idx = 0; idx < end; idx++) {
-                var inst = block.insts.get(idx);
-                int cost = 1;
-                Object result = null;
+    static void end(Metrics m, List<BasicBlock> blocks) {
+        if (m == null)
+            return;
+        m.stop();
+        m.blocks = blocks.size();
+        for (var blk : blocks) {
+            m.instructions += blk.insts.size();
+            for (var inst : blk.insts) {
+                if (inst instanceof Phi)
+                    m.phis++;
+            }
+        }
+        m.commit();
+    }
 
-                switch (inst) {
-                    case Constant i: result = i.val; cost = 0; break;
-                    case Phi i: result = load(i.ops[incoming_direction]); cost = 0; break;
-
-                    case LoadLocal i: result   = locals[i.index]; break;
-                    case StoreLocal i: locals[i.index] = load(i.ops[0]); break;
-                    case GetArg i: result = args[i.index]; break;
-
-                    case AddInteger i: result  = (Integer)load(i.lhs()) + (Integer)load(i.rhs()); break;
-                    case AddLong i: result     = (Long)load(i.lhs()) + (Long)load(i.rhs()); break;
-                    case AddFloat i: result    = (Float)load(i.lhs()) + (Float)load(i.rhs()); break;
-                    case AddDouble i: result   = (Double)load(i.lhs()) + (Double)load(i.rhs()); break;
-                    case SubInteger i: result  = (Integer)load(i.lhs()) - (Integer)load(i.rhs()); break;
-                    case SubLong i: result     = (Long)load(i.lhs()) - (Long)load(i.rhs()); break;
-                    case SubFloat i: result    = (Float)load(i.lhs()) - (Float)load(i.rhs()); break;
-                    case SubDouble i: result   = (Double)load(i.lhs()) - (Double)load(i.rhs()); break;
-                    case MulInteger i: result  = (Integer)load(i.lhs()) * (Integer)load(i.rhs()); cost = 3; break;
-                    case MulLong i: result     = (Long)load(i.lhs()) * (Long)load(i.rhs()); cost = 3; break;
-                    case MulFloat i: result    = (Float)load(i.lhs()) * (Float)load(i.rhs()); cost = 3; break;
-                    case MulDouble i: result   = (Double)load(i.lhs()) * (Double)load(i.rhs()); cost = 3; break;
-                    case DivInteger i: result  = (Integer)load(i.lhs()) / (Integer)load(i.rhs()); cost = 3; break;
-                    case DivLong i: result     = (Long)load(i.lhs()) / (Long)load(i.rhs()); cost = 3; break;
-                    case DivFloat i: result    = (Float)load(i.lhs()) / (Float)load(i.rhs()); cost = 3; break;
-                    case DivDouble i: result   = (Double)load(i.lhs()) / (Double)load(i.rhs()); cost = 3; break;
-                    case RemInteger i: result  = (Integer)load(i.lhs()) % (Integer)load(i.rhs()); cost = 3; break;
-                    case RemLong i: result     = (Long)load(i.lhs()) % (Long)load(i.rhs()); cost = 3; break;
-                    case RemFloat i: result    = (Float)load(i.lhs()) % (Float)load(i.rhs()); cost = 3; break;
-                    case RemDouble i: result   = (Double)load(i.lhs()) % (Double)load(i.rhs()); cost = 3; break;
-                    case ShlInteger i: result  = (Integer)load(i.lhs()) << (Integer)load(i.rhs()); break;
-                    case ShlLong i: result     = (Long)load(i.lhs()) << (Long)load(i.rhs()); break;
-                    case ShrInteger i: result  = (Integer)load(i.lhs()) >> (Integer)load(i.rhs()); break;
-                    case ShrLong i: result     = (Long)load(i.lhs()) >> (Long)load(i.rhs()); break;
-                    case UShrInteger i: result = (Integer)load(i.lhs()) >>> (Integer)load(i.rhs()); break;
-                    case UShrLong i: result    = (Long)load(i.lhs()) >>> (Long)load(i.rhs()); break;
-                    case AndInteger i: result  = (Integer)load(i.lhs()) & (Integer)load(i.rhs()); break;
-                    case AndLong i: result     = (Long)load(i.lhs()) & (Long)load(i.rhs()); break;
-                    case OrInteger i: result   = (Integer)load(i.lhs()) | (Integer)load(i.rhs()); break;
-                    case OrLong i: result      = (Long)load(i.lhs()) | (Long)load(i.rhs()); break;
-                    case XOrInteger i: result  = (Integer)load(i.lhs()) ^ (Integer)load(i.rhs()); break;
-                    case XOrLong i: result     = (Long)load(i.lhs()) ^ (Long)load(i.rhs()); break;
-                    case NegInteger i: result  = -(Integer)load(i.src()); break;
-                    case NegLong i: result     = -(Long)load(i.src()); break;
-                    case NegFloat i: result    = -(Integer)load(i.src()); break;
-                    case NegDouble i: result   = -(Long)load(i.src()); break;
-
-                    case ConvertIntegerLong i: result      = ((Integer) load(i.ops[0])).longValue(); break;
-                    case ConvertIntegerFloat i: result     = ((Integer) load(i.ops[0])).floatValue(); break;
-                    case ConvertIntegerDouble i: result    = ((Integer) load(i.ops[0])).doubleValue(); break;
-                    case ConvertLongInteger i: result      = ((Long) load(i.ops[0])).intValue(); break;
-                    case ConvertLongFloat i: result        = ((Long) load(i.ops[0])).floatValue(); break;
-                    case ConvertLongDouble i: result       = ((Long) load(i.ops[0])).doubleValue(); break;
-                    case ConvertFloatInteger i: result     = ((Float) load(i.ops[0])).intValue(); break;
-                    case ConvertFloatLong i: result        = ((Float) load(i.ops[0])).longValue(); break;
-                    case ConvertFloatDouble i: result      = ((Float) load(i.ops[0])).doubleValue(); break;
-                    case ConvertDoubleInteger i: result    = ((Double) load(i.ops[0])).intValue(); break;
-                    case ConvertDoubleLong i: result       = ((Double) load(i.ops[0])).longValue(); break;
-                    case ConvertDoubleFloat i: result      = ((Double) load(i.ops[0])).floatValue(); break;
-                    case ConvertIntegerByte i: result      = ((Integer) load(i.ops[0])).byteValue(); break;
-                    case ConvertIntegerCharacter i: result = (char) ((Integer) load(i.ops[0])).intValue(); break;
-                    case ConvertIntegerShort i: result     = ((Integer) load(i.ops[0])).shortValue(); break;
-
-                    case LoadArray i: result = ((Object[]) load(inst.ops[0]))[(Integer) load(inst.ops[1])]; break;
-                    case StoreArray i: ((Object[]) load(inst.ops[0]))[(Integer) load(inst.ops[1])] = load(inst.ops[2]); break;
-                    case ArrayLength i: result = ((Object[]) load(inst.ops[0])).length; break;
-                    case NewArray i: result = new Object[(Integer) load(inst.ops[0])]; break;
-
-                    case Goto g: {
-                        next = g.destinations[0];
-                        incoming_direction = next.inputIndex(block);
-                        cycles[idx] += 1;
-                        block = next;
-                        end = 0;
-                    } continue;
-                    case If i: {
-                        int cond = (Integer) load(i.condition());
-                        boolean res = false;
-                        switch (i.comparison) {
-                            case Compare.Lt: res = cond < 0; break;
-                            case Compare.Ge: res = cond >= 0; break;
-                            case Compare.Gt: res = cond > 0; break;
-                            case Compare.Le: res = cond <= 0; break;
-                            case Compare.Eq: res = cond == 0; break;
-                            case Compare.Ne: res = cond != 0; break;
-                        }
-                        if (res)
-                            next = i.on_true();
-                        else
-                            next = i.on_false();
-                        incoming_direction = next.inputIndex(block);
-                        cycles[idx] += 1;
-                        block = next;
-                        end = 0;
-                    } continue;
-                    case IfCmp i: {
-                        int lhs = (Integer) load(i.lhs());
-                        int rhs = (Integer) load(i.rhs());
-                        boolean res = false;
-                        switch (i.comparison) {
-                            case Compare.Lt: res = lhs < rhs; break;
-                            case Compare.Ge: res = lhs >= rhs; break;
-                            case Compare.Gt: res = lhs > rhs; break;
-                            case Compare.Le: res = lhs <= rhs; break;
-                            case Compare.Eq: res = lhs == rhs; break;
-                            case Compare.Ne: res = lhs != rhs; break;
-                        }
-                        if (res)
-                            next = i.on_true();
-                        else
-                            next = i.on_false();
-                        incoming_direction = next.inputIndex(block);
-                        cycles[idx] += 1;
-                        block = next;
-                        end = 0;
-                    } continue;
-                    case IfCheckNull i: {
-                        boolean is_null = load(i.condition()) == null;
-                        if (is_null == i.is_null)
-                            next = i.on_true();
-                        else
-                            next = i.on_false();
-                        incoming_direction = next.inputIndex(block);
-                        cycles[idx] += 1;
-                        block = next;
-                        end = 0;
-                    } continue;
-                    case Return r:
-                        cycles[idx] += 1;
-                        return load(r.ops[0]);
-                    default:
-                        throw new Error("TODO: implement " + inst.getClass().getName());
-                }
+    // Straight after parsing, before there are any blocks.
+    static void end(Metrics m, Instruction[] insts) {
+        if (m == null)
+            return;
+        m.stop();
+        for (var inst : insts) {
+            if (inst != null)
+                m.instructions++;
+        }
+        m.commit();
+    }
 
-                current_invocation_values.put(inst, result);
+    void stop() {
+        nanos = System.nanoTime() - nanos;
+        event.end();
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+    }
 
-                cycles[idx] += cost;
+    void commit() {
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.method = method;
+            event.allocated = allocated;
+            event.blocks = blocks;
+            event.instructions = instructions;
+            event.phis = phis;
+            event.commit();
+        }
+        if (report != null) {
+            synchronized (recorded) {
+                recorded.add(this);
             }
+        }
+    }
 
-            assert false : "This block did not have a terminator.";
+    static void save() throws IOException {
+        if (report == null)
+            return;
+        try (var out = new PrintWriter(Files.newBufferedWriter(report))) {
+            out.print("{\"phases\": [");
+            synchronized (recorded) {
+                for (int i = 0; i < recorded.size(); i++) {
+                    var m = recorded.get(i);
+                    out.printf("%s\n  {\"phase\": %s, \"method\": %s, \"nanos\": %d, \"allocated_bytes\": %d, "
+                               + "\"blocks\": %d, \"instructions\": %d, \"phis\": %d}",
+                               i == 0 ? "" : ",", quote(m.phase), quote(m.method), m.nanos, m.allocated,
+                               m.blocks, m.instructions, m.phis);
+                }
+            }
+            out.print("\n]}\n");
         }
     }
 
-    Object load(Instruction i) {
-        assert current_invocation_values.containsKey(i) : "The code is trying to use a value before it was computed!";
-        return current_invocation_values.get(i);
+    static String quote(String text) {
+        if (text == null)
+            return "null";
+        var b = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\')
+                b.append('\\').append(c);
+            else if (c < 0x20)
+                b.append(String.format("\\u%04x", (int) c));
+            else
+                b.append(c);
+        }
+        return b.append('"').toString();
     }
 }